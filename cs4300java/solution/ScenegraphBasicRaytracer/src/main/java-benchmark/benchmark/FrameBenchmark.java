@@ -0,0 +1,80 @@
+package benchmark;
+
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Stack;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import sgraph.IScenegraph;
+import sgraph.RTScenegraphRenderer;
+import sgraph.RenderSettings;
+
+/**
+ * The time to render a whole frame with the default settings (shadows,
+ * reflection and refraction, one sample per pixel), at several square
+ * resolutions and on several threads. The image is not written anywhere, so
+ * that the disk is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameBenchmark {
+  @Param({"simple-sphere", "simple-box", "scene"})
+  public String scene;
+
+  @Param({"200", "400", "800"})
+  public int resolution;
+
+  @Param({"1", "2", "4"})
+  public int threads;
+
+  private IScenegraph<?> scenegraph;
+  private Stack<Matrix4f> modelView;
+  private ExecutorService executor;
+
+  @Setup
+  public void setup() throws Exception {
+    scenegraph = Scenes.load(scene);
+    RTScenegraphRenderer renderer = new RTScenegraphRenderer();
+    RenderSettings settings = new RenderSettings();
+    settings.setSize(resolution, resolution);
+    settings.setOutput(null);
+    renderer.setRenderSettings(settings);
+    if (threads == 1) {
+      renderer.setParallel(false);
+    } else {
+      executor = Executors.newFixedThreadPool(threads);
+      renderer.setExecutor(executor);
+    }
+    scenegraph.setRenderer(renderer);
+    modelView = Scenes.camera();
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (executor != null)
+      executor.shutdown();
+  }
+
+  @Benchmark
+  public void frame() {
+    scenegraph.draw(modelView);
+  }
+}
@@ -0,0 +1,110 @@
+package benchmark;
+
+import org.joml.Matrix4f;
+import org.joml.Vector4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import sgraph.HitRecord;
+import sgraph.IScenegraph;
+import sgraph.LeafInstance;
+import sgraph.LeafNode;
+import sgraph.Ray;
+
+/**
+ * The time of one call to {@link LeafNode#intersect(Ray, Ray, Matrix4f,
+ * HitRecord)}, which finds the hit and fills in the hit record, and of one
+ * call to {@link LeafNode#hitTime(Ray)}, which is all a shadow ray needs.
+ *
+ * Every leaf of the scene is intersected in turn, by a ray from the eye
+ * through the center of its bounding box, already transformed into the
+ * coordinate system of the leaf (as the instance table does).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeafIntersectBenchmark {
+  @Param({"simple-sphere", "simple-box", "scene"})
+  public String scene;
+
+  private LeafNode[] leaves;
+  private Ray[] raysView;
+  private Ray[] raysObject;
+  private Matrix4f[] normalMatrices;
+  private HitRecord hitRecord;
+  private int next;
+
+  @Setup
+  public void setup() throws Exception {
+    IScenegraph<?> scenegraph = Scenes.load(scene);
+    List<LeafInstance> instances =
+            scenegraph.getRoot().getLeavesInView(Scenes.camera());
+    if (instances.isEmpty())
+      throw new IllegalStateException("Scene " + scene + " has no leaves");
+
+    int n = instances.size();
+    leaves = new LeafNode[n];
+    raysView = new Ray[n];
+    raysObject = new Ray[n];
+    normalMatrices = new Matrix4f[n];
+    Vector4f min = new Vector4f();
+    Vector4f max = new Vector4f();
+    for (int i = 0; i < n; i++) {
+      LeafInstance instance = instances.get(i);
+      Matrix4f viewToLeaf = new Matrix4f(instance.leafToView).invert();
+      leaves[i] = instance.leaf;
+      if (!instance.leaf.getBounds(min, max)) {
+        min.set(0, 0, 0, 1);
+        max.set(0, 0, 0, 1);
+      }
+
+      Ray rayView = new Ray();
+      rayView.start.set(0, 0, 0, 1);
+      rayView.direction.set(min).add(max).mul(0.5f);
+      rayView.direction.w = 1;
+      instance.leafToView.transform(rayView.direction);
+      rayView.direction.w = 0;
+
+      Ray rayObject = new Ray();
+      viewToLeaf.transform(rayObject.start.set(rayView.start));
+      viewToLeaf.transform(rayObject.direction.set(rayView.direction));
+
+      raysView[i] = rayView;
+      raysObject[i] = rayObject;
+      normalMatrices[i] = new Matrix4f(viewToLeaf).transpose();
+    }
+    hitRecord = new HitRecord();
+    next = 0;
+  }
+
+  @Benchmark
+  public float intersect() {
+    int i = next;
+    next = (i + 1 == leaves.length) ? 0 : i + 1;
+    hitRecord.reset();
+    leaves[i].intersect(raysView[i], raysObject[i], normalMatrices[i], hitRecord);
+    return hitRecord.time;
+  }
+
+  @Benchmark
+  public float hitTime() {
+    int i = next;
+    next = (i + 1 == leaves.length) ? 0 : i + 1;
+    return leaves[i].hitTime(raysObject[i]);
+  }
+}
@@ -0,0 +1,100 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import sgraph.HitRecord;
+import sgraph.IScenegraph;
+import sgraph.RTScene;
+import sgraph.RTScenegraphRenderer;
+import sgraph.Ray;
+import sgraph.RayPacket;
+
+/**
+ * The number of primary rays per second that are intersected with a scene,
+ * without shading, one ray at a time and in packets of 4x4 rays. Every
+ * invocation traces all the rays of a 256x256 image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RayBenchmark {
+  private static final int SIZE = 256;
+
+  @Param({"simple-sphere", "simple-box", "scene"})
+  public String scene;
+
+  private RTScene compiled;
+  private RTScene.Intersector intersector;
+  private Ray ray;
+  private HitRecord hitRecord;
+  private RayPacket packet;
+
+  @Setup
+  public void setup() throws Exception {
+    IScenegraph<?> scenegraph = Scenes.load(scene);
+    RTScenegraphRenderer renderer = new RTScenegraphRenderer();
+    scenegraph.setRenderer(renderer);
+    compiled = renderer.compileScene(scenegraph.getRoot(), Scenes.camera());
+    intersector = compiled.newIntersector();
+    ray = new Ray();
+    hitRecord = new HitRecord();
+    packet = new RayPacket(16);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE * SIZE)
+  public int rays() {
+    int hits = 0;
+    for (int j = 0; j < SIZE; j++) {
+      for (int i = 0; i < SIZE; i++) {
+        Scenes.primaryRay(ray, i, j, SIZE, SIZE);
+        hitRecord.reset();
+        compiled.intersect(ray, hitRecord, intersector);
+        if (hitRecord.intersected())
+          hits++;
+      }
+    }
+    return hits;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE * SIZE)
+  public int packets() {
+    int hits = 0;
+    for (int j = 0; j < SIZE; j += 4) {
+      for (int i = 0; i < SIZE; i += 4) {
+        packet.reset();
+        for (int lane = 0; lane < 16; lane++) {
+          Scenes.primaryRay(ray, i + (lane % 4), j + (lane / 4), SIZE, SIZE);
+          packet.ox[lane] = 0;
+          packet.oy[lane] = 0;
+          packet.oz[lane] = 0;
+          packet.dx[lane] = ray.direction.x;
+          packet.dy[lane] = ray.direction.y;
+          packet.dz[lane] = ray.direction.z;
+        }
+        compiled.intersect(packet, intersector);
+        for (int lane = 0; lane < 16; lane++)
+          if (packet.isHit(lane))
+            hits++;
+      }
+    }
+    return hits;
+  }
+}
@@ -0,0 +1,58 @@
+package benchmark;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.io.InputStream;
+import java.util.Stack;
+
+import sgraph.IScenegraph;
+import sgraph.SceneXMLReader;
+import util.VertexProducer;
+
+/**
+ * Loads the scenes that the benchmarks are run on, and the camera they are
+ * seen from. This is the same camera that the viewer starts with.
+ */
+class Scenes {
+  private Scenes() {
+  }
+
+  /**
+   * Import one of the scene graphs in the resources, by its name without the
+   * folder or extension (for example "simple-sphere")
+   */
+  static IScenegraph<?> load(String name) throws Exception {
+    InputStream in = Scenes.class.getClassLoader()
+            .getResourceAsStream("scenegraphs/" + name + ".xml");
+    if (in == null)
+      throw new IllegalArgumentException("No scene graph called " + name);
+    //the vertex producer of the viewer lives in the default package, which
+    //cannot be imported from here
+    VertexProducer<?> producer = (VertexProducer<?>)
+            Class.forName("VertexAttribProducer").getConstructor().newInstance();
+    try {
+      return SceneXMLReader.importScenegraph(in, producer);
+    } finally {
+      in.close();
+    }
+  }
+
+  static Stack<Matrix4f> camera() {
+    Stack<Matrix4f> modelView = new Stack<Matrix4f>();
+    modelView.push(new Matrix4f().lookAt(new Vector3f(-50, 120, 200),
+            new Vector3f(0, 0, 0), new Vector3f(0, 1, 0)));
+    return modelView;
+  }
+
+  /**
+   * Point a ray from the eye through the center of pixel (i, j) of an image of
+   * the given size, with a vertical field of view of 120 degrees. This is how
+   * the renderer sets up its primary rays.
+   */
+  static void primaryRay(sgraph.Ray ray, int i, int j, int width, int height) {
+    float z = -0.5f * height / (float) Math.tan(Math.toRadians(60));
+    ray.start.set(0, 0, 0, 1);
+    ray.direction.set(i - 0.5f * width, j - 0.5f * height, z, 0);
+  }
+}
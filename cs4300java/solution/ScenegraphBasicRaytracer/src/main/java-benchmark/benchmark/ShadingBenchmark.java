@@ -0,0 +1,97 @@
+package benchmark;
+
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+import sgraph.HitRecord;
+import sgraph.IScenegraph;
+import sgraph.RTScene;
+import sgraph.RTScenegraphRenderer;
+import sgraph.Ray;
+import sgraph.RenderSettings;
+
+/**
+ * The cost of shading, per pixel. Shading is not reachable on its own, so this
+ * measures the same 256x256 image on one thread twice: only intersecting its
+ * primary rays, and rendering it with primary rays only (no reflection or
+ * refraction, no anti-aliasing, nothing written). The difference between the
+ * two is the cost of shading a pixel, with or without shadow rays.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShadingBenchmark {
+  private static final int SIZE = 256;
+
+  @Param({"simple-sphere", "simple-box", "scene"})
+  public String scene;
+
+  @Param({"false", "true"})
+  public boolean shadows;
+
+  private IScenegraph<?> scenegraph;
+  private Stack<Matrix4f> modelView;
+  private RTScene compiled;
+  private RTScene.Intersector intersector;
+  private Ray ray;
+  private HitRecord hitRecord;
+
+  @Setup
+  public void setup() throws Exception {
+    scenegraph = Scenes.load(scene);
+    RTScenegraphRenderer renderer = new RTScenegraphRenderer();
+    RenderSettings settings = new RenderSettings();
+    settings.setSize(SIZE, SIZE);
+    settings.setOutput(null);
+    settings.setMaxDepth(0);
+    settings.setShadows(shadows);
+    renderer.setRenderSettings(settings);
+    renderer.setParallel(false);
+    scenegraph.setRenderer(renderer);
+
+    modelView = Scenes.camera();
+    compiled = renderer.compileScene(scenegraph.getRoot(), modelView);
+    intersector = compiled.newIntersector();
+    ray = new Ray();
+    hitRecord = new HitRecord();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE * SIZE)
+  public int intersectOnly() {
+    int hits = 0;
+    for (int j = 0; j < SIZE; j++) {
+      for (int i = 0; i < SIZE; i++) {
+        Scenes.primaryRay(ray, i, j, SIZE, SIZE);
+        hitRecord.reset();
+        compiled.intersect(ray, hitRecord, intersector);
+        if (hitRecord.intersected())
+          hits++;
+      }
+    }
+    return hits;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE * SIZE)
+  public void intersectAndShade() {
+    scenegraph.draw(modelView);
+  }
+}
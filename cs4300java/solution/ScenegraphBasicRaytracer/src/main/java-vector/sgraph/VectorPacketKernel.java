@@ -0,0 +1,160 @@
+package sgraph;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Packet tests written with the incubating vector API, which processes as
+ * many lanes of a packet at once as the hardware allows. This class is only
+ * compiled on JDKs that have jdk.incubator.vector (see the "vector" profile in
+ * the pom), and only used if {@link PacketKernel#get()} is asked for it. It
+ * pays off for packets at least as wide as the preferred vector of the
+ * hardware, e.g. 8 rays with AVX2 and 16 with AVX-512.
+ *
+ * The box test is inherited from {@link ScalarPacketKernel}: its branches on
+ * near-zero directions do not gain from being vectorized.
+ */
+class VectorPacketKernel extends ScalarPacketKernel {
+  private static final float EPSILON = 1e-9f;
+  /**
+   * The SPECIES must be a constant for the JIT to turn vector operations into
+   * instructions, so all packets use the one the hardware prefers. Packets
+   * smaller than it use the scalar loops instead. Packet sizes are powers of
+   * two, so a packet that is not smaller is a whole number of vectors.
+   */
+  private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+  @Override
+  public float enterBox(float[] bounds, int o, RayPacket packet) {
+    if (packet.size < SPECIES.length())
+      return super.enterBox(bounds, o, packet);
+    float enter = Float.POSITIVE_INFINITY;
+    for (int i = 0; i < packet.size; i += SPECIES.length()) {
+      FloatVector ox = FloatVector.fromArray(SPECIES, packet.ox, i);
+      FloatVector oy = FloatVector.fromArray(SPECIES, packet.oy, i);
+      FloatVector oz = FloatVector.fromArray(SPECIES, packet.oz, i);
+      FloatVector idx = FloatVector.fromArray(SPECIES, packet.idx, i);
+      FloatVector idy = FloatVector.fromArray(SPECIES, packet.idy, i);
+      FloatVector idz = FloatVector.fromArray(SPECIES, packet.idz, i);
+      FloatVector t = FloatVector.fromArray(SPECIES, packet.t, i);
+
+      FloatVector t1 = ox.neg().add(bounds[o]).mul(idx);
+      FloatVector t2 = ox.neg().add(bounds[o + 3]).mul(idx);
+      FloatVector tmin = t1.min(t2);
+      FloatVector tmax = t1.max(t2);
+
+      t1 = oy.neg().add(bounds[o + 1]).mul(idy);
+      t2 = oy.neg().add(bounds[o + 4]).mul(idy);
+      tmin = tmin.max(t1.min(t2));
+      tmax = tmax.min(t1.max(t2));
+
+      t1 = oz.neg().add(bounds[o + 2]).mul(idz);
+      t2 = oz.neg().add(bounds[o + 5]).mul(idz);
+      tmin = tmin.max(t1.min(t2)).max(0);
+      tmax = tmax.min(t1.max(t2));
+
+      VectorMask<Float> hit = tmin.compare(VectorOperators.LE, tmax)
+              .and(tmin.compare(VectorOperators.LT, t));
+      enter = Math.min(enter, tmin.reduceLanes(VectorOperators.MIN, hit));
+    }
+    return enter;
+  }
+
+  @Override
+  public void intersectSphere(RayPacket packet) {
+    if (packet.size < SPECIES.length()) {
+      super.intersectSphere(packet);
+      return;
+    }
+    for (int i = 0; i < packet.size; i += SPECIES.length()) {
+      FloatVector ox = FloatVector.fromArray(SPECIES, packet.ox, i);
+      FloatVector oy = FloatVector.fromArray(SPECIES, packet.oy, i);
+      FloatVector oz = FloatVector.fromArray(SPECIES, packet.oz, i);
+      FloatVector dx = FloatVector.fromArray(SPECIES, packet.dx, i);
+      FloatVector dy = FloatVector.fromArray(SPECIES, packet.dy, i);
+      FloatVector dz = FloatVector.fromArray(SPECIES, packet.dz, i);
+      FloatVector t = FloatVector.fromArray(SPECIES, packet.t, i);
+
+      FloatVector a = dx.mul(dx).add(dy.mul(dy)).add(dz.mul(dz));
+      FloatVector b = ox.mul(dx).add(oy.mul(dy)).add(oz.mul(dz)).mul(2);
+      FloatVector c = ox.mul(ox).add(oy.mul(oy)).add(oz.mul(oz)).sub(1);
+      FloatVector disc = b.mul(b).sub(a.mul(c).mul(4));
+      VectorMask<Float> real = disc.compare(VectorOperators.GE, 0);
+      FloatVector root = disc.max(0).sqrt();
+      FloatVector twoA = a.mul(2);
+      FloatVector t1 = b.neg().add(root).div(twoA);
+      FloatVector t2 = b.neg().sub(root).div(twoA);
+      FloatVector tHit = t1.blend(t2, t2.compare(VectorOperators.GE, 0));
+
+      VectorMask<Float> hit = real.and(tHit.compare(VectorOperators.GE, 0))
+              .and(tHit.compare(VectorOperators.LT, t));
+      t.blend(tHit, hit).intoArray(packet.t, i);
+      for (int k = 0; k < SPECIES.length(); k++) {
+        if (hit.laneIsSet(k))
+          packet.primitive[i + k] = -1;
+      }
+    }
+  }
+
+  @Override
+  public void intersectTriangle(float[] positions, int a, int b, int c,
+                                int triangle, RayPacket packet) {
+    if (packet.size < SPECIES.length()) {
+      super.intersectTriangle(positions, a, b, c, triangle, packet);
+      return;
+    }
+    float ax = positions[a], ay = positions[a + 1], az = positions[a + 2];
+    float e1x = positions[b] - ax;
+    float e1y = positions[b + 1] - ay;
+    float e1z = positions[b + 2] - az;
+    float e2x = positions[c] - ax;
+    float e2y = positions[c + 1] - ay;
+    float e2z = positions[c + 2] - az;
+
+    for (int i = 0; i < packet.size; i += SPECIES.length()) {
+      FloatVector dx = FloatVector.fromArray(SPECIES, packet.dx, i);
+      FloatVector dy = FloatVector.fromArray(SPECIES, packet.dy, i);
+      FloatVector dz = FloatVector.fromArray(SPECIES, packet.dz, i);
+      FloatVector t = FloatVector.fromArray(SPECIES, packet.t, i);
+
+      FloatVector px = dy.mul(e2z).sub(dz.mul(e2y));
+      FloatVector py = dz.mul(e2x).sub(dx.mul(e2z));
+      FloatVector pz = dx.mul(e2y).sub(dy.mul(e2x));
+      FloatVector det = px.mul(e1x).add(py.mul(e1y)).add(pz.mul(e1z));
+      FloatVector invDet = FloatVector.broadcast(SPECIES, 1).div(det);
+
+      FloatVector sx = FloatVector.fromArray(SPECIES, packet.ox, i).sub(ax);
+      FloatVector sy = FloatVector.fromArray(SPECIES, packet.oy, i).sub(ay);
+      FloatVector sz = FloatVector.fromArray(SPECIES, packet.oz, i).sub(az);
+      FloatVector u = sx.mul(px).add(sy.mul(py)).add(sz.mul(pz)).mul(invDet);
+
+      FloatVector qx = sy.mul(e1z).sub(sz.mul(e1y));
+      FloatVector qy = sz.mul(e1x).sub(sx.mul(e1z));
+      FloatVector qz = sx.mul(e1y).sub(sy.mul(e1x));
+      FloatVector v = dx.mul(qx).add(dy.mul(qy)).add(dz.mul(qz)).mul(invDet);
+      FloatVector tHit = qx.mul(e2x).add(qy.mul(e2y)).add(qz.mul(e2z)).mul(invDet);
+
+      VectorMask<Float> hit = det.lanewise(VectorOperators.ABS)
+              .compare(VectorOperators.GE, EPSILON)
+              .and(u.compare(VectorOperators.GE, 0))
+              .and(u.compare(VectorOperators.LE, 1))
+              .and(v.compare(VectorOperators.GE, 0))
+              .and(u.add(v).compare(VectorOperators.LE, 1))
+              .and(tHit.compare(VectorOperators.GT, 0))
+              .and(tHit.compare(VectorOperators.LT, t));
+      if (!hit.anyTrue())
+        continue;
+      t.blend(tHit, hit).intoArray(packet.t, i);
+      FloatVector.fromArray(SPECIES, packet.u, i).blend(u, hit)
+              .intoArray(packet.u, i);
+      FloatVector.fromArray(SPECIES, packet.v, i).blend(v, hit)
+              .intoArray(packet.v, i);
+      for (int k = 0; k < SPECIES.length(); k++) {
+        if (hit.laneIsSet(k))
+          packet.primitive[i + k] = triangle;
+      }
+    }
+  }
+}
@@ -0,0 +1,187 @@
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Stack;
+
+import sgraph.RenderSettings;
+import sgraph.RenderStats;
+
+/**
+ * Ray traces a scene from every view of a list of cameras, one image per view,
+ * without a window. Nothing of OpenGL is used, so this runs on machines with
+ * no display or graphics card; images for textures are read with AWT in
+ * headless mode.
+ *
+ * Usage: BatchRaytracer [options] scene cameras [outputDirectory]. The scene
+ * is a resource name (such as scenegraphs/scene.xml) or a file, and the images
+ * are written to the output directory (default output), each named after its
+ * view. The options are:
+ * <ul>
+ * <li>-size WIDTHxHEIGHT: the resolution of the images (default 800x800)</li>
+ * <li>-format png|ppm: the format of the images (default png)</li>
+ * <li>-samples N: anti-alias edges with up to N samples per pixel</li>
+ * <li>-lights N: light every point with N point lights chosen at random</li>
+ * <li>-pathtrace: path trace the images instead</li>
+ * <li>-report: write a JSON report of the work done next to every image</li>
+ * </ul>
+ *
+ * Every line of the camera file that is not blank or a comment (starting with
+ * #) is a view: its name, the eye, the point looked at and the up direction,
+ * and optionally the vertical field of view in degrees (default 120):
+ * <pre>
+ * front  -50 120 200   0 0 0   0 1 0
+ * top      0 300   0   0 0 0   0 0 -1   60
+ * </pre>
+ */
+public class BatchRaytracer {
+  /**
+   * A named view of the scene
+   */
+  private static class Camera {
+    final String name;
+    final Vector3f eye;
+    final Vector3f center;
+    final Vector3f up;
+    final float fieldOfView;
+
+    Camera(String name, Vector3f eye, Vector3f center, Vector3f up,
+           float fieldOfView) {
+      this.name = name;
+      this.eye = eye;
+      this.center = center;
+      this.up = up;
+      this.fieldOfView = fieldOfView;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    //textures are read as AWT images, which must not look for a display
+    System.setProperty("java.awt.headless", "true");
+
+    RenderSettings settings = new RenderSettings();
+    boolean report = false;
+    List<String> files = new ArrayList<String>();
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-size":
+          String[] size = option(args, ++i).split("x");
+          if (size.length != 2)
+            usage();
+          settings.setSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+          break;
+        case "-format":
+          settings.setFormat(RenderSettings.Format.valueOf(
+                  option(args, ++i).toUpperCase(Locale.ROOT)));
+          break;
+        case "-samples":
+          settings.setMaxSamples(Integer.parseInt(option(args, ++i)));
+          break;
+        case "-lights":
+          settings.setLightSamples(Integer.parseInt(option(args, ++i)));
+          break;
+        case "-pathtrace":
+          settings.setPathTracing(true);
+          break;
+        case "-report":
+          report = true;
+          break;
+        default:
+          if (args[i].startsWith("-"))
+            usage();
+          files.add(args[i]);
+      }
+    }
+    if ((files.size() < 2) || (files.size() > 3))
+      usage();
+    String scene = files.get(0);
+    List<Camera> cameras = readCameras(files.get(1));
+    File outputDirectory = new File((files.size() > 2) ? files.get(2) : "output");
+    if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+      throw new IllegalArgumentException("Cannot create " + outputDirectory);
+
+    InputStream in = BatchRaytracer.class.getClassLoader().getResourceAsStream(scene);
+    if (in == null)
+      in = new FileInputStream(scene);
+    sgraph.IScenegraph<VertexAttrib> scenegraph =
+            sgraph.SceneXMLReader.importScenegraph(in, new VertexAttribProducer());
+    in.close();
+    sgraph.RTScenegraphRenderer renderer = new sgraph.RTScenegraphRenderer();
+    scenegraph.setRenderer(renderer);
+
+    String extension = settings.getFormat().name().toLowerCase(Locale.ROOT);
+    for (Camera camera : cameras) {
+      settings.setFieldOfView(camera.fieldOfView);
+      settings.setOutput(new File(outputDirectory,
+              camera.name + "." + extension).getPath());
+      if (report)
+        settings.setReport(new File(outputDirectory,
+                camera.name + ".json").getPath());
+      renderer.setRenderSettings(settings);
+
+      Stack<Matrix4f> modelView = new Stack<Matrix4f>();
+      modelView.push(new Matrix4f().lookAt(camera.eye, camera.center, camera.up));
+      long start = System.nanoTime();
+      renderer.draw(scenegraph.getRoot(), modelView);
+      RenderStats stats = renderer.getRenderStats();
+      System.out.printf("%s: %.1f ms, %d rays%n", settings.getOutput(),
+              (System.nanoTime() - start) / 1e6, stats.getTotalRays());
+    }
+  }
+
+  /**
+   * Read the views of a camera file
+   */
+  private static List<Camera> readCameras(String path) throws IOException {
+    List<Camera> cameras = new ArrayList<Camera>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+      String line;
+      int number = 0;
+      while ((line = reader.readLine()) != null) {
+        number++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+        String[] words = line.split("\\s+");
+        if ((words.length != 10) && (words.length != 11))
+          throw new IllegalArgumentException(path + ":" + number
+                  + ": expected a name, eye, center, up and optional field of view");
+        float[] numbers = new float[words.length - 1];
+        try {
+          for (int i = 0; i < numbers.length; i++)
+            numbers[i] = Float.parseFloat(words[i + 1]);
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(path + ":" + number + ": not a number");
+        }
+        cameras.add(new Camera(words[0],
+                new Vector3f(numbers[0], numbers[1], numbers[2]),
+                new Vector3f(numbers[3], numbers[4], numbers[5]),
+                new Vector3f(numbers[6], numbers[7], numbers[8]),
+                (numbers.length > 9) ? numbers[9] : 120));
+      }
+    }
+    if (cameras.isEmpty())
+      throw new IllegalArgumentException(path + " has no cameras");
+    return cameras;
+  }
+
+  private static String option(String[] args, int i) {
+    if (i >= args.length)
+      usage();
+    return args[i];
+  }
+
+  private static void usage() {
+    System.err.println("Usage: BatchRaytracer [-size WIDTHxHEIGHT] [-format png|ppm] "
+            + "[-samples N] [-lights N] [-pathtrace] [-report] scene cameras [outputDirectory]");
+    System.exit(1);
+  }
+}
@@ -102,6 +102,11 @@ public class JOGLFrame extends JFrame {
                     "tracing complete.", "Success!", JOptionPane.INFORMATION_MESSAGE);
           }).start();
           break;
+        case KeyEvent.VK_P:
+          //toggle the progressive ray traced preview over the OpenGL render
+          view.setPreview(!view.isPreviewEnabled(), canvas::repaint);
+          canvas.repaint();
+          break;
       }
     }
   }
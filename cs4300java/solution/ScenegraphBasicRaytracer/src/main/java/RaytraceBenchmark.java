@@ -0,0 +1,104 @@
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Stack;
+
+import sgraph.HitRecord;
+import sgraph.RTScene;
+import sgraph.RayPacket;
+
+/**
+ * Measures how fast the primary rays of a scene are traced (intersection
+ * only, no shading), one ray at a time and in packets of 4, 8 and 16 rays.
+ *
+ * Usage: RaytraceBenchmark [scene] [width height]. The scene is a resource
+ * name (default scenegraphs/scene.xml) or a file. Run with
+ * -Draytracer.vector=true --add-modules jdk.incubator.vector to measure the
+ * packets with the vector API.
+ */
+public class RaytraceBenchmark {
+  private static final int ITERATIONS = 5;
+
+  public static void main(String[] args) throws Exception {
+    String name = (args.length > 0) ? args[0] : "scenegraphs/scene.xml";
+    int width = (args.length > 2) ? Integer.parseInt(args[1]) : 800;
+    int height = (args.length > 2) ? Integer.parseInt(args[2]) : 800;
+
+    InputStream in = RaytraceBenchmark.class.getClassLoader().getResourceAsStream(name);
+    if (in == null)
+      in = new FileInputStream(name);
+    sgraph.IScenegraph<VertexAttrib> scenegraph =
+            sgraph.SceneXMLReader.importScenegraph(in, new VertexAttribProducer());
+    sgraph.RTScenegraphRenderer renderer = new sgraph.RTScenegraphRenderer();
+    scenegraph.setRenderer(renderer);
+
+    Stack<Matrix4f> modelView = new Stack<Matrix4f>();
+    modelView.push(new Matrix4f().lookAt(new Vector3f(-50, 120, 200),
+            new Vector3f(0, 0, 0), new Vector3f(0, 1, 0)));
+    RTScene scene = renderer.compileScene(scenegraph.getRoot(), modelView);
+
+    System.out.println(name + ": " + scene.getInstanceCount() + " instances, "
+            + width + "x" + height + " primary rays");
+    for (int packetSize : new int[]{1, 4, 8, 16}) {
+      double best = 0;
+      int hitCount = 0;
+      for (int i = 0; i < ITERATIONS; i++) {
+        long start = System.nanoTime();
+        int hits = trace(scene, width, height, 120.0f, packetSize);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        best = Math.max(best, width * height / seconds);
+        hitCount = hits;
+      }
+      System.out.printf("%s: %.2f Mrays/s (%d hits)%n",
+              (packetSize == 1) ? "single rays" : "packets of " + packetSize,
+              best / 1e6, hitCount);
+    }
+  }
+
+  /**
+   * Trace every primary ray of the image on this thread, and return the
+   * number of rays that hit something
+   */
+  private static int trace(RTScene scene, int width, int height, float fovy,
+                           int packetSize) {
+    RTScene.Intersector intersector = scene.newIntersector();
+    float z = -0.5f * height / (float) Math.tan(Math.toRadians(0.5 * fovy));
+    int hits = 0;
+
+    if (packetSize == 1) {
+      sgraph.Ray ray = new sgraph.Ray();
+      HitRecord hitRecord = new HitRecord();
+      for (int j = 0; j < height; j++) {
+        for (int i = 0; i < width; i++) {
+          ray.direction.set(i - 0.5f * width, j - 0.5f * height, z, 0);
+          hitRecord.reset();
+          scene.intersect(ray, hitRecord, intersector);
+          if (hitRecord.intersected())
+            hits++;
+        }
+      }
+      return hits;
+    }
+
+    RayPacket packet = new RayPacket(packetSize);
+    int packetWidth = (packetSize == 4) ? 2 : 4;
+    int packetHeight = packetSize / packetWidth;
+    for (int j = 0; j < height; j += packetHeight) {
+      for (int i = 0; i < width; i += packetWidth) {
+        packet.reset();
+        for (int lane = 0; lane < packetSize; lane++) {
+          packet.dx[lane] = i + (lane % packetWidth) - 0.5f * width;
+          packet.dy[lane] = j + (lane / packetWidth) - 0.5f * height;
+          packet.dz[lane] = z;
+        }
+        scene.intersect(packet, intersector);
+        for (int lane = 0; lane < packetSize; lane++)
+          if (packet.isHit(lane))
+            hits++;
+      }
+    }
+    return hits;
+  }
+}
@@ -0,0 +1,50 @@
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import sgraph.RenderFarm;
+import sgraph.RenderSettings;
+
+/**
+ * Ray traces a scene on a render farm of worker processes on this host, and
+ * writes the image.
+ *
+ * Usage: RenderFarmDemo [scene] [workers] [output] [failing]. The scene is a
+ * resource name (default scenegraphs/scene.xml) or a file, there are 4
+ * workers by default and the image is written to output/raytrace.png.
+ *
+ * To see the farm recover from workers that fail, give a number of failing
+ * workers (none by default): that many of the workers disconnect after
+ * drawing a few tiles, and the tiles they were drawing are drawn by the
+ * others. The image is the same.
+ */
+public class RenderFarmDemo {
+  public static void main(String[] args) throws Exception {
+    String scene = (args.length > 0) ? args[0] : "scenegraphs/scene.xml";
+    int workers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+    String output = (args.length > 2) ? args[2] : "output/raytrace.png";
+    int failing = (args.length > 3) ? Integer.parseInt(args[3]) : 0;
+    if ((failing < 0) || (failing >= workers))
+      throw new IllegalArgumentException("At least one worker must not fail");
+
+    RenderSettings settings = new RenderSettings();
+    settings.setOutput(output);
+    settings.setTileSize(64);
+    Matrix4f modelView = new Matrix4f().lookAt(new Vector3f(-50, 120, 200),
+            new Vector3f(0, 0, 0), new Vector3f(0, 1, 0));
+
+    try (RenderFarm farm = new RenderFarm()) {
+      farm.launchWorkers(workers - failing, RenderWorker.class.getName(), scene);
+      //every failing worker fails after a different number of tiles
+      for (int i = 0; i < failing; i++)
+        farm.launchWorkers(1, RenderWorker.class.getName(), scene,
+                Integer.toString(2 + 3 * i));
+      //the failing workers must have joined for the farm to recover from them
+      if (!farm.awaitWorkers(workers, 60000) && (farm.getWorkerCount() == 0))
+        throw new IllegalStateException("No render farm workers connected");
+      long start = System.nanoTime();
+      farm.render(modelView, settings);
+      System.out.printf("%s: %d of %d workers left, %.1f ms%n", scene,
+              farm.getWorkerCount(), workers, (System.nanoTime() - start) / 1e6);
+    }
+  }
+}
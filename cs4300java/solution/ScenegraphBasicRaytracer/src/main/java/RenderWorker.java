@@ -0,0 +1,34 @@
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+import sgraph.RenderFarmWorker;
+
+/**
+ * Starts a render farm worker, which loads a scene graph and draws the tiles
+ * that a coordinator hands it.
+ *
+ * Usage: RenderWorker host port scene [tiles]. The scene is a resource name
+ * (such as scenegraphs/scene.xml) or a file. If a number of tiles is given,
+ * the worker fails on purpose once it has drawn that many (see
+ * {@link RenderFarmWorker#setTileLimit}).
+ */
+public class RenderWorker {
+  public static void main(String[] args) throws Exception {
+    if ((args.length != 3) && (args.length != 4)) {
+      System.err.println("Usage: RenderWorker host port scene [tiles]");
+      System.exit(1);
+    }
+
+    InputStream in = RenderWorker.class.getClassLoader().getResourceAsStream(args[2]);
+    if (in == null)
+      in = new FileInputStream(args[2]);
+    sgraph.IScenegraph<VertexAttrib> scenegraph =
+            sgraph.SceneXMLReader.importScenegraph(in, new VertexAttribProducer());
+    in.close();
+
+    RenderFarmWorker worker = new RenderFarmWorker(scenegraph);
+    if (args.length > 3)
+      worker.setTileLimit(Integer.parseInt(args[3]));
+    worker.serve(args[0], Integer.parseInt(args[1]));
+  }
+}
@@ -8,9 +8,12 @@ import org.joml.Vector3f;
 
 import java.io.InputStream;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -26,7 +29,22 @@ public class View {
   private Matrix4f projection, trackballTransform;
   private float trackballRadius;
   private Vector2f mousePos;
-  sgraph.IScenegraphRenderer openGLRenderer, raytraceRenderer;
+  sgraph.IScenegraphRenderer openGLRenderer;
+  sgraph.RTScenegraphRenderer raytraceRenderer, previewRenderer;
+
+  /**
+   * The progressive ray traced preview, drawn over the OpenGL render when it
+   * is turned on. It is rendered on its own thread, one job at a time, and
+   * every change of the view cancels the job in progress and starts a new one.
+   */
+  private volatile boolean previewEnabled;
+  private ExecutorService previewExecutor;
+  private volatile PreviewJob previewJob;
+  private volatile boolean previewDirty;
+  private Runnable previewUpdated;
+  private int previewWidth, previewHeight;
+  private int[] previewTexture, previewFramebuffer;
+  private IntBuffer previewPixels;
 
 
   private util.ShaderProgram program;
@@ -46,6 +64,14 @@ public class View {
 
     FOVY = 120.0f;
 
+    previewEnabled = false;
+    previewExecutor = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "Ray trace preview");
+      t.setDaemon(true);
+      return t;
+    });
+    previewTexture = new int[]{0};
+    previewFramebuffer = new int[]{0};
   }
 
   public void initScenegraph(GLAutoDrawable gla, InputStream in) throws Exception {
@@ -66,9 +92,21 @@ public class View {
     scenegraph.setRenderer(openGLRenderer);
 
 
+    //the ray tracers share one copy of the meshes and textures, and draw the
+    //root of the scene graph directly so that the scene graph keeps using the
+    //OpenGL renderer while they run
+    cancelPreview();
     raytraceRenderer = new sgraph.RTScenegraphRenderer();
-
-
+    //the image ray traced on request is written with a report of its work
+    sgraph.RenderSettings settings = new sgraph.RenderSettings();
+    settings.setReport("output/raytrace.json");
+    raytraceRenderer.setRenderSettings(settings);
+    previewRenderer = new sgraph.RTScenegraphRenderer();
+    scenegraph.setRenderer(raytraceRenderer);
+    previewRenderer.shareMeshesAndTextures(raytraceRenderer);
+    scenegraph.setRenderer(openGLRenderer);
+    if (previewEnabled)
+      startPreview();
   }
 
   public void init(GLAutoDrawable gla) throws Exception {
@@ -102,6 +140,8 @@ public class View {
 
 
     drawOpenGL(gla);
+    if (previewEnabled)
+      drawPreview(gla);
   }
 
 
@@ -146,11 +186,14 @@ public class View {
   }
 
   public void raytrace() {
+    Stack<Matrix4f> modelView = raytraceModelView();
+    raytraceRenderer.draw(scenegraph.getRoot(), modelView);
+    modelView.pop();
+  }
 
+  private Stack<Matrix4f> raytraceModelView() {
     Stack<Matrix4f> modelView = new Stack<Matrix4f>();
 
-    while (!modelView.empty())
-      modelView.pop();
         /*
          *In order to change the shape of this triangle, we can either move the vertex positions above, or "transform" them
          * We use a modelview matrix to store the transformations to be applied to our triangle.
@@ -159,17 +202,162 @@ public class View {
     modelView.push(new Matrix4f());
     modelView.peek().lookAt(new Vector3f(new Vector3f(-50, 120, 200)), new Vector3f(0, 0, 0), new Vector3f(0, 1, 0))
             .mul(trackballTransform);
+    return modelView;
+  }
+
+  /**
+   * Turn the progressive ray traced preview on or off.
+   *
+   * @param updated called (from any thread) whenever more of the preview has
+   *                been rendered and the window should be redrawn
+   */
+  public void setPreview(boolean enabled, Runnable updated) {
+    previewUpdated = updated;
+    previewEnabled = enabled;
+    if (enabled)
+      startPreview();
+    else
+      cancelPreview();
+  }
 
-    try {
-      scenegraph.setRenderer(raytraceRenderer);
-    } catch (Exception e) {
+  public boolean isPreviewEnabled() {
+    return previewEnabled;
+  }
+
+  /**
+   * Cancel the preview in progress, if any, and start rendering a new one
+   * for the current view and window size
+   */
+  private void startPreview() {
+    if ((scenegraph == null) || (previewRenderer == null)
+            || (WINDOW_WIDTH <= 0) || (WINDOW_HEIGHT <= 0))
+      return;
+    cancelPreview();
+
+    sgraph.RenderSettings settings = new sgraph.RenderSettings();
+    settings.setSize(WINDOW_WIDTH, WINDOW_HEIGHT);
+    settings.setFieldOfView(FOVY);
+    settings.setOutput(null);
+    settings.setProgressive(true);
+
+    PreviewJob job = new PreviewJob(settings, raytraceModelView());
+    previewJob = job;
+    previewExecutor.submit(job);
+  }
+
+  private void cancelPreview() {
+    PreviewJob job = previewJob;
+    if (job != null)
+      job.cancelled = true;
+  }
+
+  /**
+   * Upload whatever has been rendered of the preview into a texture, and
+   * copy it over the window
+   */
+  private void drawPreview(GLAutoDrawable gla) {
+    GL3 gl = gla.getGL().getGL3();
+    PreviewJob job = previewJob;
+    int[] pixels = previewRenderer.getFramebuffer();
+    if ((job == null) || (pixels == null))
+      return;
+    int width = job.settings.getWidth();
+    int height = job.settings.getHeight();
+    if (pixels.length != width * height)
+      return;
+
+    if ((previewTexture[0] == 0) || (width != previewWidth) || (height != previewHeight)) {
+      deletePreviewTexture(gl);
+      previewWidth = width;
+      previewHeight = height;
+      previewPixels = Buffers.newDirectIntBuffer(width * height);
+      gl.glGenTextures(1, previewTexture, 0);
+      gl.glBindTexture(GL.GL_TEXTURE_2D, previewTexture[0]);
+      gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGBA8, width, height, 0,
+              GL.GL_BGRA, GL3.GL_UNSIGNED_INT_8_8_8_8_REV, null);
+      gl.glGenFramebuffers(1, previewFramebuffer, 0);
+      gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, previewFramebuffer[0]);
+      gl.glFramebufferTexture2D(GL3.GL_READ_FRAMEBUFFER, GL.GL_COLOR_ATTACHMENT0,
+              GL.GL_TEXTURE_2D, previewTexture[0], 0);
+      previewDirty = true;
     }
-    scenegraph.draw(modelView);
-    modelView.pop();
 
-    try {
-      scenegraph.setRenderer(openGLRenderer);
-    } catch (Exception e) {
+    if (previewDirty) {
+      previewDirty = false;
+      previewPixels.clear();
+      previewPixels.put(pixels);
+      previewPixels.rewind();
+      gl.glBindTexture(GL.GL_TEXTURE_2D, previewTexture[0]);
+      gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, width, height,
+              GL.GL_BGRA, GL3.GL_UNSIGNED_INT_8_8_8_8_REV, previewPixels);
+    }
+
+    //the preview is stored from the top row down, so flip it while copying
+    gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, previewFramebuffer[0]);
+    gl.glBindFramebuffer(GL3.GL_DRAW_FRAMEBUFFER, gl.getDefaultDrawFramebuffer());
+    gl.glBlitFramebuffer(0, 0, width, height, 0, WINDOW_HEIGHT, WINDOW_WIDTH, 0,
+            GL.GL_COLOR_BUFFER_BIT, GL.GL_NEAREST);
+    gl.glBindFramebuffer(GL3.GL_READ_FRAMEBUFFER, gl.getDefaultReadFramebuffer());
+  }
+
+  private void deletePreviewTexture(GL3 gl) {
+    if (previewTexture[0] != 0) {
+      gl.glDeleteTextures(1, previewTexture, 0);
+      gl.glDeleteFramebuffers(1, previewFramebuffer, 0);
+      previewTexture[0] = 0;
+      previewFramebuffer[0] = 0;
+    }
+  }
+
+  /**
+   * One progressive ray trace of the preview. It marks the preview as changed
+   * whenever a tile is done, and stops as soon as it is cancelled.
+   */
+  private class PreviewJob implements Runnable, sgraph.IRenderListener {
+    private final sgraph.RenderSettings settings;
+    private final Stack<Matrix4f> modelView;
+    private volatile boolean cancelled;
+
+    PreviewJob(sgraph.RenderSettings settings, Stack<Matrix4f> modelView) {
+      this.settings = settings;
+      this.modelView = modelView;
+      this.cancelled = false;
+    }
+
+    @Override
+    public void run() {
+      if (cancelled)
+        return;
+      previewRenderer.setRenderSettings(settings);
+      try {
+        previewRenderer.draw(scenegraph.getRoot(), modelView, this);
+      } catch (RuntimeException e) {
+        System.err.println("Preview failed: " + e.getMessage());
+      }
+    }
+
+    @Override
+    public void tileRendered(int pass, int x0, int y0, int x1, int y1) {
+      updated();
+    }
+
+    @Override
+    public void passRendered(int pass, int passes) {
+      updated();
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    private void updated() {
+      if (cancelled)
+        return;
+      previewDirty = true;
+      Runnable r = previewUpdated;
+      if (r != null)
+        r.run();
     }
   }
 
@@ -190,6 +378,10 @@ public class View {
     trackballTransform = new Matrix4f().rotate(delta.x / trackballRadius, 0, 1, 0)
             .rotate(delta.y / trackballRadius, 1, 0, 0)
             .mul(trackballTransform);
+
+    //the view has changed, so the preview in progress is out of date
+    if (previewEnabled)
+      startPreview();
   }
 
   public void reshape(GLAutoDrawable gla, int x, int y, int width, int height) {
@@ -201,10 +393,15 @@ public class View {
     projection = new Matrix4f().perspective((float) Math.toRadians(FOVY), (float) width / height, 0.1f, 10000.0f);
     // proj = new Matrix4f().ortho(-400,400,-400,400,0.1f,10000.0f);
 
+    if (previewEnabled)
+      startPreview();
+
   }
 
   public void dispose(GLAutoDrawable gla) {
     GL3 gl = gla.getGL().getGL3();
+    cancelPreview();
+    deletePreviewTexture(gl);
 
   }
 
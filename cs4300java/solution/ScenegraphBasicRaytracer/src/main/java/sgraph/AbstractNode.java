@@ -172,4 +172,13 @@ public abstract class AbstractNode implements INode {
     return listLights;
   }
 
+  /**
+   * By default, a node has no leaves. Nodes that have children or are leaves
+   * themselves should override this method
+   */
+  @Override
+  public List<LeafInstance> getLeavesInView(Stack<Matrix4f> modelview) {
+    return new ArrayList<LeafInstance>();
+  }
+
 }
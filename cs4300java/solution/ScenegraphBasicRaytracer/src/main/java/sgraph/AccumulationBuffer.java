@@ -0,0 +1,151 @@
+package sgraph;
+
+import java.util.Arrays;
+
+/**
+ * The samples of a path traced image, added up over its passes. Every pixel
+ * keeps the sum of the colors of its samples, as floats so that nothing is
+ * lost to rounding however many samples it takes, and the sum of the squares
+ * of their luminances, from which the variance of the pixel is estimated.
+ *
+ * The image is divided into the same square tiles that it is rendered in.
+ * All the pixels of a tile take the same number of samples, and the noise of
+ * a tile is measured as a whole, so that tiles can stop taking samples once
+ * they are no longer noisy.
+ */
+class AccumulationBuffer {
+  private final int width;
+  private final int height;
+  private final int tileSize;
+  private final int tilesX;
+  private final float[] color;
+  private final float[] luminanceSquares;
+  private final int[] samples;
+  private final float[] noise;
+
+  AccumulationBuffer(int width, int height, int tileSize) {
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    tilesX = (width + tileSize - 1) / tileSize;
+    int tilesY = (height + tileSize - 1) / tileSize;
+    color = new float[3 * width * height];
+    luminanceSquares = new float[width * height];
+    samples = new int[tilesX * tilesY];
+    noise = new float[tilesX * tilesY];
+    clear();
+  }
+
+  /**
+   * Whether this buffer is for images of the given size and tiling
+   */
+  boolean fits(int width, int height, int tileSize) {
+    return (this.width == width) && (this.height == height)
+            && (this.tileSize == tileSize);
+  }
+
+  /**
+   * Remove all samples, to start another image
+   */
+  void clear() {
+    Arrays.fill(color, 0);
+    Arrays.fill(luminanceSquares, 0);
+    Arrays.fill(samples, 0);
+    Arrays.fill(noise, Float.POSITIVE_INFINITY);
+  }
+
+  int getTileCount() {
+    return samples.length;
+  }
+
+  /**
+   * The tile that the pixel in column x and row y (from the top) is in
+   */
+  int tileAt(int x, int y) {
+    return (y / tileSize) * tilesX + x / tileSize;
+  }
+
+  /**
+   * The number of pixels in a tile
+   */
+  int getPixelCount(int tile) {
+    int x0 = (tile % tilesX) * tileSize;
+    int y0 = (tile / tilesX) * tileSize;
+    return (Math.min(x0 + tileSize, width) - x0)
+            * (Math.min(y0 + tileSize, height) - y0);
+  }
+
+  /**
+   * The number of samples that every pixel of a tile has taken
+   */
+  int getSamples(int tile) {
+    return samples[tile];
+  }
+
+  /**
+   * The noise of a tile when it was last measured, or infinity if it has not
+   * been measured yet
+   */
+  float getNoise(int tile) {
+    return noise[tile];
+  }
+
+  /**
+   * Add a sample to a pixel. Samples are only counted once the whole tile
+   * has taken them, by {@link #endPass}.
+   */
+  void add(int pixel, float r, float g, float b) {
+    color[3 * pixel] += r;
+    color[3 * pixel + 1] += g;
+    color[3 * pixel + 2] += b;
+    float l = luminance(r, g, b);
+    luminanceSquares[pixel] += l * l;
+  }
+
+  /**
+   * Count the samples that every pixel in columns [x0,x1) and rows [y0,y1)
+   * of a tile has just taken, measure the noise of the tile, and write the
+   * average color of its pixels into the framebuffer.
+   *
+   * The noise is the root mean square of the standard errors of the averages
+   * of its pixels, relative to the average luminance of the tile (but never
+   * to less than minLuminance, so that dark tiles are not held to a finer
+   * standard than the eye can see). A pixel needs at least two samples for
+   * its variance to be estimated.
+   */
+  void endPass(int tile, int count, int x0, int y0, int x1, int y1,
+               float minLuminance, int[] framebuffer) {
+    int n = samples[tile] + count;
+    samples[tile] = n;
+    float inverse = 1.0f / n;
+    double errors = 0;
+    double brightness = 0;
+    for (int y = y0; y < y1; y++) {
+      for (int x = x0; x < x1; x++) {
+        int p = y * width + x;
+        float r = color[3 * p] * inverse;
+        float g = color[3 * p + 1] * inverse;
+        float b = color[3 * p + 2] * inverse;
+        float mean = luminance(r, g, b);
+        if (n > 1) {
+          //the variance of the samples, and so of their average
+          float variance = (luminanceSquares[p] * inverse - mean * mean)
+                  * n / (n - 1);
+          errors += Math.max(variance, 0) * inverse;
+        }
+        brightness += mean;
+        framebuffer[p] = ((int) (255 * Math.min(r, 1)) << 16)
+                | ((int) (255 * Math.min(g, 1)) << 8)
+                | (int) (255 * Math.min(b, 1));
+      }
+    }
+    int pixels = (x1 - x0) * (y1 - y0);
+    if (n > 1)
+      noise[tile] = (float) (Math.sqrt(errors / pixels)
+              / Math.max(brightness / pixels, minLuminance));
+  }
+
+  private static float luminance(float r, float g, float b) {
+    return 0.2126f * r + 0.7152f * g + 0.0722f * b;
+  }
+}
@@ -0,0 +1,171 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+/**
+ * A primitive whose intersection with a ray is found by solving for it
+ * directly. Each kind finds only the parameter of a hit, and the part of its
+ * surface that was hit (such as the face of a box); the normal and texture
+ * coordinates are then found from the part and the hit point, without
+ * testing the point against the surface again.
+ */
+abstract class AnalyticPrimitive implements IPrimitive {
+  /**
+   * The kind of intersection test that this primitive is counted as, one of
+   * those of {@link RayCounters}
+   */
+  private final int kind;
+
+  AnalyticPrimitive(int kind) {
+    this.kind = kind;
+  }
+
+  /**
+   * The primitive that a leaf referring to the object instance of the given
+   * name is intersected as, or null if it is not one that can be intersected
+   * analytically
+   */
+  static AnalyticPrimitive forInstance(String name) {
+    if (name == null)
+      return null;
+    switch (name) {
+      case "sphere":
+        return new Sphere();
+      case "box":
+        return new Box();
+      case "cylinder":
+        return new Cylinder();
+      case "cone":
+        return new Cone();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Find the parameter of the closest hit of a ray with this primitive in
+   * [0,tMax), in the coordinate system of this primitive.
+   *
+   * @param hitRecord if not null, and the ray hits, its primitive is set to
+   *                  the part of this primitive that was hit
+   * @return the parameter of the hit, or infinity if there is none
+   */
+  abstract float hitTime(float ox, float oy, float oz,
+                         float dx, float dy, float dz,
+                         float tMax, HitRecord hitRecord);
+
+  /**
+   * Set the normal (in the coordinate system of this primitive, not
+   * necessarily of unit length) at a point on the given part of its surface
+   */
+  abstract void normal(int part, float x, float y, float z, Vector4f normal);
+
+  /**
+   * Set the texture coordinates of a point on, or near, the given part of
+   * the surface of this primitive
+   */
+  abstract void texcoord(int part, float x, float y, float z,
+                         Vector2f texcoord);
+
+  /**
+   * Find the parameter of the closest hit of a ray with this primitive, when
+   * the ray has already been transformed into its coordinate system
+   *
+   * @return the parameter of the hit, or infinity if the ray misses
+   */
+  float hitTime(Ray rayObject) {
+    return hitTime(rayObject.start.x, rayObject.start.y, rayObject.start.z,
+            rayObject.direction.x, rayObject.direction.y,
+            rayObject.direction.z, Float.POSITIVE_INFINITY, null);
+  }
+
+  @Override
+  public boolean intersect(Ray rayView, Ray rayObject, Matrix4f normalMatrix,
+                           HitRecord hitRecord, int[] stack,
+                           RayCounters counters) {
+    counters.tests[kind]++;
+    float ox = rayObject.start.x, oy = rayObject.start.y, oz = rayObject.start.z;
+    float dx = rayObject.direction.x, dy = rayObject.direction.y;
+    float dz = rayObject.direction.z;
+    float t = hitTime(ox, oy, oz, dx, dy, dz, hitRecord.time, hitRecord);
+    if (!(t < hitRecord.time))
+      return false;
+
+    hitRecord.time = t;
+    hitRecord.point.set(rayView.start.x + t * rayView.direction.x,
+            rayView.start.y + t * rayView.direction.y,
+            rayView.start.z + t * rayView.direction.z,
+            1);
+
+    float px = ox + t * dx;
+    float py = oy + t * dy;
+    float pz = oz + t * dz;
+    normal(hitRecord.primitive, px, py, pz, hitRecord.normal);
+    texcoord(hitRecord.primitive, px, py, pz, hitRecord.texcoord);
+    toViewNormal(normalMatrix, hitRecord.normal);
+    return true;
+  }
+
+  @Override
+  public boolean intersectsAny(Ray rayObject, float tMax, int[] stack,
+                               RayCounters counters) {
+    counters.tests[kind]++;
+    return hitTime(rayObject.start.x, rayObject.start.y, rayObject.start.z,
+            rayObject.direction.x, rayObject.direction.y,
+            rayObject.direction.z, tMax, null) < tMax;
+  }
+
+  @Override
+  public void intersect(RayPacket packet, int[] stack, RayCounters counters) {
+    counters.tests[kind] += packet.size;
+    hitTimes(packet);
+  }
+
+  /**
+   * Find the parameter of the closest hit of every ray of a packet, already
+   * transformed into the coordinate system of this primitive, and record it
+   * for the lanes where it is closer than their closest hit so far.
+   *
+   * This intersects the lanes one at a time. Lanes that hit record primitive
+   * -1, so the part that was hit is found when the hit is completed.
+   */
+  void hitTimes(RayPacket packet) {
+    for (int i = 0; i < packet.size; i++) {
+      float t = hitTime(packet.ox[i], packet.oy[i], packet.oz[i],
+              packet.dx[i], packet.dy[i], packet.dz[i], packet.t[i], null);
+      if (t < packet.t[i]) {
+        packet.t[i] = t;
+        packet.primitive[i] = -1;
+      }
+    }
+  }
+
+  @Override
+  public void texcoordAt(int primitive, Vector4f hitObject,
+                         Vector4f pointObject, Vector2f texcoord) {
+    texcoord(primitive, pointObject.x, pointObject.y, pointObject.z, texcoord);
+  }
+
+  /**
+   * Transform a normal in place from the coordinate system of a primitive to
+   * the view coordinate system, and normalize it
+   */
+  static void toViewNormal(Matrix4f normalMatrix, Vector4f normal) {
+    normalMatrix.transform(normal);
+    float length = (float) Math.sqrt(normal.x * normal.x
+            + normal.y * normal.y
+            + normal.z * normal.z);
+    normal.set(normal.x / length, normal.y / length, normal.z / length, 0.0f);
+  }
+
+  /**
+   * The horizontal texture coordinate of a point around the y axis, with the
+   * seam where the texture wraps around facing away from +z
+   */
+  static float around(float x, float z) {
+    float s = (float) ((Math.PI + (float) Math.atan2(-z, x)) / (2 * Math.PI));
+    return (s + 0.5f) % 1;
+  }
+}
@@ -0,0 +1,600 @@
+package sgraph;
+
+/**
+ * A bounding volume hierarchy over a set of axis-aligned boxes. It is built
+ * top-down using the surface area heuristic (SAH), evaluated over a fixed
+ * number of bins along each axis.
+ *
+ * The hierarchy knows nothing about what it contains: every primitive is only
+ * an index into the array of bounds it was built from. Whoever traverses it
+ * supplies a {@link Visitor} that intersects the primitives in the leaves it
+ * reaches.
+ *
+ * The nodes are stored in flat arrays in depth-first order, so that the left
+ * child of an interior node is always the node right after it.
+ *
+ * When the primitives move but stay the same, the hierarchy can be refitted
+ * instead of built again: the tree is kept and only the bounds of its nodes
+ * are recomputed. This is much cheaper, but the tree gets worse as the
+ * primitives move away from where it was built for. Its SAH cost, compared to
+ * the cost when it was built, tells how much worse.
+ */
+public class BVH {
+  /**
+   * Called for every primitive in a leaf of the hierarchy that the ray reaches
+   */
+  public interface Visitor {
+    /**
+     * Intersect the ray with the given primitive, updating the hit record if
+     * this is the closest hit so far
+     */
+    void visit(int primitive, Ray ray, HitRecord hitRecord);
+  }
+
+  /**
+   * Called for every primitive in a leaf of the hierarchy that at least one
+   * ray of a packet reaches
+   */
+  public interface PacketVisitor {
+    /**
+     * Intersect every ray of the packet with the given primitive, updating the
+     * lanes for which this is the closest hit so far
+     */
+    void visit(int primitive, RayPacket packet);
+  }
+
+  /**
+   * Called for every primitive in a leaf of the hierarchy that a shadow ray
+   * reaches
+   */
+  public interface AnyHitVisitor {
+    /**
+     * Whether the ray hits the given primitive at a parameter in (0,tMax)
+     */
+    boolean hits(int primitive, Ray ray, float tMax);
+  }
+
+  private static final int BINS = 16;
+  private static final int MAX_LEAF_SIZE = 2;
+  private static final float TRAVERSAL_COST = 1.0f;
+  private static final float INTERSECTION_COST = 1.0f;
+  private static final int MAX_DEPTH = 64;
+
+  /**
+   * Bounds of every node: minx,miny,minz,maxx,maxy,maxz
+   */
+  private float[] nodeBounds;
+  /**
+   * For interior nodes, the index of the right child. For leaves, the index
+   * of the first primitive in primitiveIndices
+   */
+  private int[] nodeOffset;
+  /**
+   * The number of primitives in a leaf, 0 for interior nodes
+   */
+  private int[] nodeCount;
+  private int nodes;
+
+  /**
+   * The primitives, ordered so that every leaf refers to a contiguous range
+   */
+  private int[] primitiveIndices;
+
+  private float[] primitiveBounds;
+  private float[] centroids;
+
+  /**
+   * The SAH cost of this hierarchy, and of the hierarchy it was refitted
+   * from when that was built
+   */
+  private float cost;
+  private float buildCost;
+
+  /**
+   * Build a hierarchy over the given boxes.
+   *
+   * @param bounds 6 floats (minx,miny,minz,maxx,maxy,maxz) per primitive
+   * @param count  the number of primitives
+   */
+  public BVH(float[] bounds, int count) {
+    primitiveBounds = bounds;
+    primitiveIndices = new int[count];
+    centroids = new float[3 * count];
+    for (int i = 0; i < count; i++) {
+      primitiveIndices[i] = i;
+      for (int k = 0; k < 3; k++) {
+        centroids[3 * i + k] = 0.5f * (bounds[6 * i + k] + bounds[6 * i + 3 + k]);
+      }
+    }
+    int capacity = Math.max(1, 2 * count - 1);
+    nodeBounds = new float[6 * capacity];
+    nodeOffset = new int[capacity];
+    nodeCount = new int[capacity];
+    nodes = 0;
+    if (count > 0) {
+      build(0, count, 0);
+    }
+    centroids = null;
+    cost = computeCost();
+    buildCost = cost;
+  }
+
+  /**
+   * Create a hierarchy with the same tree as the given one, over the given
+   * bounds. The bounds of its nodes are left for the caller to fill in.
+   */
+  private BVH(BVH other, float[] bounds) {
+    primitiveBounds = bounds;
+    primitiveIndices = other.primitiveIndices;
+    nodeOffset = other.nodeOffset;
+    nodeCount = other.nodeCount;
+    nodes = other.nodes;
+    nodeBounds = new float[other.nodeBounds.length];
+    buildCost = other.buildCost;
+  }
+
+  /**
+   * Refit this hierarchy to primitives that have moved. This hierarchy is not
+   * changed, since rays may still be traced through it: the result is a new
+   * one that shares its tree. The bounds of the nodes are recomputed bottom
+   * up, but only for the nodes above a primitive that changed; the others
+   * keep the bounds they have here.
+   *
+   * @param bounds  the new bounds of every primitive, 6 floats per primitive
+   *                as in the constructor
+   * @param changed which primitives have bounds different from those this
+   *                hierarchy was built or refitted over
+   */
+  public BVH refit(float[] bounds, boolean[] changed) {
+    BVH refitted = new BVH(this, bounds);
+    float[] nb = refitted.nodeBounds;
+    boolean[] dirty = new boolean[nodes];
+    //children always come after their parent, so going backwards visits
+    //every node after its children
+    for (int node = nodes - 1; node >= 0; node--) {
+      int count = nodeCount[node];
+      if (count > 0) {
+        int first = nodeOffset[node];
+        for (int i = 0; i < count; i++)
+          dirty[node] |= changed[primitiveIndices[first + i]];
+        if (dirty[node]) {
+          emptyBounds(nb, 6 * node);
+          for (int i = 0; i < count; i++)
+            growBounds(nb, 6 * node, bounds, 6 * primitiveIndices[first + i]);
+        }
+      } else {
+        int left = node + 1;
+        int right = nodeOffset[node];
+        dirty[node] = dirty[left] || dirty[right];
+        if (dirty[node]) {
+          System.arraycopy(nb, 6 * left, nb, 6 * node, 6);
+          growBounds(nb, 6 * node, nb, 6 * right);
+        }
+      }
+      if (!dirty[node])
+        System.arraycopy(nodeBounds, 6 * node, nb, 6 * node, 6);
+    }
+    refitted.cost = refitted.computeCost();
+    return refitted;
+  }
+
+  /**
+   * The expected cost of tracing a ray through this hierarchy, by the surface
+   * area heuristic: the cost of every node weighed by the probability that a
+   * ray through the root also passes through it
+   */
+  public float getCost() {
+    return cost;
+  }
+
+  /**
+   * The cost of the hierarchy when it was built, before any refitting
+   */
+  public float getBuildCost() {
+    return buildCost;
+  }
+
+  private float computeCost() {
+    if (nodes == 0)
+      return 0;
+    float rootArea = surfaceArea(nodeBounds, 0);
+    if (rootArea <= 0)
+      return 0;
+    float total = 0;
+    for (int node = 0; node < nodes; node++) {
+      float probability = surfaceArea(nodeBounds, 6 * node) / rootArea;
+      if (nodeCount[node] > 0)
+        total += probability * INTERSECTION_COST * nodeCount[node];
+      else
+        total += probability * TRAVERSAL_COST;
+    }
+    return total;
+  }
+
+  /**
+   * The number of primitives this hierarchy was built over
+   */
+  public int getPrimitiveCount() {
+    return primitiveIndices.length;
+  }
+
+  /**
+   * The number of nodes in this hierarchy
+   */
+  public int getNodeCount() {
+    return nodes;
+  }
+
+  /**
+   * Get the bounds of the root, i.e. of all the primitives. Returns false if
+   * the hierarchy is empty
+   */
+  public boolean getBounds(float[] bounds) {
+    if (nodes == 0)
+      return false;
+    System.arraycopy(nodeBounds, 0, bounds, 0, 6);
+    return true;
+  }
+
+  private int build(int start, int end, int depth) {
+    int node = nodes++;
+    int count = end - start;
+
+    float[] cbounds = new float[6];
+    computeBounds(start, end, nodeBounds, 6 * node, cbounds);
+
+    if ((count <= MAX_LEAF_SIZE) || (depth >= MAX_DEPTH)) {
+      makeLeaf(node, start, count);
+      return node;
+    }
+
+    //find the best split using binned SAH
+    int bestAxis = -1;
+    int bestBin = -1;
+    float bestCost = Float.POSITIVE_INFINITY;
+    int[] binCount = new int[BINS];
+    float[] binBounds = new float[6 * BINS];
+    float[] rightArea = new float[BINS];
+    int[] rightCount = new int[BINS];
+
+    for (int axis = 0; axis < 3; axis++) {
+      float cmin = cbounds[axis];
+      float cmax = cbounds[3 + axis];
+      if (cmax - cmin <= 0)
+        continue;
+      float scale = BINS / (cmax - cmin);
+
+      for (int b = 0; b < BINS; b++) {
+        binCount[b] = 0;
+        emptyBounds(binBounds, 6 * b);
+      }
+
+      for (int i = start; i < end; i++) {
+        int p = primitiveIndices[i];
+        int b = binOf(centroids[3 * p + axis], cmin, scale);
+        binCount[b]++;
+        growBounds(binBounds, 6 * b, primitiveBounds, 6 * p);
+      }
+
+      //sweep from the right to find areas of all right partitions
+      float[] acc = new float[6];
+      emptyBounds(acc, 0);
+      int accCount = 0;
+      for (int b = BINS - 1; b > 0; b--) {
+        growBounds(acc, 0, binBounds, 6 * b);
+        accCount += binCount[b];
+        rightArea[b] = surfaceArea(acc, 0);
+        rightCount[b] = accCount;
+      }
+
+      //sweep from the left and evaluate each split plane
+      emptyBounds(acc, 0);
+      accCount = 0;
+      for (int b = 0; b < BINS - 1; b++) {
+        growBounds(acc, 0, binBounds, 6 * b);
+        accCount += binCount[b];
+        if ((accCount == 0) || (rightCount[b + 1] == 0))
+          continue;
+        float cost = surfaceArea(acc, 0) * accCount
+                + rightArea[b + 1] * rightCount[b + 1];
+        if (cost < bestCost) {
+          bestCost = cost;
+          bestAxis = axis;
+          bestBin = b;
+        }
+      }
+    }
+
+    float area = surfaceArea(nodeBounds, 6 * node);
+    float leafCost = INTERSECTION_COST * count;
+    float splitCost = (area > 0)
+            ? TRAVERSAL_COST + INTERSECTION_COST * bestCost / area
+            : Float.POSITIVE_INFINITY;
+
+    int mid;
+    if (bestAxis < 0) {
+      //all centroids coincide: split in the middle to keep leaves small
+      mid = start + count / 2;
+    } else if ((splitCost >= leafCost) && (count <= 4 * MAX_LEAF_SIZE)) {
+      makeLeaf(node, start, count);
+      return node;
+    } else {
+      float cmin = cbounds[bestAxis];
+      float scale = BINS / (cbounds[3 + bestAxis] - cmin);
+      int i = start;
+      int j = end - 1;
+      while (i <= j) {
+        int p = primitiveIndices[i];
+        if (binOf(centroids[3 * p + bestAxis], cmin, scale) <= bestBin) {
+          i++;
+        } else {
+          primitiveIndices[i] = primitiveIndices[j];
+          primitiveIndices[j] = p;
+          j--;
+        }
+      }
+      mid = i;
+      if ((mid == start) || (mid == end))
+        mid = start + count / 2;
+    }
+
+    nodeCount[node] = 0;
+    build(start, mid, depth + 1);
+    nodeOffset[node] = build(mid, end, depth + 1);
+    return node;
+  }
+
+  private void makeLeaf(int node, int start, int count) {
+    nodeOffset[node] = start;
+    nodeCount[node] = count;
+  }
+
+  private static int binOf(float c, float cmin, float scale) {
+    int b = (int) ((c - cmin) * scale);
+    if (b < 0)
+      return 0;
+    if (b >= BINS)
+      return BINS - 1;
+    return b;
+  }
+
+  private void computeBounds(int start, int end, float[] bounds, int offset,
+                             float[] cbounds) {
+    emptyBounds(bounds, offset);
+    emptyBounds(cbounds, 0);
+    for (int i = start; i < end; i++) {
+      int p = primitiveIndices[i];
+      growBounds(bounds, offset, primitiveBounds, 6 * p);
+      for (int k = 0; k < 3; k++) {
+        float c = centroids[3 * p + k];
+        cbounds[k] = Math.min(cbounds[k], c);
+        cbounds[3 + k] = Math.max(cbounds[3 + k], c);
+      }
+    }
+  }
+
+  private static void emptyBounds(float[] b, int o) {
+    b[o] = b[o + 1] = b[o + 2] = Float.POSITIVE_INFINITY;
+    b[o + 3] = b[o + 4] = b[o + 5] = Float.NEGATIVE_INFINITY;
+  }
+
+  private static void growBounds(float[] b, int o, float[] other, int p) {
+    for (int k = 0; k < 3; k++) {
+      b[o + k] = Math.min(b[o + k], other[p + k]);
+      b[o + 3 + k] = Math.max(b[o + 3 + k], other[p + 3 + k]);
+    }
+  }
+
+  private static float surfaceArea(float[] b, int o) {
+    float dx = b[o + 3] - b[o];
+    float dy = b[o + 4] - b[o + 1];
+    float dz = b[o + 5] - b[o + 2];
+    if ((dx < 0) || (dy < 0) || (dz < 0))
+      return 0;
+    return 2 * (dx * dy + dy * dz + dz * dx);
+  }
+
+  /**
+   * Create a traversal stack that is deep enough for any hierarchy. Callers
+   * that trace many rays should create one per thread and reuse it.
+   */
+  public static int[] newStack() {
+    return new int[MAX_DEPTH + 1];
+  }
+
+  /**
+   * Find the closest intersection of the ray with the primitives in this
+   * hierarchy. Subtrees whose boxes the ray misses, or that lie beyond the
+   * closest hit found so far (hitRecord.time), are skipped entirely.
+   *
+   * @param stack    scratch space from {@link #newStack()}, which must not be
+   *                 in use by another traversal at the same time
+   * @param counters the nodes visited, and the primitives visited as tests of
+   *                 the given kind, are added to these
+   */
+  public void intersect(Ray ray, HitRecord hitRecord, Visitor visitor,
+                        int[] stack, RayCounters counters, int kind) {
+    if (nodes == 0)
+      return;
+
+    float ox = ray.start.x, oy = ray.start.y, oz = ray.start.z;
+    float idx = 1.0f / ray.direction.x;
+    float idy = 1.0f / ray.direction.y;
+    float idz = 1.0f / ray.direction.z;
+
+    int top = 0;
+    stack[top++] = 0;
+    int visited = 0;
+    int tested = 0;
+
+    while (top > 0) {
+      int node = stack[--top];
+      visited++;
+      if (slab(node, ox, oy, oz, idx, idy, idz) >= hitRecord.time)
+        continue;
+
+      int count = nodeCount[node];
+      if (count > 0) {
+        int first = nodeOffset[node];
+        tested += count;
+        for (int i = 0; i < count; i++) {
+          visitor.visit(primitiveIndices[first + i], ray, hitRecord);
+        }
+      } else {
+        int left = node + 1;
+        int right = nodeOffset[node];
+        //visit the nearer child first so that its hits can prune the other
+        float tl = slab(left, ox, oy, oz, idx, idy, idz);
+        float tr = slab(right, ox, oy, oz, idx, idy, idz);
+        if (tl <= tr) {
+          if (tr < hitRecord.time)
+            stack[top++] = right;
+          if (tl < hitRecord.time)
+            stack[top++] = left;
+        } else {
+          if (tl < hitRecord.time)
+            stack[top++] = left;
+          if (tr < hitRecord.time)
+            stack[top++] = right;
+        }
+      }
+    }
+    counters.nodeVisits += visited;
+    counters.tests[kind] += tested;
+  }
+
+  /**
+   * Find whether the ray hits any primitive in this hierarchy at a parameter
+   * in (0,tMax). This is for shadow rays: it stops at the first hit it finds,
+   * whether or not it is the closest, so it visits nodes in any order.
+   *
+   * @param stack    scratch space from {@link #newStack()}, which must not be
+   *                 in use by another traversal at the same time
+   * @param counters the nodes visited, and the primitives visited as tests of
+   *                 the given kind, are added to these
+   */
+  public boolean intersectAny(Ray ray, float tMax, AnyHitVisitor visitor,
+                              int[] stack, RayCounters counters, int kind) {
+    if (nodes == 0)
+      return false;
+
+    float ox = ray.start.x, oy = ray.start.y, oz = ray.start.z;
+    float idx = 1.0f / ray.direction.x;
+    float idy = 1.0f / ray.direction.y;
+    float idz = 1.0f / ray.direction.z;
+
+    int top = 0;
+    stack[top++] = 0;
+    int visited = 0;
+    int tested = 0;
+    boolean hit = false;
+
+    while ((top > 0) && (!hit)) {
+      int node = stack[--top];
+      visited++;
+      if (slab(node, ox, oy, oz, idx, idy, idz) >= tMax)
+        continue;
+
+      int count = nodeCount[node];
+      if (count > 0) {
+        int first = nodeOffset[node];
+        for (int i = 0; (i < count) && (!hit); i++) {
+          tested++;
+          hit = visitor.hits(primitiveIndices[first + i], ray, tMax);
+        }
+      } else {
+        stack[top++] = nodeOffset[node];
+        stack[top++] = node + 1;
+      }
+    }
+    counters.nodeVisits += visited;
+    counters.tests[kind] += tested;
+    return hit;
+  }
+
+  /**
+   * Find the closest intersections of all the rays of a packet with the
+   * primitives in this hierarchy. A node is visited if any ray of the packet
+   * enters it before its own closest hit, and children are visited nearest
+   * first, by the nearest ray.
+   *
+   * @param stack    scratch space from {@link #newStack()}, which must not be
+   *                 in use by another traversal at the same time
+   * @param counters the nodes visited, and the primitives visited as tests of
+   *                 the given kind (one for every ray of the packet), are
+   *                 added to these
+   */
+  public void intersect(RayPacket packet, PacketVisitor visitor,
+                        PacketKernel kernel, int[] stack,
+                        RayCounters counters, int kind) {
+    if (nodes == 0)
+      return;
+
+    packet.computeInverseDirections();
+    int top = 0;
+    stack[top++] = 0;
+    int visited = 0;
+    int tested = 0;
+
+    while (top > 0) {
+      int node = stack[--top];
+      visited++;
+      if (kernel.enterBox(nodeBounds, 6 * node, packet) == Float.POSITIVE_INFINITY)
+        continue;
+
+      int count = nodeCount[node];
+      if (count > 0) {
+        int first = nodeOffset[node];
+        tested += count;
+        for (int i = 0; i < count; i++) {
+          visitor.visit(primitiveIndices[first + i], packet);
+        }
+      } else {
+        int left = node + 1;
+        int right = nodeOffset[node];
+        float tl = kernel.enterBox(nodeBounds, 6 * left, packet);
+        float tr = kernel.enterBox(nodeBounds, 6 * right, packet);
+        if (tl <= tr) {
+          if (tr < Float.POSITIVE_INFINITY)
+            stack[top++] = right;
+          if (tl < Float.POSITIVE_INFINITY)
+            stack[top++] = left;
+        } else {
+          if (tl < Float.POSITIVE_INFINITY)
+            stack[top++] = left;
+          if (tr < Float.POSITIVE_INFINITY)
+            stack[top++] = right;
+        }
+      }
+    }
+    counters.nodeVisits += visited;
+    counters.tests[kind] += (long) tested * packet.size;
+  }
+
+  /**
+   * The slab test: returns the parameter at which the ray enters the box of
+   * the given node (0 if it starts inside), or infinity if it misses it
+   */
+  private float slab(int node, float ox, float oy, float oz,
+                     float idx, float idy, float idz) {
+    int o = 6 * node;
+    float t1 = (nodeBounds[o] - ox) * idx;
+    float t2 = (nodeBounds[o + 3] - ox) * idx;
+    float tmin = Math.min(t1, t2);
+    float tmax = Math.max(t1, t2);
+
+    t1 = (nodeBounds[o + 1] - oy) * idy;
+    t2 = (nodeBounds[o + 4] - oy) * idy;
+    tmin = Math.max(tmin, Math.min(t1, t2));
+    tmax = Math.min(tmax, Math.max(t1, t2));
+
+    t1 = (nodeBounds[o + 2] - oz) * idz;
+    t2 = (nodeBounds[o + 5] - oz) * idz;
+    tmin = Math.max(tmin, Math.min(t1, t2));
+    tmax = Math.min(tmax, Math.max(t1, t2));
+
+    if ((tmax < tmin) || (tmax < 0))
+      return Float.POSITIVE_INFINITY;
+    return Math.max(tmin, 0);
+  }
+}
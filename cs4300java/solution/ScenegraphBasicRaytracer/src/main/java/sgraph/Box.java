@@ -0,0 +1,189 @@
+package sgraph;
+
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+/**
+ * The box [-0.5,0.5]^3. A hit records which face of the box it is on: 0 and
+ * 1 for the right (+x) and left (-x) faces, 2 and 3 for the top (+y) and
+ * bottom (-y) faces, and 4 and 5 for the front (+z) and rear (-z) faces.
+ */
+class Box extends AnalyticPrimitive {
+  private static final int RIGHT = 0;
+  private static final int LEFT = 1;
+  private static final int TOP = 2;
+  private static final int BOTTOM = 3;
+  private static final int FRONT = 4;
+  private static final int REAR = 5;
+
+  private final PacketKernel kernel = PacketKernel.get();
+
+  Box() {
+    super(RayCounters.BOX);
+  }
+
+  @Override
+  public boolean getBounds(Vector4f minBounds, Vector4f maxBounds) {
+    minBounds.set(-0.5f, -0.5f, -0.5f, 1);
+    maxBounds.set(0.5f, 0.5f, 0.5f, 1);
+    return true;
+  }
+
+  /**
+   * Clips the ray against the three slabs of the box, keeping track of the
+   * face that every slab is entered and left through. The slabs are clipped
+   * with the inverse direction, which is infinite along an axis the ray is
+   * parallel to; the slab is then either missed entirely or (if the ray
+   * starts on one of its planes, which gives NaN) does not clip the ray.
+   */
+  @Override
+  float hitTime(float ox, float oy, float oz, float dx, float dy, float dz,
+                float tMax, HitRecord hitRecord) {
+    float tmin = Float.NEGATIVE_INFINITY;
+    float tmax = Float.POSITIVE_INFINITY;
+    int enter = -1;
+    int leave = -1;
+
+    float inverse = 1.0f / dx;
+    float near = (-0.5f - ox) * inverse;
+    float far = (0.5f - ox) * inverse;
+    int nearFace = LEFT;
+    int farFace = RIGHT;
+    if (inverse < 0) {
+      float swap = near;
+      near = far;
+      far = swap;
+      nearFace = RIGHT;
+      farFace = LEFT;
+    }
+    if (near > tmin) {
+      tmin = near;
+      enter = nearFace;
+    }
+    if (far < tmax) {
+      tmax = far;
+      leave = farFace;
+    }
+
+    inverse = 1.0f / dy;
+    near = (-0.5f - oy) * inverse;
+    far = (0.5f - oy) * inverse;
+    nearFace = BOTTOM;
+    farFace = TOP;
+    if (inverse < 0) {
+      float swap = near;
+      near = far;
+      far = swap;
+      nearFace = TOP;
+      farFace = BOTTOM;
+    }
+    if (near > tmin) {
+      tmin = near;
+      enter = nearFace;
+    }
+    if (far < tmax) {
+      tmax = far;
+      leave = farFace;
+    }
+
+    inverse = 1.0f / dz;
+    near = (-0.5f - oz) * inverse;
+    far = (0.5f - oz) * inverse;
+    nearFace = REAR;
+    farFace = FRONT;
+    if (inverse < 0) {
+      float swap = near;
+      near = far;
+      far = swap;
+      nearFace = FRONT;
+      farFace = REAR;
+    }
+    if (near > tmin) {
+      tmin = near;
+      enter = nearFace;
+    }
+    if (far < tmax) {
+      tmax = far;
+      leave = farFace;
+    }
+
+    if (!((tmin < tmax) && (tmax > 0)))
+      return Float.POSITIVE_INFINITY;
+    //a ray that starts inside the box hits the face it leaves through
+    float t = (tmin > 0) ? tmin : tmax;
+    if (!(t < tMax))
+      return Float.POSITIVE_INFINITY;
+    if (hitRecord != null)
+      hitRecord.primitive = (tmin > 0) ? enter : leave;
+    return t;
+  }
+
+  @Override
+  void normal(int part, float x, float y, float z, Vector4f normal) {
+    switch (part) {
+      case RIGHT:
+        normal.set(1, 0, 0, 0);
+        break;
+      case LEFT:
+        normal.set(-1, 0, 0, 0);
+        break;
+      case TOP:
+        normal.set(0, 1, 0, 0);
+        break;
+      case BOTTOM:
+        normal.set(0, -1, 0, 0);
+        break;
+      case FRONT:
+        normal.set(0, 0, 1, 0);
+        break;
+      default:
+        normal.set(0, 0, -1, 0);
+    }
+  }
+
+  /**
+   * Every face maps to its own window of the texture
+   */
+  @Override
+  void texcoord(int part, float x, float y, float z, Vector2f texcoord) {
+    switch (part) {
+      case RIGHT:
+        windowTransform(z, y, 0.5f, 0.25f, 0.75f, 0.5f, texcoord);
+        break;
+      case LEFT:
+        windowTransform(z, y, 0.25f, 0.25f, 0, 0.5f, texcoord);
+        break;
+      case TOP:
+        windowTransform(x, z, 0.25f, 0.5f, 0.5f, 0.75f, texcoord);
+        break;
+      case BOTTOM:
+        windowTransform(z, z, 0.25f, 0.25f, 0.5f, 0.0f, texcoord);
+        break;
+      case FRONT:
+        windowTransform(x, y, 1.0f, 0.25f, 0.75f, 0.5f, texcoord);
+        break;
+      case REAR:
+        windowTransform(x, y, 0.25f, 0.25f, 0.5f, 0.5f, texcoord);
+        break;
+      default:
+        texcoord.set(0, 0);
+    }
+  }
+
+  @Override
+  void hitTimes(RayPacket packet) {
+    kernel.intersectBox(packet);
+  }
+
+  /**
+   * Map (x,y) from the face window [-0.5,0.5]x[-0.5,0.5] to the window
+   * [minx,maxx]x[miny,maxy] of the texture, and store it in texcoord
+   */
+  private static void windowTransform(float x, float y,
+                                      float minx, float miny,
+                                      float maxx, float maxy,
+                                      Vector2f texcoord) {
+    texcoord.x = (x + 0.5f) * (maxx - minx) + minx;
+    texcoord.y = (y + 0.5f) * (maxy - miny) + miny;
+  }
+}
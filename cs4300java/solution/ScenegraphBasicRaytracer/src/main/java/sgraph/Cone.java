@@ -0,0 +1,116 @@
+package sgraph;
+
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+/**
+ * The closed cone around the y axis with a base of radius 1 at y=0 and its
+ * apex at y=1 (the same as models/cone). A hit records whether it is on the
+ * side (0) or the base (1).
+ */
+class Cone extends AnalyticPrimitive {
+  private static final int SIDE = 0;
+  private static final int BASE = 1;
+  /**
+   * Rays whose quadratic coefficient is smaller than this are parallel to the
+   * side, and cross it only once
+   */
+  private static final float EPSILON = 1e-9f;
+
+  Cone() {
+    super(RayCounters.CONE);
+  }
+
+  @Override
+  public boolean getBounds(Vector4f minBounds, Vector4f maxBounds) {
+    minBounds.set(-1, 0, -1, 1);
+    maxBounds.set(1, 1, 1, 1);
+    return true;
+  }
+
+  /**
+   * The side is the part of x^2+z^2=(1-y)^2 with y in [0,1]; the other half
+   * of that double cone, above the apex, is not part of it
+   */
+  @Override
+  float hitTime(float ox, float oy, float oz, float dx, float dy, float dz,
+                float tMax, HitRecord hitRecord) {
+    float t = Float.POSITIVE_INFINITY;
+    int part = -1;
+
+    float k = 1 - oy;
+    float a = dx * dx + dz * dz - dy * dy;
+    float b = 2 * (ox * dx + oz * dz + k * dy);
+    float c = ox * ox + oz * oz - k * k;
+    if (Math.abs(a) < EPSILON) {
+      if (b != 0) {
+        float t1 = -c / b;
+        if ((t1 > 0) && (onSide(oy + t1 * dy))) {
+          t = t1;
+          part = SIDE;
+        }
+      }
+    } else {
+      float disc = b * b - 4 * a * c;
+      if (disc >= 0) {
+        float root = (float) Math.sqrt(disc);
+        float t1 = (-b - root) / (2 * a);
+        float t2 = (-b + root) / (2 * a);
+        if ((t1 > 0) && (onSide(oy + t1 * dy))) {
+          t = t1;
+          part = SIDE;
+        }
+        if ((t2 > 0) && (t2 < t) && (onSide(oy + t2 * dy))) {
+          t = t2;
+          part = SIDE;
+        }
+      }
+    }
+
+    if (dy != 0) {
+      float tb = -oy / dy;
+      float x = ox + tb * dx;
+      float z = oz + tb * dz;
+      if ((tb > 0) && (tb < t) && (x * x + z * z <= 1)) {
+        t = tb;
+        part = BASE;
+      }
+    }
+
+    if (!(t < tMax))
+      return Float.POSITIVE_INFINITY;
+    if (hitRecord != null)
+      hitRecord.primitive = part;
+    return t;
+  }
+
+  private static boolean onSide(float y) {
+    return (y >= 0) && (y <= 1);
+  }
+
+  /**
+   * The normal of the side is the gradient of x^2+z^2-(1-y)^2, which
+   * vanishes at the apex; there it points up the axis
+   */
+  @Override
+  void normal(int part, float x, float y, float z, Vector4f normal) {
+    if (part == BASE)
+      normal.set(0, -1, 0, 0);
+    else if ((x == 0) && (z == 0))
+      normal.set(0, 1, 0, 0);
+    else
+      normal.set(x, 1 - y, z, 0);
+  }
+
+  /**
+   * The side wraps the texture around the cone; the base maps the square
+   * around it onto the whole texture
+   */
+  @Override
+  void texcoord(int part, float x, float y, float z, Vector2f texcoord) {
+    if (part == BASE)
+      texcoord.set(0.5f * (x + 1), 0.5f * (z + 1));
+    else
+      texcoord.set(around(x, z), y);
+  }
+}
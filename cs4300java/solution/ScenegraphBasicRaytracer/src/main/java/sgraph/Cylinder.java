@@ -0,0 +1,103 @@
+package sgraph;
+
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+/**
+ * The closed cylinder of radius 1 around the y axis, from y=0 to y=1 (the
+ * same as models/cylinder). A hit records whether it is on the side (0), the
+ * bottom (1) or the top (2).
+ */
+class Cylinder extends AnalyticPrimitive {
+  private static final int SIDE = 0;
+  private static final int BOTTOM = 1;
+  private static final int TOP = 2;
+
+  Cylinder() {
+    super(RayCounters.CYLINDER);
+  }
+
+  @Override
+  public boolean getBounds(Vector4f minBounds, Vector4f maxBounds) {
+    minBounds.set(-1, 0, -1, 1);
+    maxBounds.set(1, 1, 1, 1);
+    return true;
+  }
+
+  @Override
+  float hitTime(float ox, float oy, float oz, float dx, float dy, float dz,
+                float tMax, HitRecord hitRecord) {
+    float t = Float.POSITIVE_INFINITY;
+    int part = -1;
+
+    float a = dx * dx + dz * dz;
+    if (a > 0) {
+      float b = 2 * (ox * dx + oz * dz);
+      float c = ox * ox + oz * oz - 1;
+      float disc = b * b - 4 * a * c;
+      if (disc >= 0) {
+        float root = (float) Math.sqrt(disc);
+        float t1 = (-b - root) / (2 * a);
+        float t2 = (-b + root) / (2 * a);
+        float y1 = oy + t1 * dy;
+        float y2 = oy + t2 * dy;
+        if ((t1 > 0) && (y1 >= 0) && (y1 <= 1)) {
+          t = t1;
+          part = SIDE;
+        } else if ((t2 > 0) && (y2 >= 0) && (y2 <= 1)) {
+          t = t2;
+          part = SIDE;
+        }
+      }
+    }
+
+    if (dy != 0) {
+      float tb = -oy / dy;
+      if ((tb > 0) && (tb < t) && (onCap(ox + tb * dx, oz + tb * dz))) {
+        t = tb;
+        part = BOTTOM;
+      }
+      float tt = (1 - oy) / dy;
+      if ((tt > 0) && (tt < t) && (onCap(ox + tt * dx, oz + tt * dz))) {
+        t = tt;
+        part = TOP;
+      }
+    }
+
+    if (!(t < tMax))
+      return Float.POSITIVE_INFINITY;
+    if (hitRecord != null)
+      hitRecord.primitive = part;
+    return t;
+  }
+
+  private static boolean onCap(float x, float z) {
+    return x * x + z * z <= 1;
+  }
+
+  @Override
+  void normal(int part, float x, float y, float z, Vector4f normal) {
+    switch (part) {
+      case BOTTOM:
+        normal.set(0, -1, 0, 0);
+        break;
+      case TOP:
+        normal.set(0, 1, 0, 0);
+        break;
+      default:
+        normal.set(x, 0, z, 0);
+    }
+  }
+
+  /**
+   * The side wraps the texture around the cylinder; the caps map the square
+   * around them onto the whole texture
+   */
+  @Override
+  void texcoord(int part, float x, float y, float z, Vector2f texcoord) {
+    if (part == SIDE)
+      texcoord.set(around(x, z), y);
+    else
+      texcoord.set(0.5f * (x + 1), 0.5f * (z + 1));
+  }
+}
@@ -45,6 +45,14 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
    */
   protected Map<String, util.ObjectInstance> meshRenderers;
 
+  /**
+   * The mesh renderers and textures by their handles in the scene graph, and
+   * the texture used by meshes without one
+   */
+  protected util.ObjectInstance[] meshRenderersByHandle;
+  protected TextureImage[] texturesByHandle;
+  protected TextureImage defaultTexture;
+
   /**
    * A variable tracking whether shader locations have been set. This must be
    * done before drawing!
@@ -56,6 +64,9 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
     shaderLocations = new util.ShaderLocationsVault();
     shaderLocationsSet = false;
     textures = new HashMap<String,TextureImage>();
+    meshRenderersByHandle = new util.ObjectInstance[0];
+    texturesByHandle = new TextureImage[0];
+    defaultTexture = null;
   }
 
   /**
@@ -139,6 +150,17 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
     textures.put(name, image);
   }
 
+  @Override
+  public void setHandles(List<String> meshNames, List<String> textureNames) {
+    meshRenderersByHandle = new util.ObjectInstance[meshNames.size()];
+    for (int i = 0; i < meshNames.size(); i++)
+      meshRenderersByHandle[i] = meshRenderers.get(meshNames.get(i));
+    texturesByHandle = new TextureImage[textureNames.size()];
+    for (int i = 0; i < textureNames.size(); i++)
+      texturesByHandle[i] = textures.get(textureNames.get(i));
+    defaultTexture = textures.get("white");
+  }
+
   /**
    * Begin rendering of the scene graph from the root
    */
@@ -242,8 +264,9 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
    * etc. values to the shader
    */
   @Override
-  public void drawMesh(String name, util.Material material, String textureName, final Matrix4f transformation) {
-    if (meshRenderers.containsKey(name)) {
+  public void drawMesh(int mesh, util.Material material, int texture, final Matrix4f transformation) {
+    if ((mesh >= 0) && (mesh < meshRenderersByHandle.length)
+            && (meshRenderersByHandle[mesh] != null)) {
       GL3 gl = glContext.getGL().getGL3();
       //get the color
 
@@ -299,12 +322,15 @@ public class GL3ScenegraphRenderer implements IScenegraphRenderer {
 
 
 
-      if (textures.containsKey(textureName))
-        textures.get(textureName).getTexture().bind(gl);
-      else if (textures.containsKey("white"))
-        textures.get("white").getTexture().bind(gl);
+      TextureImage image = null;
+      if ((texture >= 0) && (texture < texturesByHandle.length))
+        image = texturesByHandle[texture];
+      if (image == null)
+        image = defaultTexture;
+      if (image != null)
+        image.getTexture().bind(gl);
 
-      meshRenderers.get(name).draw(glContext);
+      meshRenderersByHandle[mesh].draw(glContext);
     }
   }
 
@@ -154,4 +154,17 @@ public class GroupNode extends AbstractNode {
     lights.addAll(super.getLightsInView(modelview));
     return lights;
   }
+
+  /**
+   * Overridden version from @link{AbstractNode}. This version collects all the
+   * leaves from its children.
+   */
+  @Override
+  public List<LeafInstance> getLeavesInView(Stack<Matrix4f> modelview) {
+    List<LeafInstance> leaves = new ArrayList<LeafInstance>();
+    for (int i = 0; i < children.size(); i++) {
+      leaves.addAll(children.get(i).getLeavesInView(modelview));
+    }
+    return leaves;
+  }
 }
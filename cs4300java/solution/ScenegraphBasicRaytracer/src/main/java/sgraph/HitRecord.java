@@ -10,16 +10,51 @@ public class HitRecord {
     public float time;
     public Vector4f point,normal;
     public util.Material material;
-    public String textureName;
+    /**
+     * The handle of the texture at the hit, or -1 for none
+     */
+    public int texture;
     public Vector2f texcoord;
+    /**
+     * The index of the instance that was hit in the compiled scene, or -1 if
+     * the hit was not found through a compiled scene
+     */
+    public int instance;
+    /**
+     * The part of the primitive that was hit: for meshes the triangle, with
+     * the barycentric coordinates of the hit point in it, and for analytic
+     * primitives the face (see {@link IPrimitive})
+     */
+    public int primitive;
+    public float u,v;
+    /**
+     * Made by the first leaf that intersects a ray with this record through
+     * the scene graph (see {@link LeafNode.Scratch})
+     */
+    LeafNode.Scratch leafScratch;
 
     public HitRecord() {
         time = Float.POSITIVE_INFINITY;
         point = new Vector4f(0,0,0,1);
         normal = new Vector4f(0,0,1,0);
         material = new util.Material();
-        textureName = "white";
+        texture = -1;
         texcoord = new Vector2f(0,0);
+        instance = -1;
+        primitive = -1;
+    }
+
+    /**
+     * Prepare this record for another ray. The vectors in it are kept and
+     * overwritten by the next hit, so that a thread can reuse one record for
+     * all its rays.
+     */
+    public void reset()
+    {
+        time = Float.POSITIVE_INFINITY;
+        texcoord.set(0,0);
+        instance = -1;
+        primitive = -1;
     }
 
     public boolean intersected()
@@ -0,0 +1,32 @@
+package sgraph;
+
+import java.io.IOException;
+
+/**
+ * This interface represents an encoder that writes an image to a stream a band
+ * of rows at a time, so that the rows can be written as soon as they are
+ * rendered, and the encoder never needs a copy of the whole image.
+ *
+ * Pixels are packed RGB values (0xRRGGBB), stored row by row from the top of
+ * the image.
+ */
+public interface IImageEncoder {
+  /**
+   * Encode a band of rows. Bands must be written in order from the top of the
+   * image, and together must cover every row exactly once.
+   *
+   * @param pixels   the pixels of the whole image
+   * @param firstRow the first row of the band
+   * @param rows     the number of rows in the band
+   * @throws IOException if the stream cannot be written to
+   */
+  void writeRows(int[] pixels, int firstRow, int rows) throws IOException;
+
+  /**
+   * Finish the image once all its rows have been written. This does not close
+   * the underlying stream.
+   *
+   * @throws IOException if the stream cannot be written to
+   */
+  void finish() throws IOException;
+}
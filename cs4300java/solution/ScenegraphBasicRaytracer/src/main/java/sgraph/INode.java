@@ -39,7 +39,18 @@ public interface INode {
 
   /**
    * Intersect the given ray in view coordinates with this node and if it does,
-   * populate the supplied HitRecord with pertaining information
+   * populate the supplied HitRecord with pertaining information.
+   *
+   * Only leaves whose geometry can be intersected analytically (spheres,
+   * boxes, cylinders and cones) are hit this way: the meshes of all other
+   * leaves are prepared for ray tracing by a renderer, not by the scene
+   * graph, so they are traced only through a scene compiled by
+   * {@link RTScenegraphRenderer#compileScene} (see {@link RTScene}), and are
+   * missed here.
+   *
+   * The modelview stack is traversal state: nodes push and pop on it while
+   * they recurse, so callers that intersect rays concurrently must give each
+   * thread its own stack (and its own HitRecord).
    * @param ray
    * @param modelView
    * @param hitRecord
@@ -151,5 +162,13 @@ public interface INode {
    * transformation.
    */
   List<Light> getLightsInView(Stack<Matrix4f> modelview);
+
+  /**
+   * Return a list of all leaves in this scene graph, each with the
+   * transformation from its coordinate system to the view coordinate system.
+   * Like {@link #getLightsInView(Stack)}, this is called on the root of the
+   * scene graph with modelview.peek set to the world-to-view transformation.
+   */
+  List<LeafInstance> getLeavesInView(Stack<Matrix4f> modelview);
 }
 
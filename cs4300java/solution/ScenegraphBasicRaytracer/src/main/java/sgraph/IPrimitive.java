@@ -0,0 +1,88 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+/**
+ * Geometry that rays can be intersected with, in its own coordinate system.
+ * Every leaf of a scene graph is bound to one of these once, when it is
+ * created or compiled into a scene: spheres, boxes, cylinders and cones are
+ * intersected analytically, and everything else as a {@link TriangleMesh}.
+ * Tracing a ray then only calls through this interface, without asking what
+ * kind of geometry it is.
+ *
+ * Primitives are shared by every instance and every thread, so they keep no
+ * state about the rays traced through them. What a thread needs (such as a
+ * stack to traverse a hierarchy with, and the counters it counts its tests
+ * in) is passed in.
+ */
+public interface IPrimitive {
+  /**
+   * Get the bounding box of this primitive in its own coordinate system.
+   * Returns false if it has no geometry.
+   */
+  boolean getBounds(Vector4f minBounds, Vector4f maxBounds);
+
+  /**
+   * Intersect a ray with this primitive, when the ray has already been
+   * transformed into its coordinate system. If the intersection is closer
+   * than the one in the hit record, this updates its time, point, normal,
+   * texture coordinates and primitive (but not its material, texture or
+   * instance, which is left to the caller).
+   *
+   * This is called for every ray that reaches an instance, so it updates the
+   * vectors in the hit record in place and allocates nothing.
+   *
+   * @param rayView      the ray in the view coordinate system
+   * @param rayObject    the same ray in the coordinate system of this
+   *                     primitive
+   * @param normalMatrix the transformation of normals from this primitive to
+   *                     the view coordinate system (the inverse-transpose of
+   *                     the primitive-to-view transformation)
+   * @param hitRecord    the closest hit so far
+   * @param stack        a traversal stack from {@link BVH#newStack()} owned by
+   *                     the calling thread
+   * @param counters     the counters of the calling thread
+   * @return true if the hit record was updated, false otherwise
+   */
+  boolean intersect(Ray rayView, Ray rayObject, Matrix4f normalMatrix,
+                    HitRecord hitRecord, int[] stack, RayCounters counters);
+
+  /**
+   * Find whether a ray, already transformed into the coordinate system of
+   * this primitive, hits it at a parameter in (0,tMax)
+   *
+   * @param stack    a traversal stack from {@link BVH#newStack()} owned by the
+   *                 calling thread
+   * @param counters the counters of the calling thread
+   */
+  boolean intersectsAny(Ray rayObject, float tMax, int[] stack,
+                        RayCounters counters);
+
+  /**
+   * Intersect every ray of a packet with this primitive, when the rays have
+   * already been transformed into its coordinate system. This only records
+   * the parameter of the closest hit of every lane, and the part of the
+   * primitive that was hit where that is cheap to know.
+   *
+   * @param stack    a traversal stack from {@link BVH#newStack()} owned by the
+   *                 calling thread
+   * @param counters the counters of the calling thread
+   */
+  void intersect(RayPacket packet, int[] stack, RayCounters counters);
+
+  /**
+   * Find the texture coordinates of a point near a hit on this primitive, as
+   * if the texture mapping of the surface at the hit extended to it. Both
+   * points are in the coordinate system of this primitive.
+   *
+   * @param primitive   the part of the primitive that was hit, as recorded in
+   *                    the hit record
+   * @param hitObject   the hit point
+   * @param pointObject the nearby point
+   * @param texcoord    set to the texture coordinates of the nearby point
+   */
+  void texcoordAt(int primitive, Vector4f hitObject, Vector4f pointObject,
+                  Vector2f texcoord);
+}
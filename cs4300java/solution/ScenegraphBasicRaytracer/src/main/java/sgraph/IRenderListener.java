@@ -0,0 +1,38 @@
+package sgraph;
+
+/**
+ * This interface represents an observer of an image being ray traced. It is
+ * told about the progress of the image, and may cancel it.
+ *
+ * Tiles are rendered concurrently, so {@link #tileRendered} may be called
+ * from several threads at the same time. The pixels themselves are in the
+ * framebuffer of the renderer (see {@link RTScenegraphRenderer#getFramebuffer()}).
+ */
+public interface IRenderListener {
+  /**
+   * Called when a tile has been rendered
+   *
+   * @param pass the pass that the tile belongs to, starting at 0
+   * @param x0   the first column of the tile
+   * @param y0   the first row of the tile, counted from the top
+   * @param x1   one past the last column of the tile
+   * @param y1   one past the last row of the tile
+   */
+  void tileRendered(int pass, int x0, int y0, int x1, int y1);
+
+  /**
+   * Called when every tile of a pass has been rendered
+   *
+   * @param pass   the pass, starting at 0
+   * @param passes the number of passes in the image. A path traced image
+   *               stops early once it is no longer noisy, so for it this is
+   *               only the most passes it may take.
+   */
+  void passRendered(int pass, int passes);
+
+  /**
+   * Polled while rendering. Once this returns true, no more tiles are started
+   * and the image is abandoned.
+   */
+  boolean isCancelled();
+}
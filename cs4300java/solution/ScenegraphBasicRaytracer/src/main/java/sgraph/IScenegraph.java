@@ -99,5 +99,22 @@ public interface IScenegraph<VertexType extends IVertexData>
      * @param path
      */
     void addTexture(String name,String path);
+
+    /**
+     * Get the handle of the mesh by this name. Meshes are numbered 0,1,2... in
+     * the order they are first added, so that renderers can keep them in an
+     * array indexed by handle instead of looking them up by name
+     * @param name the name of the mesh
+     * @return its handle, or -1 if no mesh by this name has been added
+     */
+    int getMeshHandle(String name);
+
+    /**
+     * Get the handle of the texture by this name. Textures are numbered like
+     * meshes, in their own sequence
+     * @param name the name of the texture
+     * @return its handle, or -1 if no texture by this name has been added
+     */
+    int getTextureHandle(String name);
     void dispose();
 }
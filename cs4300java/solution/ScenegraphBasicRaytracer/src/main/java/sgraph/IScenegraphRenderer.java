@@ -69,11 +69,25 @@ public interface IScenegraphRenderer {
    */
   void draw(INode root, Stack<Matrix4f> modelView);
 
+  /**
+   * Tell this renderer the handles that the scene graph has given to the
+   * meshes and textures already added to it: the handle of each is its index
+   * in these lists. This is called by the scene graph after it adds its
+   * meshes and textures, so that drawing can index arrays by handle.
+   *
+   * @param meshNames    the names of the meshes, by handle
+   * @param textureNames the names of the textures, by handle
+   */
+  void setHandles(List<String> meshNames, List<String> textureNames);
+
   /**
    * Draw a specific mesh. This is called from a leaf node of the associated
    * scene graph
+   *
+   * @param mesh    the handle of the mesh
+   * @param texture the handle of the texture, or -1 for none
    */
-  void drawMesh(String name, util.Material material, String textureName, final Matrix4f transformation);
+  void drawMesh(int mesh, util.Material material, int texture, final Matrix4f transformation);
 
   /**
    * Add a new texture with the given name and the path to the actual image file
@@ -0,0 +1,31 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+/**
+ * A leaf of the scene graph together with the transformation from its
+ * coordinate system to the view coordinate system. This is how the ray
+ * tracer sees the scene: a flat list of these, rather than a tree.
+ */
+public class LeafInstance {
+  /**
+   * The leaf that contains the geometry
+   */
+  public final LeafNode leaf;
+  /**
+   * The transformation from the coordinate system of the leaf to the view
+   * coordinate system
+   */
+  public final Matrix4f leafToView;
+  /**
+   * The stamp of the last change to a transformation between the leaf and the
+   * root (see {@link TransformNode#lastChange()})
+   */
+  public long changed;
+
+  public LeafInstance(LeafNode leaf, Matrix4f leafToView) {
+    this.leaf = leaf;
+    this.leafToView = new Matrix4f(leafToView);
+    changed = 0;
+  }
+}
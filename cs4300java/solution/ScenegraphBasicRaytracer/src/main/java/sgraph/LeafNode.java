@@ -1,13 +1,12 @@
 package sgraph;
 
 import org.joml.Matrix4f;
-import org.joml.Vector2f;
-import org.joml.Vector3f;
 import org.joml.Vector4f;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 
-import util.Material;
 
 /**
  * This node represents the leaf of a scene graph. It is the only type of node
@@ -30,9 +29,38 @@ public class LeafNode extends AbstractNode {
 
   protected String textureName;
 
+  /**
+   * The handles of the mesh and texture in the scene graph, or -1 if they
+   * are not known to it
+   */
+  protected int meshHandle;
+  protected int textureHandle;
+
+  /**
+   * The primitive that the geometry in this leaf is intersected as, chosen
+   * once from the name of its object instance, or null if it is ray traced as
+   * a mesh
+   */
+  protected AnalyticPrimitive primitive;
+
   public LeafNode(String instanceOf, IScenegraph graph, String name) {
     super(graph, name);
     this.objInstanceName = instanceOf;
+    primitive = AnalyticPrimitive.forInstance(instanceOf);
+    meshHandle = -1;
+    textureHandle = -1;
+  }
+
+  /**
+   * Sets the scene graph of this leaf, and looks up the handles of its mesh
+   * and texture in it. A scene graph is set once all its meshes and textures
+   * are known, so from then on this leaf refers to them only by handle.
+   */
+  @Override
+  public void setScenegraph(IScenegraph graph) {
+    super.setScenegraph(graph);
+    meshHandle = graph.getMeshHandle(objInstanceName);
+    textureHandle = (textureName != null) ? graph.getTextureHandle(textureName) : -1;
   }
 
 
@@ -50,6 +78,8 @@ public class LeafNode extends AbstractNode {
   @Override
   public void setTextureName(String name) {
     textureName = name;
+    if (scenegraph != null)
+      textureHandle = scenegraph.getTextureHandle(name);
   }
 
   /*
@@ -59,10 +89,41 @@ public class LeafNode extends AbstractNode {
     return material;
   }
 
+  /**
+   * Gets the name of the object instance (mesh) in this leaf
+   */
+  public String getInstanceName() {
+    return objInstanceName;
+  }
+
+  /**
+   * Gets the name of the texture used by this leaf
+   */
+  public String getTextureName() {
+    return textureName;
+  }
+
+  /**
+   * Gets the handle of the mesh in this leaf, or -1 if it is not known
+   */
+  public int getMeshHandle() {
+    return meshHandle;
+  }
+
+  /**
+   * Gets the handle of the texture used by this leaf, or -1 if it has none
+   */
+  public int getTextureHandle() {
+    return textureHandle;
+  }
+
   @Override
   public INode clone() {
     LeafNode newclone = new LeafNode(this.objInstanceName, scenegraph, name);
     newclone.setMaterial(this.getMaterial());
+    newclone.meshHandle = this.meshHandle;
+    newclone.textureName = this.textureName;
+    newclone.textureHandle = this.textureHandle;
     return newclone;
   }
 
@@ -82,239 +143,128 @@ public class LeafNode extends AbstractNode {
   @Override
   public void draw(IScenegraphRenderer context,
                    Stack<Matrix4f> modelView) throws IllegalArgumentException {
-    if (objInstanceName.length() > 0) {
-      context.drawMesh(objInstanceName,
+    if (meshHandle >= 0) {
+      context.drawMesh(meshHandle,
               material,
-              textureName,
+              textureHandle,
               modelView.peek());
     }
   }
 
+  /**
+   * Returns this leaf, along with the current top of the modelview stack as
+   * its leaf-to-view transformation
+   */
   @Override
-  public void intersect(Ray rayView,
-                        Stack<Matrix4f> modelView,
-                        HitRecord hitRecord) {
-    Ray rayObject = new Ray();
-    Matrix4f leafToView = new Matrix4f(modelView.peek());
-    Matrix4f viewToLeaf = new Matrix4f(leafToView).invert();
-    rayObject.start = new Vector4f(rayView.start);
-    rayObject.direction = new Vector4f(rayView.direction);
-
-    rayObject.start = viewToLeaf.transform(rayObject.start);
-    rayObject.direction = viewToLeaf.transform(rayObject.direction);
-
-
-    if (objInstanceName.equals("sphere")) {
-      float a, b, c;
-
-      a = rayObject.direction.lengthSquared();
-      b = 2 * rayObject.start.dot(rayObject.direction);
-      c = rayObject.start.lengthSquared() - 1 - 1;
-
-      if ((b * b - 4 * a * c) >= 0) {
-        float t1 = (-b + (float) Math.sqrt(b * b - 4 * a * c)) / (2 * a);
-        float t2 = (-b - (float) Math.sqrt(b * b - 4 * a * c)) / (2 * a);
-
-        float t;
-        if (t1 >= 0) {
-          if (t2 >= 0) {
-            t = Math.min(t1, t2);
-          } else {
-            t = t1;
-          }
-        } else {
-          if (t2 >= 0)
-            t = t2;
-          else
-            return;
-        }
-
-        if (t<hitRecord.time)
-        {
-          hitRecord.time = t;
-          hitRecord.point = new Vector4f(rayView.start.x+t*rayView.direction.x,
-                  rayView.start.y+t*rayView.direction.y,
-                  rayView.start.z+t*rayView.direction.z,
-                  1);
-          hitRecord.normal = new Vector4f(rayObject.start.x+t*rayObject.direction.x,
-                  rayObject.start.y+t*rayObject.direction.y,
-                  rayObject.start.z+t*rayObject.direction.z,
-                  0);
-
-          hitRecord.texcoord = new Vector2f((float)((Math.PI+(float)Math.atan2(-hitRecord.normal.z,hitRecord.normal.x))/(2*Math.PI)),
-                  (float)((Math.PI/2+(float)Math.asin(hitRecord.normal.y))/Math.PI));
-          hitRecord.texcoord.x = (hitRecord.texcoord.x+0.5f)%1;
-
-          hitRecord.textureName = this.textureName;
-          hitRecord.normal = new Matrix4f(viewToLeaf).transpose().transform(hitRecord.normal);
-          hitRecord.normal = new Vector4f(new Vector3f(hitRecord
-                  .normal
-                  .x,hitRecord.normal.y,hitRecord.normal.z)
-                  .normalize(),0.0f);
-          hitRecord.material = new Material(this.material);
-
-        }
-
-      }
-    } else if (objInstanceName.equals("box")) {
-      float tmaxX, tmaxY, tmaxZ;
-      float tminX, tminY, tminZ;
-
-      if (Math.abs(rayObject.direction.x) < 0.0001f) {
-        if ((rayObject.start.x > 0.5f) || (rayObject.start.x < -0.5f))
-          return;
-        else {
-          tminX = Float.NEGATIVE_INFINITY;
-          tmaxX = Float.POSITIVE_INFINITY;
-        }
-      } else {
-        float t1 = (-0.5f - rayObject.start.x) / rayObject.direction.x;
-        float t2 = (0.5f - rayObject.start.x) / rayObject.direction.x;
-        tminX = Math.min(t1, t2);
-        tmaxX = Math.max(t1, t2);
-      }
-
-      if (Math.abs(rayObject.direction.y) < 0.0001f) {
-        if ((rayObject.start.y > 0.5f) || (rayObject.start.y < -0.5f)) {
-          return;
-        } else {
-          tminY = Float.NEGATIVE_INFINITY;
-          tmaxY = Float.POSITIVE_INFINITY;
-        }
-      } else {
-        float t1 = (-0.5f - rayObject.start.y) / rayObject.direction.y;
-        float t2 = (0.5f - rayObject.start.y) / rayObject.direction.y;
-        tminY = Math.min(t1, t2);
-        tmaxY = Math.max(t1, t2);
-      }
-
-      if (Math.abs(rayObject.direction.z) < 0.0001f) {
-        if ((rayObject.start.z > 0.5f) || (rayObject.start.z < -0.5f)) {
-          return;
-        } else {
-          tminZ = Float.NEGATIVE_INFINITY;
-          tmaxZ = Float.POSITIVE_INFINITY;
-        }
-      } else {
-        float t1 = (-0.5f - rayObject.start.z) / rayObject.direction.z;
-        float t2 = (0.5f - rayObject.start.z) / rayObject.direction.z;
-        tminZ = Math.min(t1, t2);
-        tmaxZ = Math.max(t1, t2);
-      }
-
-      float tmin, tmax;
-
-      tmin = Math.max(tminX, Math.max(tminY, tminZ));
-      tmax = Math.min(tmaxX, Math.min(tmaxY, tmaxZ));
-
-      if ((tmin < tmax) && (tmax > 0)) {
-        float t;
-        if (tmin > 0)
-          t = tmin;
-        else
-          t = tmax;
-
-        if (t < hitRecord.time) {
-          hitRecord.time = t;
-
-          hitRecord.point = new Vector4f(
-                  rayView.start.x + t * rayView.direction.x,
-                  rayView.start.y + t * rayView.direction.y,
-                  rayView.start.z + t * rayView.direction.z,
-                  1);
-
-          Vector4f pointInLeaf = new Vector4f(
-                  rayObject.start.x + t * rayObject.direction.x,
-                  rayObject.start.y + t * rayObject.direction.y,
-                  rayObject.start.z + t * rayObject.direction.z,
-                  1);
-
-          if (Math.abs(pointInLeaf.x - 0.5f) < 0.001) { //right
-            hitRecord.normal.x = 1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.z,
-                            pointInLeaf.y),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.5f, 0.25f), new Vector2f(0.75f, 0.5f));
-
-          } else if (Math.abs(pointInLeaf.x + 0.5f) < 0.001) //left
-          {
-            hitRecord.normal.x = -1;
-
-
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.z,
-                            pointInLeaf.y),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.25f, 0.25f), new Vector2f(0, 0.5f));
-
-          } else
-            hitRecord.normal.x = 0;
-
-          if (Math.abs(pointInLeaf.y - 0.5f) < 0.001) //top
-          {
-            hitRecord.normal.y = 1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.x,
-                            pointInLeaf.z),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.25f, 0.5f), new Vector2f(0.5f, 0.75f));
-          } else if (Math.abs(pointInLeaf.y + 0.5f) < 0.001) //bottom
-          {
-            hitRecord.normal.y = -1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.z,
-                            pointInLeaf.z),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.25f, 0.25f), new Vector2f(0.5f, 0.0f));
-          } else
-            hitRecord.normal.y = 0;
-
-          if (Math.abs(pointInLeaf.z - 0.5f) < 0.001) //front
-          {
-            hitRecord.normal.z = 1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.x,
-                            pointInLeaf.y),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(1.0f, 0.25f), new Vector2f(0.75f, 0.5f));
-          } else if (Math.abs(pointInLeaf.z + 0.5f) < 0.001) //rear
-          {
-            hitRecord.normal.z = -1;
-            hitRecord.texcoord = windowTransform(new Vector2f(pointInLeaf.x,
-                            pointInLeaf.y),
-                    new Vector2f(-0.5f, -0.5f), new Vector2f(0.5f, 0.5f),
-                    new Vector2f(0.25f, 0.25f), new Vector2f(0.5f, 0.5f));
-          } else
-            hitRecord.normal.z = 0;
-
-          hitRecord.normal.w = 0;
-          hitRecord.normal.normalize();
-
+  public List<LeafInstance> getLeavesInView(Stack<Matrix4f> modelview) {
+    List<LeafInstance> leaves = new ArrayList<LeafInstance>();
+    leaves.add(new LeafInstance(this, modelview.peek()));
+    return leaves;
+  }
 
-          hitRecord.normal = new Matrix4f(viewToLeaf).transpose()
-                                                     .transform(hitRecord.normal);
-          hitRecord.normal = new Vector4f(new Vector3f(hitRecord
-                  .normal
-                  .x, hitRecord.normal.y, hitRecord.normal.z)
-                  .normalize(), 0.0f);
+  /**
+   * Get the bounding box of the geometry in this leaf, in the coordinate
+   * system of this leaf. Only geometry that this leaf can intersect with a
+   * ray analytically (spheres, boxes, cylinders and cones) has bounds;
+   * everything else is ray traced as a {@link TriangleMesh}.
+   *
+   * @param minBounds the minimum corner of the box is returned here
+   * @param maxBounds the maximum corner of the box is returned here
+   * @return true if this leaf has geometry that can be ray traced, false
+   * otherwise
+   */
+  public boolean getBounds(Vector4f minBounds, Vector4f maxBounds) {
+    return (primitive != null) && primitive.getBounds(minBounds, maxBounds);
+  }
 
-          hitRecord.material = new Material(this.material);
-          hitRecord.textureName = this.textureName;
-        }
-      }
+  /**
+   * Gets the primitive that the geometry in this leaf is intersected as, if
+   * it can be intersected analytically, or null if it must be ray traced as
+   * the mesh of this leaf
+   */
+  public IPrimitive getPrimitive() {
+    return primitive;
+  }
 
+  /**
+   * Intersect a ray with this leaf through the scene graph. A leaf without
+   * an analytic primitive is always missed: its mesh is ray traced only
+   * through a compiled {@link RTScene} (see {@link INode#intersect}).
+   */
+  @Override
+  public void intersect(Ray rayView,
+                        Stack<Matrix4f> modelView,
+                        HitRecord hitRecord) {
+    Scratch scratch = hitRecord.leafScratch;
+    if (scratch == null) {
+      scratch = new Scratch();
+      hitRecord.leafScratch = scratch;
+    }
+    Matrix4f viewToLeaf = modelView.peek().invert(scratch.viewToLeaf);
+    Ray rayObject = scratch.rayObject;
+    viewToLeaf.transform(rayView.start, rayObject.start);
+    viewToLeaf.transform(rayView.direction, rayObject.direction);
+
+    if (intersect(rayView, rayObject, viewToLeaf.transpose(scratch.normalMatrix),
+            hitRecord, scratch.counters)) {
+      hitRecord.material = this.material;
+      hitRecord.texture = this.textureHandle;
+      hitRecord.instance = -1;
     }
   }
 
-  private Vector2f windowTransform(Vector2f wcoords,
-                                   Vector2f minw1,
-                                   Vector2f maxw1,
-                                   Vector2f minw2,
-                                   Vector2f maxw2) {
-    Vector2f v = new Vector2f();
-
-    v.x = (wcoords.x - minw1.x) * (maxw2.x - minw2.x) / (maxw1.x - minw1.x)
-          + minw2.x;
-    v.y = (wcoords.y - minw1.y) * (maxw2.y - minw2.y) / (maxw1.y - minw1.y)
-          + minw2.y;
-    return v;
+  /**
+   * Intersect a ray with the geometry in this leaf, when the ray has already
+   * been transformed into the coordinate system of this leaf. If the
+   * intersection is closer than the one in the hit record, this updates its
+   * time, point, normal and texture coordinates (but not its material or
+   * texture, which is left to the caller).
+   *
+   * This is called for every ray that reaches this leaf, so it updates the
+   * vectors in the hit record in place and allocates nothing. A leaf without
+   * an analytic primitive is always missed, as its mesh is traced only
+   * through a compiled {@link RTScene}.
+   *
+   * @param rayView      the ray in the view coordinate system
+   * @param rayObject    the same ray in the coordinate system of this leaf
+   * @param normalMatrix the transformation of normals from this leaf to the
+   *                     view coordinate system (the inverse-transpose of the
+   *                     leaf-to-view transformation)
+   * @param hitRecord    the closest hit so far
+   * @param counters     the counters of the calling thread
+   * @return true if the hit record was updated, false otherwise
+   */
+  public boolean intersect(Ray rayView, Ray rayObject, Matrix4f normalMatrix,
+                           HitRecord hitRecord, RayCounters counters) {
+    return (primitive != null)
+            && primitive.intersect(rayView, rayObject, normalMatrix, hitRecord,
+            null, counters);
   }
 
+  /**
+   * Find only the parameter of the closest intersection of a ray with the
+   * geometry in this leaf, when the ray has already been transformed into the
+   * coordinate system of this leaf. This is all that a shadow ray needs. As
+   * with {@link #intersect(Ray, Ray, Matrix4f, HitRecord, RayCounters)}, a
+   * leaf without an analytic primitive is always missed.
+   *
+   * @return the parameter of the hit, or infinity if the ray misses
+   */
+  public float hitTime(Ray rayObject) {
+    if (primitive == null)
+      return Float.POSITIVE_INFINITY;
+    return primitive.hitTime(rayObject);
+  }
 
+  /**
+   * What intersecting a ray through the scene graph needs at every leaf,
+   * kept in the hit record so that a thread that reuses its record for all
+   * its rays allocates it only once. The counters are not reported.
+   */
+  static final class Scratch {
+    final Ray rayObject = new Ray();
+    final Matrix4f viewToLeaf = new Matrix4f();
+    final Matrix4f normalMatrix = new Matrix4f();
+    final RayCounters counters = new RayCounters();
+  }
 }
@@ -0,0 +1,134 @@
+package sgraph;
+
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+
+import java.util.Arrays;
+import java.util.List;
+
+import util.Light;
+
+/**
+ * The lights of one frame, compiled for shading. Everything that shading needs
+ * from a light is computed once here, rather than for every point and light:
+ * the colors, the position (or direction) in view coordinates, the normalized
+ * spot direction and the cosine of the spot cutoff. These are stored as a
+ * structure of arrays, one array of floats per component, indexed by light.
+ */
+public class LightTable {
+  /**
+   * The number of lights
+   */
+  public final int count;
+  public final float[] ambientR, ambientG, ambientB;
+  public final float[] diffuseR, diffuseG, diffuseB;
+  public final float[] specularR, specularG, specularB;
+  /**
+   * The position of a point light, or the direction that a directional light
+   * shines from, in view coordinates
+   */
+  public final float[] x, y, z;
+  /**
+   * Whether each light is directional (at infinity) rather than a point
+   */
+  public final boolean[] directional;
+  /**
+   * The unit direction that a spot light points in, or zero if it has none
+   */
+  public final float[] spotX, spotY, spotZ;
+  /**
+   * The cosine of the angle between the spot direction and the edge of the
+   * cone of light
+   */
+  public final float[] cosCutoff;
+
+  /**
+   * Compile the lights returned by {@link INode#getLightsInView}
+   */
+  public LightTable(List<Light> lights) {
+    count = lights.size();
+    ambientR = new float[count];
+    ambientG = new float[count];
+    ambientB = new float[count];
+    diffuseR = new float[count];
+    diffuseG = new float[count];
+    diffuseB = new float[count];
+    specularR = new float[count];
+    specularG = new float[count];
+    specularB = new float[count];
+    x = new float[count];
+    y = new float[count];
+    z = new float[count];
+    directional = new boolean[count];
+    spotX = new float[count];
+    spotY = new float[count];
+    spotZ = new float[count];
+    cosCutoff = new float[count];
+
+    for (int i = 0; i < count; i++) {
+      Light light = lights.get(i);
+      Vector3f ambient = light.getAmbient();
+      Vector3f diffuse = light.getDiffuse();
+      Vector3f specular = light.getSpecular();
+      ambientR[i] = ambient.x;
+      ambientG[i] = ambient.y;
+      ambientB[i] = ambient.z;
+      diffuseR[i] = diffuse.x;
+      diffuseG[i] = diffuse.y;
+      diffuseB[i] = diffuse.z;
+      specularR[i] = specular.x;
+      specularG[i] = specular.y;
+      specularB[i] = specular.z;
+
+      Vector4f position = light.getPosition();
+      directional[i] = (position.w == 0);
+      if (directional[i]) {
+        x[i] = -position.x;
+        y[i] = -position.y;
+        z[i] = -position.z;
+      } else {
+        x[i] = position.x;
+        y[i] = position.y;
+        z[i] = position.z;
+      }
+
+      Vector4f spotDirection = light.getSpotDirection();
+      float sx = spotDirection.x, sy = spotDirection.y, sz = spotDirection.z;
+      float sLength = (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+      if (sLength > 0) {
+        sx /= sLength;
+        sy /= sLength;
+        sz /= sLength;
+      }
+      spotX[i] = sx;
+      spotY[i] = sy;
+      spotZ[i] = sz;
+      cosCutoff[i] = (float) Math.cos(Math.toRadians(light.getSpotCutoff()));
+    }
+  }
+
+  /**
+   * Whether the lights of another table light a frame exactly as these do
+   */
+  public boolean sameAs(LightTable other) {
+    return (other == this)
+            || ((other != null) && (other.count == count)
+            && Arrays.equals(ambientR, other.ambientR)
+            && Arrays.equals(ambientG, other.ambientG)
+            && Arrays.equals(ambientB, other.ambientB)
+            && Arrays.equals(diffuseR, other.diffuseR)
+            && Arrays.equals(diffuseG, other.diffuseG)
+            && Arrays.equals(diffuseB, other.diffuseB)
+            && Arrays.equals(specularR, other.specularR)
+            && Arrays.equals(specularG, other.specularG)
+            && Arrays.equals(specularB, other.specularB)
+            && Arrays.equals(x, other.x)
+            && Arrays.equals(y, other.y)
+            && Arrays.equals(z, other.z)
+            && Arrays.equals(directional, other.directional)
+            && Arrays.equals(spotX, other.spotX)
+            && Arrays.equals(spotY, other.spotY)
+            && Arrays.equals(spotZ, other.spotZ)
+            && Arrays.equals(cosCutoff, other.cosCutoff));
+  }
+}
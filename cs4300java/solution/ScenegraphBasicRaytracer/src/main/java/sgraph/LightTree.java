@@ -0,0 +1,390 @@
+package sgraph;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchy over the point lights of a {@link LightTable}, for scenes with
+ * many lights. Every node bounds the positions of its lights with a sphere,
+ * and the directions they shine in with a cone: an axis, the largest angle
+ * between the axis and the spot direction of one of its lights, and the
+ * largest spot cutoff of one of its lights. No light of a node whose cone,
+ * swept over its sphere, does not reach a point is pointed at the point, so
+ * the lights that can light a point are found without testing every light.
+ *
+ * When there are more of those lights than the number of samples asked for,
+ * that many of them are chosen at random, in proportion to an estimate of how
+ * much they light the point: their power, times the cosine of the angle
+ * between the normal and the direction to the light, plus their ambient
+ * power. The contribution of every light chosen is scaled by one over the
+ * number of samples and the probability that it was chosen, so on average
+ * they light the point as all of them would.
+ *
+ * Directional lights have no position, so they are not in the tree and are
+ * always chosen.
+ */
+class LightTree {
+  /**
+   * The smallest number of point lights that are found by going down the
+   * tree, rather than by testing every one in turn
+   */
+  static final int MIN_LIGHTS = 16;
+
+  /**
+   * The lights chosen to light a point, and scratch space for choosing them.
+   * Every thread needs its own.
+   */
+  static class Choice {
+    /**
+     * The indices of the lights chosen, and the weights of their
+     * contributions
+     */
+    final int[] lights;
+    final float[] weights;
+    int count;
+    private final int[] stack;
+    private final float[] importance;
+
+    private Choice(int lights, int nodes) {
+      this.lights = new int[lights];
+      weights = new float[lights];
+      stack = new int[Math.max(nodes, 1)];
+      importance = new float[lights];
+    }
+  }
+
+  private final LightTable lights;
+  private final int[] directionalLights;
+  private final int pointLights;
+  /**
+   * The diffuse and specular power, and the ambient power, of every light
+   */
+  private final float[] power, ambientPower;
+  /**
+   * The nodes of the tree, with the root at 0. Every node has two children,
+   * or is a leaf with one light, in which case left is -1 minus its index.
+   */
+  private int nodeCount;
+  private final int[] left, right;
+  private final float[] centerX, centerY, centerZ, radius;
+  private final float[] axisX, axisY, axisZ;
+  private final float[] thetaO, thetaE;
+  /**
+   * The cosine and sine of the largest angle between the axis of a node and
+   * a direction that one of its lights shines in
+   */
+  private final float[] cosReach, sinReach;
+
+  LightTree(LightTable lights) {
+    this.lights = lights;
+    power = new float[lights.count];
+    ambientPower = new float[lights.count];
+    int directional = 0;
+    for (int i = 0; i < lights.count; i++) {
+      power[i] = lights.diffuseR[i] + lights.diffuseG[i] + lights.diffuseB[i]
+              + lights.specularR[i] + lights.specularG[i] + lights.specularB[i];
+      ambientPower[i] = lights.ambientR[i] + lights.ambientG[i] + lights.ambientB[i];
+      if (lights.directional[i])
+        directional++;
+    }
+    directionalLights = new int[directional];
+    pointLights = lights.count - directional;
+    Integer[] order = new Integer[pointLights];
+    for (int i = 0, d = 0, p = 0; i < lights.count; i++) {
+      if (lights.directional[i])
+        directionalLights[d++] = i;
+      else
+        order[p++] = i;
+    }
+
+    int nodes = Math.max(2 * pointLights - 1, 0);
+    left = new int[nodes];
+    right = new int[nodes];
+    centerX = new float[nodes];
+    centerY = new float[nodes];
+    centerZ = new float[nodes];
+    radius = new float[nodes];
+    axisX = new float[nodes];
+    axisY = new float[nodes];
+    axisZ = new float[nodes];
+    thetaO = new float[nodes];
+    thetaE = new float[nodes];
+    cosReach = new float[nodes];
+    sinReach = new float[nodes];
+    if (pointLights > 0)
+      build(order, 0, pointLights);
+    for (int node = 0; node < nodeCount; node++) {
+      double reach = Math.min(thetaO[node] + thetaE[node], Math.PI);
+      cosReach[node] = (float) Math.cos(reach);
+      sinReach[node] = (float) Math.sin(reach);
+    }
+  }
+
+  /**
+   * Build the subtree of the point lights in order[from,to), split at the
+   * median of the longest axis of their bounds, and return its root
+   */
+  private int build(Integer[] order, int from, int to) {
+    LightTable lights = this.lights;
+    int node = nodeCount++;
+    if (to - from == 1) {
+      int i = order[from];
+      left[node] = -1 - i;
+      centerX[node] = lights.x[i];
+      centerY[node] = lights.y[i];
+      centerZ[node] = lights.z[i];
+      float sx = lights.spotX[i], sy = lights.spotY[i], sz = lights.spotZ[i];
+      if ((sx != 0) || (sy != 0) || (sz != 0)) {
+        axisX[node] = sx;
+        axisY[node] = sy;
+        axisZ[node] = sz;
+      } else {
+        //a light without a spot direction shines every way
+        axisZ[node] = -1;
+        thetaO[node] = (float) Math.PI;
+      }
+      thetaE[node] = (float) Math.acos(Math.max(-1, Math.min(lights.cosCutoff[i], 1)));
+      return node;
+    }
+
+    float minX = Float.POSITIVE_INFINITY, minY = minX, minZ = minX;
+    float maxX = Float.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+    for (int k = from; k < to; k++) {
+      int i = order[k];
+      minX = Math.min(minX, lights.x[i]);
+      minY = Math.min(minY, lights.y[i]);
+      minZ = Math.min(minZ, lights.z[i]);
+      maxX = Math.max(maxX, lights.x[i]);
+      maxY = Math.max(maxY, lights.y[i]);
+      maxZ = Math.max(maxZ, lights.z[i]);
+    }
+    final float[] key;
+    if ((maxX - minX >= maxY - minY) && (maxX - minX >= maxZ - minZ))
+      key = lights.x;
+    else if (maxY - minY >= maxZ - minZ)
+      key = lights.y;
+    else
+      key = lights.z;
+    Arrays.sort(order, from, to, (a, b) -> Float.compare(key[a], key[b]));
+
+    int mid = (from + to) / 2;
+    int l = build(order, from, mid);
+    int r = build(order, mid, to);
+    left[node] = l;
+    right[node] = r;
+    centerX[node] = 0.5f * (minX + maxX);
+    centerY[node] = 0.5f * (minY + maxY);
+    centerZ[node] = 0.5f * (minZ + maxZ);
+    float ex = 0.5f * (maxX - minX), ey = 0.5f * (maxY - minY);
+    float ez = 0.5f * (maxZ - minZ);
+    radius[node] = (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+    mergeCones(node, l, r);
+    thetaE[node] = Math.max(thetaE[l], thetaE[r]);
+    return node;
+  }
+
+  /**
+   * Set the cone of a node to the smallest cone (around an axis between
+   * theirs) that holds the cones of both its children
+   */
+  private void mergeCones(int node, int a, int b) {
+    if (thetaO[b] > thetaO[a]) {
+      int swap = a;
+      a = b;
+      b = swap;
+    }
+    float ax = axisX[a], ay = axisY[a], az = axisZ[a];
+    float bx = axisX[b], by = axisY[b], bz = axisZ[b];
+    float cosD = Math.max(-1, Math.min(ax * bx + ay * by + az * bz, 1));
+    float thetaD = (float) Math.acos(cosD);
+    axisX[node] = ax;
+    axisY[node] = ay;
+    axisZ[node] = az;
+    thetaO[node] = thetaO[a];
+    if (Math.min(thetaD + thetaO[b], (float) Math.PI) <= thetaO[a])
+      return;
+
+    float theta = 0.5f * (thetaO[a] + thetaD + thetaO[b]);
+    //rotate the axis of a towards that of b, in the plane of both
+    float px = bx - cosD * ax, py = by - cosD * ay, pz = bz - cosD * az;
+    float pLength = (float) Math.sqrt(px * px + py * py + pz * pz);
+    if ((theta >= Math.PI) || (pLength < 1e-6f)) {
+      thetaO[node] = (float) Math.PI;
+      return;
+    }
+    float rotation = theta - thetaO[a];
+    float cos = (float) Math.cos(rotation), sin = (float) Math.sin(rotation);
+    float nx = cos * ax + sin * px / pLength;
+    float ny = cos * ay + sin * py / pLength;
+    float nz = cos * az + sin * pz / pLength;
+    float nLength = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+    axisX[node] = nx / nLength;
+    axisY[node] = ny / nLength;
+    axisZ[node] = nz / nLength;
+    //a little wider, so that rounding does not cut off the cones inside
+    thetaO[node] = Math.min(theta + 1e-4f, (float) Math.PI);
+  }
+
+  /**
+   * Make scratch space for choosing lights from this tree
+   */
+  Choice newChoice() {
+    return new Choice(lights.count, nodeCount);
+  }
+
+  /**
+   * Choose the lights that light a surface point, and their weights.
+   *
+   * With no samples, these are all the lights, with weight 1, except the
+   * point lights whose cones cannot reach the point if there are enough of
+   * them to go down the tree for. With samples, if more point lights than
+   * that can light the point, the directional lights are chosen with weight
+   * 1 and the given number of point lights at random; a light chosen more
+   * than once is chosen once, with the sum of the weights.
+   *
+   * @param nx      the unit normal at the point
+   * @param samples the number of point lights to choose at random, or 0 to
+   *                choose every light that can light the point
+   * @param seed    the seed of the random numbers
+   */
+  void choose(float px, float py, float pz, float nx, float ny, float nz,
+              int samples, int seed, Choice choice) {
+    LightTable lights = this.lights;
+    int[] chosen = choice.lights;
+    float[] weights = choice.weights;
+    if ((samples == 0) && (pointLights < MIN_LIGHTS)) {
+      for (int i = 0; i < lights.count; i++) {
+        chosen[i] = i;
+        weights[i] = 1;
+      }
+      choice.count = lights.count;
+      return;
+    }
+
+    int count = 0;
+    for (int i : directionalLights) {
+      chosen[count] = i;
+      weights[count++] = 1;
+    }
+    int first = count;
+    int[] stack = choice.stack;
+    int top = 0;
+    if (pointLights > 0)
+      stack[top++] = 0;
+    while (top > 0) {
+      int node = stack[--top];
+      if (left[node] < 0) {
+        int i = -1 - left[node];
+        if (inCone(i, px, py, pz)) {
+          chosen[count] = i;
+          weights[count++] = 1;
+        }
+      } else if (mayReach(node, px, py, pz)) {
+        stack[top++] = right[node];
+        stack[top++] = left[node];
+      }
+    }
+    if ((samples == 0) || (count - first <= samples)) {
+      choice.count = count;
+      return;
+    }
+
+    //the running total of the importance of the lights that can light the point
+    float[] importance = choice.importance;
+    float total = 0;
+    for (int k = first; k < count; k++) {
+      int i = chosen[k];
+      float lx = lights.x[i] - px, ly = lights.y[i] - py, lz = lights.z[i] - pz;
+      float lLength = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+      float nDotL = (nx * lx + ny * ly + nz * lz) / lLength;
+      total += power[i] * Math.max(nDotL, 0) + ambientPower[i];
+      importance[k] = total;
+      weights[k] = 0;
+    }
+    if (!(total > 0)) {
+      choice.count = first;
+      return;
+    }
+
+    int random = mix(seed);
+    for (int s = 0; s < samples; s++) {
+      random ^= random << 13;
+      random ^= random >>> 17;
+      random ^= random << 5;
+      float u = (random >>> 8) * (1.0f / (1 << 24)) * total;
+      //the first light whose running total is past u
+      int low = first, high = count - 1;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (importance[mid] > u)
+          high = mid;
+        else
+          low = mid + 1;
+      }
+      float own = importance[low] - ((low > first) ? importance[low - 1] : 0);
+      weights[low] += total / (samples * own);
+    }
+
+    //keep only the lights chosen
+    int kept = first;
+    for (int k = first; k < count; k++) {
+      if (weights[k] > 0) {
+        chosen[kept] = chosen[k];
+        weights[kept++] = weights[k];
+      }
+    }
+    choice.count = kept;
+  }
+
+  /**
+   * Whether a point is inside the cone of light of a point light, exactly
+   * as shading tests it
+   */
+  private boolean inCone(int i, float px, float py, float pz) {
+    LightTable lights = this.lights;
+    float lx = lights.x[i] - px, ly = lights.y[i] - py, lz = lights.z[i] - pz;
+    float lLength = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+    lx /= lLength;
+    ly /= lLength;
+    lz /= lLength;
+    return -(lx * lights.spotX[i] + ly * lights.spotY[i] + lz * lights.spotZ[i])
+            > lights.cosCutoff[i];
+  }
+
+  /**
+   * Whether a light of a node may shine on a point: whether the point is
+   * within the radius of its sphere of the cone of every direction that its
+   * lights may shine in, with its apex at the center of the sphere
+   */
+  private boolean mayReach(int node, float px, float py, float pz) {
+    float cos = cosReach[node], sin = sinReach[node];
+    if (cos <= -1)
+      return true;
+    float dx = px - centerX[node], dy = py - centerY[node];
+    float dz = pz - centerZ[node];
+    float d2 = dx * dx + dy * dy + dz * dz;
+    float r = radius[node];
+    if (d2 <= r * r)
+      return true;
+    //the distances of the point along the axis and away from it
+    float along = dx * axisX[node] + dy * axisY[node] + dz * axisZ[node];
+    float d = (float) Math.sqrt(d2);
+    if (along >= d * cos)
+      return true;
+    float away = (float) Math.sqrt(Math.max(d2 - along * along, 0));
+    //its distance from the surface of the cone, with room for rounding
+    return away * cos - along * sin < r + 1e-4f * d;
+  }
+
+  /**
+   * Scramble the bits of a seed, so that close seeds start unrelated
+   * sequences of random numbers
+   */
+  static int mix(int h) {
+    h ^= h >>> 15;
+    h *= 0x2C1B3C6D;
+    h ^= h >>> 12;
+    h *= 0x297A2D39;
+    h ^= h >>> 15;
+    return (h != 0) ? h : 1;
+  }
+}
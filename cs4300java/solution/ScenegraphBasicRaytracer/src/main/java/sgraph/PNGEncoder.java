@@ -0,0 +1,131 @@
+package sgraph;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8-bit RGB PNG image a band of rows at a time. Every band is
+ * filtered, compressed and flushed as its own IDAT chunk, so only one band of
+ * uncompressed rows is ever held here.
+ *
+ * Rows use the "sub" filter, which is cheap to compute and compresses the
+ * smooth shading of ray traced images well.
+ */
+public class PNGEncoder implements IImageEncoder {
+  private static final byte[] SIGNATURE = {
+          (byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+  private static final int FILTER_SUB = 1;
+
+  private final OutputStream out;
+  private final int width;
+  private final int height;
+  private final Deflater deflater;
+  private final CRC32 crc;
+  private final byte[] compressed;
+  private byte[] band;
+  private int nextRow;
+
+  /**
+   * Start a PNG image of the given size, writing its header to the stream
+   */
+  public PNGEncoder(OutputStream out, int width, int height) throws IOException {
+    this.out = out;
+    this.width = width;
+    this.height = height;
+    deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    crc = new CRC32();
+    compressed = new byte[64 * 1024];
+    band = new byte[0];
+    nextRow = 0;
+
+    out.write(SIGNATURE);
+    byte[] header = new byte[13];
+    putInt(header, 0, width);
+    putInt(header, 4, height);
+    header[8] = 8; //bits per channel
+    header[9] = 2; //truecolor
+    header[10] = 0; //deflate
+    header[11] = 0; //adaptive filtering
+    header[12] = 0; //no interlacing
+    writeChunk("IHDR", header, header.length);
+  }
+
+  @Override
+  public void writeRows(int[] pixels, int firstRow, int rows) throws IOException {
+    if (firstRow != nextRow)
+      throw new IllegalArgumentException("Rows must be written in order");
+    if (firstRow + rows > height)
+      throw new IllegalArgumentException("Rows are outside the image");
+
+    int stride = 1 + 3 * width;
+    if (band.length < rows * stride)
+      band = new byte[rows * stride];
+
+    int b = 0;
+    for (int j = 0; j < rows; j++) {
+      int p = (firstRow + j) * width;
+      band[b++] = FILTER_SUB;
+      int pr = 0, pg = 0, pb = 0;
+      for (int i = 0; i < width; i++) {
+        int rgb = pixels[p + i];
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int bl = rgb & 0xff;
+        band[b++] = (byte) (r - pr);
+        band[b++] = (byte) (g - pg);
+        band[b++] = (byte) (bl - pb);
+        pr = r;
+        pg = g;
+        pb = bl;
+      }
+    }
+
+    deflater.setInput(band, 0, b);
+    int n;
+    while ((n = deflater.deflate(compressed, 0, compressed.length,
+            Deflater.SYNC_FLUSH)) > 0) {
+      writeChunk("IDAT", compressed, n);
+    }
+    nextRow += rows;
+  }
+
+  @Override
+  public void finish() throws IOException {
+    if (nextRow != height)
+      throw new IllegalStateException("Not all rows of the image were written");
+    deflater.finish();
+    while (!deflater.finished()) {
+      int n = deflater.deflate(compressed);
+      if (n > 0)
+        writeChunk("IDAT", compressed, n);
+    }
+    deflater.end();
+    writeChunk("IEND", compressed, 0);
+    out.flush();
+  }
+
+  private void writeChunk(String type, byte[] data, int length)
+          throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    byte[] word = new byte[4];
+    putInt(word, 0, length);
+    out.write(word);
+    out.write(typeBytes);
+    out.write(data, 0, length);
+    crc.reset();
+    crc.update(typeBytes);
+    crc.update(data, 0, length);
+    putInt(word, 0, (int) crc.getValue());
+    out.write(word);
+  }
+
+  private static void putInt(byte[] b, int o, int value) {
+    b[o] = (byte) (value >>> 24);
+    b[o + 1] = (byte) (value >>> 16);
+    b[o + 2] = (byte) (value >>> 8);
+    b[o + 3] = (byte) value;
+  }
+}
@@ -0,0 +1,59 @@
+package sgraph;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a binary (P6) PPM image a band of rows at a time. PPM is
+ * uncompressed, so this is the cheapest way to get very large images out of
+ * the ray tracer.
+ */
+public class PPMEncoder implements IImageEncoder {
+  private final OutputStream out;
+  private final int width;
+  private final int height;
+  private byte[] band;
+  private int nextRow;
+
+  /**
+   * Start a PPM image of the given size, writing its header to the stream
+   */
+  public PPMEncoder(OutputStream out, int width, int height) throws IOException {
+    this.out = out;
+    this.width = width;
+    this.height = height;
+    band = new byte[0];
+    nextRow = 0;
+    out.write(("P6\n" + width + " " + height + "\n255\n")
+            .getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @Override
+  public void writeRows(int[] pixels, int firstRow, int rows) throws IOException {
+    if (firstRow != nextRow)
+      throw new IllegalArgumentException("Rows must be written in order");
+    if (firstRow + rows > height)
+      throw new IllegalArgumentException("Rows are outside the image");
+
+    if (band.length < 3 * width * rows)
+      band = new byte[3 * width * rows];
+    int b = 0;
+    int end = (firstRow + rows) * width;
+    for (int p = firstRow * width; p < end; p++) {
+      int rgb = pixels[p];
+      band[b++] = (byte) (rgb >> 16);
+      band[b++] = (byte) (rgb >> 8);
+      band[b++] = (byte) rgb;
+    }
+    out.write(band, 0, b);
+    nextRow += rows;
+  }
+
+  @Override
+  public void finish() throws IOException {
+    if (nextRow != height)
+      throw new IllegalStateException("Not all rows of the image were written");
+    out.flush();
+  }
+}
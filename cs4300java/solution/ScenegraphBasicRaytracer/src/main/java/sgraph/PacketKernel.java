@@ -0,0 +1,64 @@
+package sgraph;
+
+/**
+ * The innermost loops of packet tracing: each tests every ray of a packet
+ * against one box or primitive. Hits are recorded in a lane only if they are
+ * closer than the hit it already has, so lanes that have been deactivated
+ * (parameter negative infinity) are never hit.
+ *
+ * There are two implementations: {@link ScalarPacketKernel}, plain loops over
+ * the lanes that the JIT may vectorize, and one that uses the incubating
+ * vector API explicitly, which is only compiled on JDKs that have it. Use
+ * {@link #get()} to obtain the one to use.
+ */
+interface PacketKernel {
+  /**
+   * The system property that turns on the vector API implementation, if it
+   * is available
+   */
+  String VECTOR_PROPERTY = "raytracer.vector";
+
+  /**
+   * Find where the rays of the packet enter an axis-aligned box. Uses the
+   * inverse directions of the packet.
+   *
+   * @param bounds the box, as minx,miny,minz,maxx,maxy,maxz starting at o
+   * @return the smallest parameter at which a ray enters the box before its
+   * closest hit so far (0 if it starts inside), or infinity if no ray does
+   */
+  float enterBox(float[] bounds, int o, RayPacket packet);
+
+  /**
+   * Intersect the packet with the sphere of radius 1 at the origin. Lanes
+   * that hit it record primitive -1.
+   */
+  void intersectSphere(RayPacket packet);
+
+  /**
+   * Intersect the packet with the box [-0.5,0.5]^3. Lanes that hit it record
+   * primitive -1.
+   */
+  void intersectBox(RayPacket packet);
+
+  /**
+   * Intersect the packet with one triangle. Lanes that hit it record the
+   * triangle and the barycentric coordinates of the hit.
+   *
+   * @param positions x,y,z of every vertex
+   * @param a         the offset of the first vertex in positions
+   * @param b         the offset of the second vertex in positions
+   * @param c         the offset of the third vertex in positions
+   * @param triangle  the index of the triangle
+   */
+  void intersectTriangle(float[] positions, int a, int b, int c, int triangle,
+                         RayPacket packet);
+
+  /**
+   * The implementation to trace packets with: the vector API one if it was
+   * asked for with the system property {@value #VECTOR_PROPERTY} and this JDK
+   * can load it, the scalar one otherwise
+   */
+  static PacketKernel get() {
+    return ScalarPacketKernel.SELECTED;
+  }
+}
@@ -0,0 +1,369 @@
+package sgraph;
+
+import org.joml.Vector4f;
+
+import util.Material;
+
+/**
+ * Traces random light paths through a compiled scene, for path traced images.
+ * Every path starts at the eye and is scattered at every surface it hits by
+ * one of the events of its material, chosen at random in the proportions of
+ * its absorption, reflection and transparency:
+ * <ul>
+ * <li>Absorbed light is scattered diffusely. The lights of the scene are
+ * sampled directly (with a shadow ray each), and the path carries on in a
+ * random direction around the normal, so that it picks up the light that
+ * reaches the surface off other surfaces.</li>
+ * <li>Reflected and refracted light carries on in the mirror or refracted
+ * direction, as in ray tracing.</li>
+ * </ul>
+ * Surfaces with an emissive material add their emission to every path that
+ * sees them. Paths end after the maximum number of bounces, or earlier by
+ * Russian roulette once they carry little light.
+ *
+ * Lights light a surface as in Phong shading without the ambient term, whose
+ * place is taken by the light that arrives off other surfaces. The diffuse
+ * reflectance of a material is its diffuse color (times its texture), and the
+ * specular highlights of the lights are added to what a surface reflects
+ * directly. The lights that a surface point is lit by are chosen by the light
+ * tree of the frame, as in ray tracing.
+ *
+ * A tracer keeps its own scratch space and random numbers, so every thread
+ * needs its own. The random numbers of a path depend only on its pixel and
+ * sample, so the image is the same however its tiles are scheduled.
+ */
+class PathTracer {
+  /**
+   * The number of bounces after which paths may be ended by Russian roulette
+   */
+  private static final int ROULETTE_DEPTH = 2;
+
+  private final RTScene scene;
+  private final LightTable lights;
+  private final LightTree lightTree;
+  private final int lightSamples;
+  private final LightTree.Choice lightChoice;
+  private final boolean shadows;
+  private final int maxBounces;
+  private final RTScene.Intersector intersector;
+  private final Ray ray;
+  private final Ray shadowRay;
+  private final HitRecord hitRecord;
+  private final Vector4f texel;
+  private int random;
+
+  /**
+   * The number of rays traced, by depth (not counting shadow rays)
+   */
+  final long[] rays;
+  /**
+   * The light carried by the last path traced
+   */
+  float r, g, b;
+  /**
+   * The instance that the last path hit first, or -1
+   */
+  int instance;
+
+  /**
+   * @param lightSamples the number of point lights chosen to light every
+   *                     surface point, or 0 for every light
+   * @param maxBounces   the number of times a path may be scattered
+   */
+  PathTracer(RTScene scene, LightTable lights, LightTree lightTree,
+             int lightSamples, boolean shadows, int maxBounces) {
+    this.scene = scene;
+    this.lights = lights;
+    this.lightTree = lightTree;
+    this.lightSamples = lightSamples;
+    lightChoice = lightTree.newChoice();
+    this.shadows = shadows;
+    this.maxBounces = maxBounces;
+    intersector = scene.newIntersector();
+    ray = new Ray();
+    shadowRay = new Ray();
+    hitRecord = new HitRecord();
+    texel = new Vector4f();
+    rays = new long[maxBounces + 1];
+  }
+
+  /**
+   * The shadow rays, node visits and intersection tests of the paths traced
+   * so far
+   */
+  RayCounters getCounters() {
+    return intersector.getCounters();
+  }
+
+  /**
+   * Trace one path from the eye through a random point of a pixel, and leave
+   * the light that it carries in r, g and b.
+   *
+   * @param x      the horizontal view coordinate of the center of the pixel
+   * @param y      the vertical view coordinate of the center of the pixel
+   * @param z      the distance of the image plane along -z
+   * @param pixel  the index of the pixel
+   * @param sample the index of the sample in the pixel
+   */
+  void trace(float x, float y, float z, int pixel, int sample) {
+    seed(pixel, sample);
+    ray.start.set(0, 0, 0, 1);
+    ray.direction.set(x + next() - 0.5f, y + next() - 0.5f, z, 0);
+    r = g = b = 0;
+    instance = -1;
+    //the fraction of the light at the end of the path that reaches the eye
+    float tr = 1, tg = 1, tb = 1;
+
+    for (int depth = 0; ; depth++) {
+      rays[depth]++;
+      hitRecord.reset();
+      scene.intersect(ray, hitRecord, intersector);
+      if (!hitRecord.intersected())
+        return;
+      if (depth == 0)
+        instance = hitRecord.instance;
+
+      Material material = scene.getMaterial(hitRecord.instance);
+      Vector4f emission = material.getEmission();
+      r += tr * emission.x;
+      g += tg * emission.y;
+      b += tb * emission.z;
+      //at the last bounce, only the light that reaches it directly is seen
+      boolean last = depth >= maxBounces;
+
+      Vector4f point = hitRecord.point;
+      float dLength = (float) Math.sqrt(ray.direction.x * ray.direction.x
+              + ray.direction.y * ray.direction.y
+              + ray.direction.z * ray.direction.z);
+      float dx = ray.direction.x / dLength;
+      float dy = ray.direction.y / dLength;
+      float dz = ray.direction.z / dLength;
+      Vector4f normal = hitRecord.normal;
+      float nLength = (float) Math.sqrt(normal.x * normal.x
+              + normal.y * normal.y + normal.z * normal.z);
+      float nx = normal.x / nLength, ny = normal.y / nLength;
+      float nz = normal.z / nLength;
+      //turn the normal to face the ray
+      float cosI = -(dx * nx + dy * ny + dz * nz);
+      boolean entering = cosI > 0;
+      if (!entering) {
+        nx = -nx;
+        ny = -ny;
+        nz = -nz;
+        cosI = -cosI;
+      }
+
+      float absorption = material.getAbsorption();
+      float reflection = material.getReflection();
+      float transparency = material.getTransparency();
+      float total = absorption + reflection + transparency;
+      if (!(total > 0))
+        return;
+      float event = next() * total;
+
+      if (event < transparency) {
+        float refractiveIndex = material.getRefractiveIndex();
+        if (refractiveIndex <= 0)
+          refractiveIndex = 1;
+        float eta = entering ? 1 / refractiveIndex : refractiveIndex;
+        float k = 1 - eta * eta * (1 - cosI * cosI);
+        if (k >= 0) {
+          if (last)
+            return;
+          float c = eta * cosI - (float) Math.sqrt(k);
+          leave(point, -RTScenegraphRenderer.SURFACE_BIAS, nx, ny, nz,
+                  eta * dx + c * nx, eta * dy + c * ny, eta * dz + c * nz);
+          continue;
+        }
+        //light that cannot leave is reflected instead
+        event = transparency;
+      }
+
+      if (event < transparency + reflection) {
+        if (last)
+          return;
+        //reflect D about N: R = D + 2(-D.N)N
+        leave(point, RTScenegraphRenderer.SURFACE_BIAS, nx, ny, nz,
+                dx + 2 * cosI * nx, dy + 2 * cosI * ny, dz + 2 * cosI * nz);
+        continue;
+      }
+
+      //diffuse scattering
+      Vector4f diffuse = material.getDiffuse();
+      float ar = diffuse.x, ag = diffuse.y, ab = diffuse.z;
+      TextureSampler texture = scene.getTexture(hitRecord.instance);
+      if (texture != null) {
+        Vector4f color = texture.sample(hitRecord.texcoord.x,
+                1 - hitRecord.texcoord.y, 0, texel);
+        ar *= color.x;
+        ag *= color.y;
+        ab *= color.z;
+      }
+      light(point, nx, ny, nz, -dx, -dy, -dz, material, ar, ag, ab,
+              tr, tg, tb);
+      if (last)
+        return;
+
+      tr *= ar;
+      tg *= ag;
+      tb *= ab;
+      if (depth + 1 >= ROULETTE_DEPTH) {
+        float survive = Math.min(Math.max(tr, Math.max(tg, tb)), 1);
+        if (next() >= survive)
+          return;
+        tr /= survive;
+        tg /= survive;
+        tb /= survive;
+      }
+      scatter(point, nx, ny, nz);
+    }
+  }
+
+  /**
+   * Add the light that reaches a diffuse surface point directly from the
+   * lights of the scene, through the given fraction of it that reaches the
+   * eye
+   *
+   * @param vx the direction back along the path, of unit length
+   */
+  private void light(Vector4f point, float nx, float ny, float nz,
+                     float vx, float vy, float vz, Material material,
+                     float ar, float ag, float ab,
+                     float tr, float tg, float tb) {
+    Vector4f specular = material.getSpecular();
+    float shininess = material.getShininess();
+    LightTree.Choice choice = lightChoice;
+    lightTree.choose(point.x, point.y, point.z, nx, ny, nz, lightSamples,
+            random, choice);
+    if (lightSamples > 0)
+      next();
+    for (int k = 0; k < choice.count; k++) {
+      int i = choice.lights[k];
+      float w = choice.weights[k];
+      float lx, ly, lz;
+      if (lights.directional[i]) {
+        lx = lights.x[i];
+        ly = lights.y[i];
+        lz = lights.z[i];
+      } else {
+        lx = lights.x[i] - point.x;
+        ly = lights.y[i] - point.y;
+        lz = lights.z[i] - point.z;
+      }
+      float lLength = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+      lx /= lLength;
+      ly /= lLength;
+      lz /= lLength;
+
+      if (-(lx * lights.spotX[i] + ly * lights.spotY[i] + lz * lights.spotZ[i])
+              <= lights.cosCutoff[i])
+        continue;
+      float nDotL = nx * lx + ny * ly + nz * lz;
+      if (nDotL <= 0)
+        continue;
+
+      if (shadows) {
+        float bias = RTScenegraphRenderer.SURFACE_BIAS;
+        shadowRay.start.set(point.x + bias * nx, point.y + bias * ny,
+                point.z + bias * nz, 1);
+        float tMax;
+        if (!lights.directional[i]) {
+          shadowRay.direction.set(lights.x[i] - shadowRay.start.x,
+                  lights.y[i] - shadowRay.start.y,
+                  lights.z[i] - shadowRay.start.z, 0);
+          tMax = 1;
+        } else {
+          shadowRay.direction.set(lx, ly, lz, 0);
+          tMax = Float.POSITIVE_INFINITY;
+        }
+        if (scene.occluded(shadowRay, tMax, i, intersector))
+          continue;
+      }
+
+      //reflect -L about N: R = 2(N.L)N - L
+      float rx = 2 * nDotL * nx - lx, ry = 2 * nDotL * ny - ly;
+      float rz = 2 * nDotL * nz - lz;
+      float rLength = (float) Math.sqrt(rx * rx + ry * ry + rz * rz);
+      float rDotV = Math.max((rx * vx + ry * vy + rz * vz) / rLength, 0.0f);
+      float specularFactor = (float) Math.pow(rDotV, shininess);
+
+      r += w * tr * (ar * lights.diffuseR[i] * nDotL
+              + specular.x * lights.specularR[i] * specularFactor);
+      g += w * tg * (ag * lights.diffuseG[i] * nDotL
+              + specular.y * lights.specularG[i] * specularFactor);
+      b += w * tb * (ab * lights.diffuseB[i] * nDotL
+              + specular.z * lights.specularB[i] * specularFactor);
+    }
+  }
+
+  /**
+   * Continue the path from a surface point in a random direction around the
+   * normal, with directions near the normal more likely (in proportion to
+   * the cosine of their angle with it), as a diffuse surface reflects them
+   */
+  private void scatter(Vector4f point, float nx, float ny, float nz) {
+    float phi = (float) (2 * Math.PI * next());
+    float radius2 = next();
+    float radius = (float) Math.sqrt(radius2);
+    float u = radius * (float) Math.cos(phi);
+    float v = radius * (float) Math.sin(phi);
+    float w = (float) Math.sqrt(Math.max(1 - radius2, 0));
+
+    //any two directions perpendicular to the normal and to each other
+    float ax, ay, az;
+    if (Math.abs(nx) > 0.5f) {
+      ax = -nz;
+      ay = 0;
+      az = nx;
+    } else {
+      ax = 0;
+      ay = nz;
+      az = -ny;
+    }
+    float aLength = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+    ax /= aLength;
+    ay /= aLength;
+    az /= aLength;
+    float bx = ny * az - nz * ay;
+    float by = nz * ax - nx * az;
+    float bz = nx * ay - ny * ax;
+
+    leave(point, RTScenegraphRenderer.SURFACE_BIAS, nx, ny, nz,
+            u * ax + v * bx + w * nx,
+            u * ay + v * by + w * ny,
+            u * az + v * bz + w * nz);
+  }
+
+  /**
+   * Set the ray of the path to leave a surface point in the given direction,
+   * starting just off the surface by the given (signed) bias along the normal
+   */
+  private void leave(Vector4f point, float bias, float nx, float ny, float nz,
+                     float dx, float dy, float dz) {
+    ray.start.set(point.x + bias * nx, point.y + bias * ny,
+            point.z + bias * nz, 1);
+    ray.direction.set(dx, dy, dz, 0);
+  }
+
+  private void seed(int pixel, int sample) {
+    int h = pixel * 0x9E3779B1 + sample * 0x85EBCA77;
+    h ^= h >>> 15;
+    h *= 0x2C1B3C6D;
+    h ^= h >>> 12;
+    h *= 0x297A2D39;
+    h ^= h >>> 15;
+    random = (h != 0) ? h : 1;
+  }
+
+  /**
+   * The next random number of the path, in [0,1)
+   */
+  private float next() {
+    int x = random;
+    x ^= x << 13;
+    x ^= x >>> 17;
+    x ^= x << 5;
+    random = x;
+    return (x >>> 8) * (1.0f / (1 << 24));
+  }
+}
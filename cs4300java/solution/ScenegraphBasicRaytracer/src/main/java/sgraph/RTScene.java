@@ -0,0 +1,526 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import util.Material;
+
+/**
+ * A snapshot of a scene graph, compiled for ray tracing. Compiling flattens
+ * the tree into a table of instances, one per leaf that can be ray traced.
+ * Every transformation that a ray needs is computed here once, instead of for
+ * every ray:
+ *
+ * <ul> <li>the leaf-to-view transformation</li> <li>its inverse, to take rays
+ * into the coordinate system of the leaf</li> <li>its inverse-transpose, to
+ * take normals back into the view coordinate system</li> </ul>
+ *
+ * Each instance also refers to its material by an index into a table in this
+ * snapshot, and to its texture by its handle in the scene graph. The
+ * instances are organized in a {@link BVH}.
+ *
+ * A snapshot is not affected by later changes to the scene graph, and is never
+ * modified once compiled, so any number of threads may trace rays against it.
+ *
+ * A snapshot can be compiled from the previous one of the same scene graph.
+ * If the scene graph has the same leaves, only the instances below a
+ * {@link TransformNode} that changed since then are transformed again, and
+ * the hierarchy is refitted to them rather than built again, unless refitting
+ * has made it too much worse than when it was built.
+ */
+public class RTScene {
+  /**
+   * How much the SAH cost of a refitted hierarchy may grow over that of the
+   * hierarchy it was refitted from when that was built, before it is built
+   * again
+   */
+  private static final float MAX_COST_GROWTH = 1.3f;
+  /**
+   * The ways that an instance can change from one snapshot to the next, as
+   * found by {@link #changesSince}: it can move (or change shape), and its
+   * material or texture can change
+   */
+  public static final int MOVED = 1;
+  public static final int RESTYLED = 2;
+  /**
+   * The material of leaves that have none, shared so that it stays the same
+   * from one snapshot to the next
+   */
+  private static final Material DEFAULT_MATERIAL = new Material();
+
+  private LeafNode[] leaves;
+  /**
+   * The primitive of every instance: the analytic primitive of its leaf, or
+   * else the mesh of its leaf
+   */
+  private IPrimitive[] primitives;
+  private Matrix4f[] leafToView;
+  private Matrix4f[] viewToLeaf;
+  private Matrix4f[] normalMatrix;
+  private int[] materialIndex;
+  private int[] textureIndex;
+  private Material[] materials;
+  private TextureSampler[] textures;
+  /**
+   * View-space bounds of every instance: minx,miny,minz,maxx,maxy,maxz
+   */
+  private float[] bounds;
+  private BVH bvh;
+  /**
+   * The world-to-view transformation, and the last change to a transform
+   * node before compiling, to tell what the next snapshot can keep
+   */
+  private Matrix4f camera;
+  private long compiled;
+  private boolean refitted;
+
+  private RTScene() {
+  }
+
+  /**
+   * Compile the scene graph rooted at the given node.
+   *
+   * @param root      the root of the scene graph
+   * @param modelView a stack whose top is the world-to-view transformation
+   * @param textures  the textures available to the scene, by handle (null
+   *                  where a texture could not be prepared)
+   * @param meshes    the meshes available to the scene, by handle (null where
+   *                  a mesh cannot be ray traced)
+   */
+  public static RTScene compile(INode root, Stack<Matrix4f> modelView,
+                                TextureSampler[] textures,
+                                TriangleMesh[] meshes) {
+    return compile(root, modelView, textures, meshes, null);
+  }
+
+  /**
+   * Compile the scene graph rooted at the given node, reusing what has not
+   * changed since the previous snapshot of it.
+   *
+   * @param previous the snapshot compiled from this scene graph before, or
+   *                 null to compile everything
+   */
+  public static RTScene compile(INode root, Stack<Matrix4f> modelView,
+                                TextureSampler[] textures,
+                                TriangleMesh[] meshes, RTScene previous) {
+    long compiled = TransformNode.lastChange();
+    List<LeafInstance> all = root.getLeavesInView(modelView);
+    RTScene scene = new RTScene();
+    scene.camera = new Matrix4f(modelView.peek());
+    scene.compiled = compiled;
+    //a moving camera moves every instance, but the tree may still fit them
+    boolean sameCamera = (previous != null)
+            && previous.camera.equals(scene.camera);
+    boolean sameLeaves = (previous != null);
+    boolean[] changed = new boolean[all.size()];
+
+    int n = 0;
+    scene.leaves = new LeafNode[all.size()];
+    scene.primitives = new IPrimitive[all.size()];
+    scene.leafToView = new Matrix4f[all.size()];
+    scene.viewToLeaf = new Matrix4f[all.size()];
+    scene.normalMatrix = new Matrix4f[all.size()];
+    scene.materialIndex = new int[all.size()];
+    scene.textureIndex = new int[all.size()];
+    scene.bounds = new float[6 * all.size()];
+
+    List<Material> materialList = new ArrayList<Material>();
+    Map<Material, Integer> materialIds = new IdentityHashMap<Material, Integer>();
+    Vector4f minBounds = new Vector4f();
+    Vector4f maxBounds = new Vector4f();
+
+    for (LeafInstance instance : all) {
+      IPrimitive primitive = instance.leaf.getPrimitive();
+      if (primitive == null) {
+        int handle = instance.leaf.getMeshHandle();
+        if ((handle >= 0) && (handle < meshes.length))
+          primitive = meshes[handle];
+      }
+      if ((primitive == null) || (!primitive.getBounds(minBounds, maxBounds)))
+        continue;
+
+      scene.leaves[n] = instance.leaf;
+      scene.primitives[n] = primitive;
+      sameLeaves = sameLeaves && (n < previous.getInstanceCount())
+              && (previous.leaves[n] == instance.leaf)
+              && (previous.primitives[n] == primitive);
+
+      Material material = instance.leaf.getMaterial();
+      if (material == null)
+        material = DEFAULT_MATERIAL;
+      Integer id = materialIds.get(material);
+      if (id == null) {
+        id = materialList.size();
+        materialIds.put(material, id);
+        materialList.add(material);
+      }
+      scene.materialIndex[n] = id;
+
+      int texture = instance.leaf.getTextureHandle();
+      if ((texture >= 0) && (texture < textures.length)
+              && (textures[texture] != null))
+        scene.textureIndex[n] = texture;
+      else
+        scene.textureIndex[n] = -1;
+
+      if (sameLeaves && sameCamera && (instance.changed <= previous.compiled)) {
+        //nothing above this leaf has moved since the previous snapshot
+        scene.leafToView[n] = previous.leafToView[n];
+        scene.viewToLeaf[n] = previous.viewToLeaf[n];
+        scene.normalMatrix[n] = previous.normalMatrix[n];
+        System.arraycopy(previous.bounds, 6 * n, scene.bounds, 6 * n, 6);
+      } else {
+        scene.leafToView[n] = instance.leafToView;
+        scene.viewToLeaf[n] = new Matrix4f(instance.leafToView).invert();
+        scene.normalMatrix[n] = new Matrix4f(scene.viewToLeaf[n]).transpose();
+        transformBounds(instance.leafToView, minBounds, maxBounds,
+                scene.bounds, 6 * n);
+        changed[n] = true;
+      }
+      n++;
+    }
+
+    scene.materials = materialList.toArray(new Material[materialList.size()]);
+    scene.textures = textures;
+    if (sameLeaves && (n == previous.getInstanceCount())) {
+      BVH bvh = previous.bvh.refit(scene.bounds, changed);
+      if (bvh.getCost() <= MAX_COST_GROWTH * bvh.getBuildCost()) {
+        scene.bvh = bvh;
+        scene.refitted = true;
+        return scene;
+      }
+    }
+    scene.bvh = new BVH(scene.bounds, n);
+    return scene;
+  }
+
+  /**
+   * Compute the box around the 8 corners of the given box after transforming
+   * them
+   */
+  private static void transformBounds(Matrix4f transform, Vector4f minBounds,
+                                      Vector4f maxBounds, float[] bounds,
+                                      int o) {
+    Vector4f corner = new Vector4f();
+    bounds[o] = bounds[o + 1] = bounds[o + 2] = Float.POSITIVE_INFINITY;
+    bounds[o + 3] = bounds[o + 4] = bounds[o + 5] = Float.NEGATIVE_INFINITY;
+    for (int c = 0; c < 8; c++) {
+      corner.set((c & 1) == 0 ? minBounds.x : maxBounds.x,
+              (c & 2) == 0 ? minBounds.y : maxBounds.y,
+              (c & 4) == 0 ? minBounds.z : maxBounds.z,
+              1);
+      transform.transform(corner);
+      bounds[o] = Math.min(bounds[o], corner.x);
+      bounds[o + 1] = Math.min(bounds[o + 1], corner.y);
+      bounds[o + 2] = Math.min(bounds[o + 2], corner.z);
+      bounds[o + 3] = Math.max(bounds[o + 3], corner.x);
+      bounds[o + 4] = Math.max(bounds[o + 4], corner.y);
+      bounds[o + 5] = Math.max(bounds[o + 5], corner.z);
+    }
+  }
+
+  /**
+   * Whether the hierarchy of this snapshot was refitted from the previous
+   * one, rather than built
+   */
+  public boolean isRefitted() {
+    return refitted;
+  }
+
+  /**
+   * The number of instances in this snapshot
+   */
+  public int getInstanceCount() {
+    return bvh.getPrimitiveCount();
+  }
+
+  /**
+   * Copy the bounds of the given instance, in view coordinates, into an array
+   * at the given offset: minx,miny,minz,maxx,maxy,maxz
+   */
+  public void getBounds(int instance, float[] bounds, int offset) {
+    System.arraycopy(this.bounds, 6 * instance, bounds, offset, 6);
+  }
+
+  /**
+   * Find how every instance has changed since an earlier snapshot of the same
+   * scene graph, seen by the same camera: for every instance, a combination
+   * of {@link #MOVED} and {@link #RESTYLED}, or 0 if it is the same.
+   *
+   * Materials are compared by identity, so this only sees a material change
+   * made with {@link LeafNode#setMaterial}, which replaces the material of
+   * the leaf, and not one made to the material in place.
+   *
+   * @return the changes, by instance, or null if the snapshots cannot be
+   * compared because their leaves or cameras differ
+   */
+  public int[] changesSince(RTScene previous) {
+    int n = getInstanceCount();
+    if ((previous == null) || (previous.getInstanceCount() != n)
+            || (!previous.camera.equals(camera)))
+      return null;
+    int[] changes = new int[n];
+    for (int i = 0; i < n; i++) {
+      if ((previous.leaves[i] != leaves[i])
+              || (previous.primitives[i] != primitives[i]))
+        return null;
+      if ((previous.leafToView[i] != leafToView[i])
+              && (!previous.leafToView[i].equals(leafToView[i])))
+        changes[i] |= MOVED;
+      if ((previous.getMaterial(i) != getMaterial(i))
+              || (previous.textureIndex[i] != textureIndex[i]))
+        changes[i] |= RESTYLED;
+    }
+    return changes;
+  }
+
+  /**
+   * The material of the given instance
+   */
+  public Material getMaterial(int instance) {
+    return materials[materialIndex[instance]];
+  }
+
+  /**
+   * The texture of the given instance, or null if it has none
+   */
+  public TextureSampler getTexture(int instance) {
+    int t = textureIndex[instance];
+    return (t >= 0) ? textures[t] : null;
+  }
+
+  /**
+   * Find the texture coordinates of a point (in view coordinates) near a hit
+   * on an instance, as if the texture mapping of the surface at the hit
+   * extended to it. Comparing these with the texture coordinates of the hit
+   * tells how fast they change across the surface.
+   *
+   * @param hitRecord   the hit, on a compiled instance
+   * @param point       the nearby point, in view coordinates
+   * @param texcoord    set to the texture coordinates of the point
+   * @param intersector obtained from {@link #newIntersector()} by the calling
+   *                    thread
+   */
+  public void texcoordAt(HitRecord hitRecord, Vector4f point,
+                         Vector2f texcoord, Intersector intersector) {
+    int instance = hitRecord.instance;
+    Vector4f hitObject = intersector.rayObject.start;
+    Vector4f pointObject = intersector.rayObject.direction;
+    viewToLeaf[instance].transform(hitRecord.point, hitObject);
+    viewToLeaf[instance].transform(point, pointObject);
+    primitives[instance].texcoordAt(hitRecord.primitive, hitObject,
+            pointObject, texcoord);
+  }
+
+  /**
+   * Create an object that intersects rays with the instances of this scene.
+   * It keeps scratch space for the ray in the coordinate system of each
+   * instance and for traversing the hierarchies, so every thread should
+   * create its own and reuse it for all its rays.
+   */
+  public Intersector newIntersector() {
+    return new Intersector();
+  }
+
+  /**
+   * Find the closest intersection of a ray (in view coordinates) with this
+   * scene.
+   *
+   * @param rayView     the ray in view coordinates
+   * @param hitRecord   the closest hit is recorded here, including the index
+   *                    of the instance that was hit
+   * @param intersector obtained from {@link #newIntersector()} by the calling
+   *                    thread
+   */
+  public void intersect(Ray rayView, HitRecord hitRecord,
+                        Intersector intersector) {
+    bvh.intersect(rayView, hitRecord, intersector, intersector.instanceStack,
+            intersector.counters, RayCounters.INSTANCE);
+  }
+
+  /**
+   * Find whether anything lies between a point and a light, i.e. whether a
+   * shadow ray from the point hits any instance at a parameter in (0,tMax).
+   *
+   * The instance that blocked the previous shadow ray to the same light is
+   * tested first. Neighbouring points are usually shadowed by the same
+   * object, so this often finds an occluder without traversing the
+   * hierarchy. Otherwise the hierarchy is traversed, stopping at the first
+   * occluder found, which becomes the one to test first next time.
+   *
+   * @param shadowRay   the ray from the point towards the light, in view
+   *                    coordinates
+   * @param tMax        the parameter of the light along the ray (infinity
+   *                    for directional lights)
+   * @param light       the index of the light, for the occluder cache
+   * @param intersector obtained from {@link #newIntersector()} by the calling
+   *                    thread; it holds the occluder cache
+   */
+  public boolean occluded(Ray shadowRay, float tMax, int light,
+                          Intersector intersector) {
+    RayCounters counters = intersector.counters;
+    counters.shadowRays++;
+    int[] cache = intersector.lastOccluder;
+    if (light >= cache.length) {
+      cache = Arrays.copyOf(cache, light + 1);
+      Arrays.fill(cache, intersector.lastOccluder.length, light + 1, -1);
+      intersector.lastOccluder = cache;
+    }
+
+    int last = cache[light];
+    if (last >= 0) {
+      counters.tests[RayCounters.INSTANCE]++;
+      if (intersector.hits(last, shadowRay, tMax))
+        return true;
+    }
+
+    intersector.occluder = -1;
+    if (bvh.intersectAny(shadowRay, tMax, intersector, intersector.instanceStack,
+            counters, RayCounters.INSTANCE)) {
+      cache[light] = intersector.occluder;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Find the closest intersection of every ray of a packet (in view
+   * coordinates) with this scene. This only records, for every lane, the
+   * parameter of its closest hit and the instance (and triangle) that was hit;
+   * use {@link #completeHit} to get the full hit record of a lane.
+   *
+   * @param intersector obtained from {@link #newIntersector()} by the calling
+   *                    thread
+   */
+  public void intersect(RayPacket packet, Intersector intersector) {
+    bvh.intersect(packet, intersector, intersector.kernel,
+            intersector.instanceStack, intersector.counters,
+            RayCounters.INSTANCE);
+  }
+
+  /**
+   * Fill in the hit record of one lane of a packet that has been traced with
+   * {@link #intersect(RayPacket, Intersector)}, as if its ray had been traced
+   * on its own.
+   *
+   * @param rayView   set to the ray of the lane
+   * @param hitRecord reset, and then set to the hit of the lane if it has one
+   */
+  public void completeHit(RayPacket packet, int lane, Ray rayView,
+                          HitRecord hitRecord, Intersector intersector) {
+    rayView.start.set(packet.ox[lane], packet.oy[lane], packet.oz[lane], 1);
+    rayView.direction.set(packet.dx[lane], packet.dy[lane], packet.dz[lane], 0);
+    hitRecord.reset();
+    int instance = packet.instance[lane];
+    if ((instance < 0) || (!packet.isHit(lane)))
+      return;
+
+    if (primitives[instance] instanceof TriangleMesh) {
+      hitRecord.time = packet.t[lane];
+      hitRecord.primitive = packet.primitive[lane];
+      hitRecord.u = packet.u[lane];
+      hitRecord.v = packet.v[lane];
+      ((TriangleMesh) primitives[instance]).completeHit(rayView,
+              normalMatrix[instance], hitRecord);
+      hitRecord.instance = instance;
+    } else {
+      //intersecting the one instance again is cheap, and gives exactly the
+      //hit that tracing this ray alone would
+      intersector.counters.tests[RayCounters.INSTANCE]++;
+      intersector.visit(instance, rayView, hitRecord);
+      if (!hitRecord.intersected())
+        intersect(rayView, hitRecord, intersector);
+    }
+  }
+
+  /**
+   * Per-thread scratch space for intersecting rays with a scene, and the
+   * counters of the work done with it
+   */
+  public class Intersector
+          implements BVH.Visitor, BVH.PacketVisitor, BVH.AnyHitVisitor {
+    private final Ray rayObject = new Ray();
+    private final int[] instanceStack = BVH.newStack();
+    private final int[] meshStack = BVH.newStack();
+    private final RayCounters counters = new RayCounters();
+    private final PacketKernel kernel = PacketKernel.get();
+    /**
+     * The rays of the packet being traced, in the coordinate system of the
+     * instance being visited
+     */
+    private RayPacket packetObject;
+    private final float[] closest = new float[16];
+    /**
+     * For every light, the instance that last blocked a shadow ray to it, or
+     * -1
+     */
+    private int[] lastOccluder = new int[0];
+    private int occluder;
+
+    private Intersector() {
+    }
+
+    /**
+     * The shadow rays, node visits and intersection tests of every ray traced
+     * with this intersector so far
+     */
+    public RayCounters getCounters() {
+      return counters;
+    }
+
+    @Override
+    public void visit(int instance, Ray rayView, HitRecord hitRecord) {
+      //the only matrix operation per ray and instance
+      viewToLeaf[instance].transform(rayView.start, rayObject.start);
+      viewToLeaf[instance].transform(rayView.direction, rayObject.direction);
+      if (primitives[instance].intersect(rayView, rayObject,
+              normalMatrix[instance], hitRecord, meshStack, counters)) {
+        hitRecord.instance = instance;
+      }
+    }
+
+    @Override
+    public boolean hits(int instance, Ray rayView, float tMax) {
+      viewToLeaf[instance].transform(rayView.start, rayObject.start);
+      viewToLeaf[instance].transform(rayView.direction, rayObject.direction);
+      boolean hit = primitives[instance].intersectsAny(rayObject, tMax,
+              meshStack, counters);
+      if (hit)
+        occluder = instance;
+      return hit;
+    }
+
+    @Override
+    public void visit(int instance, RayPacket packet) {
+      if ((packetObject == null) || (!packetObject.sharesHitsWith(packet)))
+        packetObject = new RayPacket(packet);
+      RayPacket p = packetObject;
+      Matrix4f m = viewToLeaf[instance];
+      for (int i = 0; i < packet.size; i++) {
+        float ox = packet.ox[i], oy = packet.oy[i], oz = packet.oz[i];
+        float dx = packet.dx[i], dy = packet.dy[i], dz = packet.dz[i];
+        p.ox[i] = m.m00() * ox + m.m10() * oy + m.m20() * oz + m.m30();
+        p.oy[i] = m.m01() * ox + m.m11() * oy + m.m21() * oz + m.m31();
+        p.oz[i] = m.m02() * ox + m.m12() * oy + m.m22() * oz + m.m32();
+        p.dx[i] = m.m00() * dx + m.m10() * dy + m.m20() * dz;
+        p.dy[i] = m.m01() * dx + m.m11() * dy + m.m21() * dz;
+        p.dz[i] = m.m02() * dx + m.m12() * dy + m.m22() * dz;
+      }
+
+      System.arraycopy(packet.t, 0, closest, 0, packet.size);
+      primitives[instance].intersect(p, meshStack, counters);
+      for (int i = 0; i < packet.size; i++) {
+        if (packet.t[i] < closest[i])
+          packet.instance[i] = instance;
+      }
+    }
+  }
+}
@@ -5,36 +5,180 @@ import org.joml.Vector2f;
 import org.joml.Vector3f;
 import org.joml.Vector4f;
 
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
-import javax.imageio.ImageIO;
-
+import util.IVertexData;
 import util.Light;
 import util.Material;
 import util.PolygonMesh;
-import util.TextureImage;
 
 /**
  * Created by ashesh on 4/12/2016.
  */
 public class RTScenegraphRenderer implements IScenegraphRenderer {
-    private List<Light> lights;
     /**
-     * A map to store all the textures
+     * The lights of the frame being drawn, compiled for shading
+     */
+    private LightTable lights;
+    /**
+     * A map to store all the textures, prepared for sampling
+     */
+    private Map<String, TextureSampler> textures;
+    /**
+     * A map to store all the meshes, prepared for ray tracing
+     */
+    private Map<String, TriangleMesh> meshes;
+    /**
+     * The meshes and textures by their handles in the scene graph, which is
+     * how rays find them
+     */
+    private TriangleMesh[] meshesByHandle;
+    private TextureSampler[] texturesByHandle;
+    /**
+     * The executor that renders the tiles of the image. If this is null, the
+     * common fork-join pool is used
+     */
+    private ExecutorService executor;
+    /**
+     * The resolution, field of view, output and tiling of the image
+     */
+    private RenderSettings settings;
+    /**
+     * The rendered image, kept between frames of the same size
+     */
+    private int[] framebuffer;
+    /**
+     * For every pixel of the image, the instance that its primary ray hit, or
+     * -1 if it hit nothing
+     */
+    private int[] instances;
+    /**
+     * For every pixel of the image traced on its own (not filled in from a
+     * coarser pass), the parameter of the hit of its primary ray, which puts
+     * the hit at that multiple of the direction of the ray
+     */
+    private float[] depths;
+    /**
+     * The pixels that {@link #drawRegion} anti-aliases, kept from one region
+     * to the next
+     */
+    private boolean[] edges;
+    /**
+     * The samples of a path traced image, kept between frames of the same
+     * size
      */
-    private Map<String, TextureImage> textures;
+    private AccumulationBuffer accumulation;
+    /**
+     * The scene compiled last, which the next one is compiled from
+     */
+    private volatile RTScene previousScene;
+    /**
+     * The scene and settings of the image in the framebuffer, if it was ray
+     * traced in full (not path traced, cancelled or drawn only in part), for
+     * the next image to be drawn incrementally from
+     */
+    private RTScene drawnScene;
+    private RenderSettings drawnSettings;
+    /**
+     * Whether the lights cast shadows in the frame being drawn
+     */
+    private boolean shadows;
+    /**
+     * How many times a ray may be reflected or refracted in the frame being
+     * drawn, and the smallest contribution to a pixel that a reflected or
+     * refracted ray must make to be traced
+     */
+    private int maxDepth;
+    private float contributionThreshold;
+    /**
+     * The lights of the frame being drawn as a tree, and the number of point
+     * lights chosen to light every surface point (0 for every light)
+     */
+    private LightTree lightTree;
+    private int lightSamples;
+    /**
+     * The work done to draw the last frame
+     */
+    private RenderStats stats;
+    /**
+     * How far from a surface the rays that leave it (shadow, reflected and
+     * refracted rays) start, along its normal
+     */
+    static final float SURFACE_BIAS = 0.01f;
+    /**
+     * The number of samples that the pixels of a tile must have before the
+     * noise of the tile is trusted to decide that it needs no more
+     */
+    private static final int MIN_CONVERGED_SAMPLES = 16;
+    /**
+     * How many times the average number of samples per pixel in the budget of
+     * a path traced image its noisiest tiles may take
+     */
+    private static final int MAX_SAMPLE_GROWTH = 8;
+    /**
+     * The luminance below which the noise of a tile is measured as if it were
+     * this bright
+     */
+    private static final float MIN_NOISE_LUMINANCE = 0.05f;
+    /**
+     * Whether tiles should be rendered in parallel or one after the other on
+     * the calling thread
+     */
+    private boolean parallel;
 
     public RTScenegraphRenderer() {
-        textures = new TreeMap<String,TextureImage>();
+        textures = new TreeMap<String,TextureSampler>();
+        meshes = new TreeMap<String,TriangleMesh>();
+        meshesByHandle = new TriangleMesh[0];
+        texturesByHandle = new TextureSampler[0];
+        executor = null;
+        settings = new RenderSettings();
+        framebuffer = null;
+        stats = null;
+        previousScene = null;
+        parallel = true;
+    }
+
+    /**
+     * Set the executor that tiles are submitted to. Passing null reverts to the
+     * common fork-join pool.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Set the resolution, field of view, output and tiling of the images that
+     * this renderer draws. The settings are copied, so later changes to them
+     * have no effect until they are set again.
+     */
+    public void setRenderSettings(RenderSettings settings) {
+        this.settings = new RenderSettings(settings);
+    }
+
+    /**
+     * Get a copy of the settings that this renderer draws with
+     */
+    public RenderSettings getRenderSettings() {
+        return new RenderSettings(settings);
+    }
+
+    /**
+     * Turn parallel rendering of tiles on or off. When off, all tiles are
+     * rendered on the thread that calls draw
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
     }
 
     @Override
@@ -54,9 +198,44 @@ public class RTScenegraphRenderer implements IScenegraphRenderer {
 
     }
 
+    /**
+     * Prepare a mesh for ray tracing. This builds the hierarchy over its
+     * triangles, so it is done only the first time a mesh by this name is
+     * added.
+     */
     @Override
-    public void addMesh(String name, PolygonMesh mesh) throws Exception {
+    public <K extends IVertexData> void addMesh(String name, PolygonMesh<K> mesh) throws Exception {
+        if (meshes.containsKey(name))
+            return;
+        if ((mesh.getVertexCount() <= 0) || (!mesh.getVertexAttributes().get(0).hasData("position")))
+            return;
+        meshes.put(name,new TriangleMesh(mesh));
+    }
 
+    /**
+     * Draw with the meshes and textures that another ray tracer has prepared
+     * for the same scene graph, instead of preparing them again, e.g. for a
+     * second renderer with other settings. They are only read while drawing,
+     * so both renderers may draw at the same time. Meshes and textures added
+     * to the other renderer later are not shared.
+     */
+    public void shareMeshesAndTextures(RTScenegraphRenderer other) {
+        meshes.putAll(other.meshes);
+        textures.putAll(other.textures);
+        meshesByHandle = other.meshesByHandle.clone();
+        texturesByHandle = other.texturesByHandle.clone();
+        previousScene = null;
+    }
+
+    @Override
+    public void setHandles(List<String> meshNames, List<String> textureNames) {
+        meshesByHandle = new TriangleMesh[meshNames.size()];
+        for (int i=0;i<meshNames.size();i++)
+            meshesByHandle[i] = meshes.get(meshNames.get(i));
+        texturesByHandle = new TextureSampler[textureNames.size()];
+        for (int i=0;i<textureNames.size();i++)
+            texturesByHandle[i] = textures.get(textureNames.get(i));
+        previousScene = null;
     }
 
     public void initLightsInShader(List<Light> lights) {
@@ -65,170 +244,1408 @@ public class RTScenegraphRenderer implements IScenegraphRenderer {
 
     @Override
     public void draw(INode root, Stack<Matrix4f> modelView) {
-        int i,j;
-        int width = 800;
-        int height = 800;
-        float FOVY = 120.0f;
-        Ray rayView = new Ray();
+        draw(root,modelView,null);
+    }
 
-        this.lights = root.getLightsInView(modelView);
+    /**
+     * Draw the scene graph, reporting progress to the given listener. If the
+     * listener cancels the image, drawing stops as soon as the tiles in
+     * progress are done, and nothing is written to the output.
+     *
+     * Once the image is drawn, the report of the work done to draw it and the
+     * heat map of its tiles are written to the files in the settings, if any.
+     *
+     * @param listener told about every finished tile and pass, may be null
+     */
+    public void draw(INode root, Stack<Matrix4f> modelView, IRenderListener listener) {
+        RenderSettings settings = this.settings;
+        LightTable lights = new LightTable(root.getLightsInView(modelView));
+        //flatten the scene graph into a table of instances for this frame
+        RTScene scene = compileScene(root,modelView);
 
-        BufferedImage output = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+        long start = System.nanoTime();
+        if (!drawCompiled(scene,lights,listener,settings.getOutput()))
+            return;
+        stats.setRenderTime(System.nanoTime()-start);
+        if (settings.getReport() != null)
+            stats.writeReport(settings.getReport());
+        if (settings.getHeatMap() != null)
+            stats.writeHeatMap(settings.getHeatMap());
+    }
 
-        rayView.start = new Vector4f(0,0,0,1);
-        for (i=0;i<width;i++)
-        {
-            for (j=0;j<height;j++)
-            {
-                /*
-                 create ray in view coordinates
-                 start point: 0,0,0 always!
-                 going through near plane pixel (i,j)
-                 So 3D location of that pixel in view coordinates is
-                 x = i-width/2
-                 y = j-height/2
-                 z = -0.5*height/tan(FOVY)
-                */
-                rayView.direction = new Vector4f(i-0.5f*width,
-                        j-0.5f*height,
-                        -0.5f*height/(float)Math.tan(Math.toRadians(0.5*FOVY)),
-                        0.0f);
+    /**
+     * Draw a scene that has already been compiled, with the lights that were
+     * in view when it was, into the framebuffer. This lets a frame be
+     * compiled while the one before it is still being drawn.
+     *
+     * @param output the file that the image is written to, or null
+     * @return false if the listener cancelled the image
+     */
+    boolean drawCompiled(RTScene scene, LightTable lights,
+                         IRenderListener listener, String output) {
+        RenderSettings settings = this.settings;
+        int width = settings.getWidth();
+        int height = settings.getHeight();
+        float FOVY = settings.getFieldOfView();
+        int tileSize = settings.getTileSize();
 
-                HitRecord hitR = new HitRecord();
-                Color color;
-                raycast(rayView,root,modelView,hitR);
-                color = getRaytracedColor(hitR);
+        RTScene drawn = drawnScene;
+        boolean sameFrame = (drawnSettings == settings) && lights.sameAs(this.lights);
+        drawnScene = null;
+        beginFrame(lights);
+        if (settings.isPathTracing())
+            return drawPathTraced(scene,listener,output);
 
-                output.setRGB(i,height-1-j,color.getRGB());
+        if (settings.isIncremental() && sameFrame && (!settings.isProgressive())
+                && (settings.getMaxSamples() == 1)) {
+            int[] changes = scene.changesSince(drawn);
+            if (changes != null) {
+                if (!drawIncremental(scene,drawn,changes,listener,output))
+                    return false;
+                drawnScene = scene;
+                return true;
             }
         }
 
-        OutputStream outStream = null;
+        int[] framebuffer = this.framebuffer;
+        int[] instances = this.instances;
+
+        //a progressive image traces one pixel in 16, then one in 4, then all
+        int[] scales = settings.isProgressive() ? new int[] {4,2,1} : new int[] {1};
+        //an anti-aliased image then traces the edges found in the last pass again
+        int maxSamples = settings.getMaxSamples();
+        int passes = (maxSamples > 1) ? scales.length+1 : scales.length;
+        int packetSize = settings.getPacketSize();
 
+        OutputStream outStream = null;
         try {
-            outStream = new FileOutputStream("output/raytrace.png");
-        } catch (FileNotFoundException e) {
+            for (int pass=0;pass<passes;pass++) {
+                IImageEncoder encoder = null;
+                if ((pass == passes-1) && (output != null)) {
+                    outStream = new BufferedOutputStream(new FileOutputStream(output));
+                    encoder = newEncoder(settings.getFormat(),outStream,width,height);
+                }
+
+                TileRenderer tileRenderer;
+                if (pass < scales.length) {
+                    int scale = scales[pass];
+                    int previousScale = (pass > 0) ? scales[pass-1] : 0;
+                    if (packetSize > 1)
+                        tileRenderer = (x0,y0,x1,y1) ->
+                                renderTilePackets(scene,framebuffer,instances,width,height,
+                                        x0,y0,x1,y1,FOVY,scale,previousScale,packetSize,listener);
+                    else
+                        tileRenderer = (x0,y0,x1,y1) ->
+                                renderTile(scene,framebuffer,instances,width,height,
+                                        x0,y0,x1,y1,FOVY,scale,previousScale,listener);
+                }
+                else {
+                    boolean[] edges = new boolean[width*height];
+                    findEdges(framebuffer,instances,width,edges,0,0,width,height,
+                            settings.getAntialiasThreshold());
+                    tileRenderer = (x0,y0,x1,y1) ->
+                            refineTile(scene,framebuffer,edges,width,height,
+                                    x0,y0,x1,y1,FOVY,maxSamples,listener);
+                }
+
+                if (!renderPass(framebuffer,width,height,tileSize,pass,tileRenderer,
+                        listener,encoder))
+                    return false;
+
+                if (encoder != null)
+                    encoder.finish();
+                if (listener != null)
+                    listener.passRendered(pass,passes);
+            }
+        } catch (IOException e) {
             throw new IllegalArgumentException("Could not write raytraced image!");
+        } finally {
+            if (outStream != null) {
+                try {
+                    outStream.close();
+                } catch (IOException e) {
+                    //the image is already incomplete, nothing more to do
+                }
+            }
+        }
+        drawnScene = scene;
+        drawnSettings = settings;
+        return true;
+    }
+
+    /**
+     * Draw an image of a compiled scene by tracing again only the pixels of
+     * the image in the framebuffer, drawn from an earlier snapshot of the same
+     * scene graph with the same settings and lights, that the changes since
+     * then can have affected:
+     * <ul>
+     * <li>the pixels whose primary ray hit an instance that changed, or hit a
+     * surface that reflects or refracts rays (which could see one)</li>
+     * <li>the pixels covered on the screen by the old or new bounds of an
+     * instance that moved</li>
+     * <li>if there are shadows, the pixels whose primary hit sees a light
+     * through the old or new bounds of an instance that moved</li>
+     * </ul>
+     * Every other pixel keeps its color. The pixels traced again are traced
+     * exactly as in a full image, so the image is the same as one drawn in
+     * full.
+     *
+     * @param drawn   the snapshot that the image in the framebuffer was drawn
+     *                from
+     * @param changes how every instance changed since then, as found by
+     *                {@link RTScene#changesSince}
+     * @return false if the listener cancelled the image
+     */
+    private boolean drawIncremental(RTScene scene, RTScene drawn, int[] changes,
+                                    IRenderListener listener, String output) {
+        RenderSettings settings = this.settings;
+        int width = settings.getWidth();
+        int height = settings.getHeight();
+        int tileSize = settings.getTileSize();
+        float z = -0.5f*height/(float)Math.tan(Math.toRadians(0.5*settings.getFieldOfView()));
+        int[] framebuffer = this.framebuffer;
+        int[] instances = this.instances;
+
+        //the old and new bounds of every instance that moved
+        float[] moved = new float[12*changes.length];
+        int movedCount = 0;
+        boolean changed = false;
+        for (int i=0;i<changes.length;i++) {
+            changed = changed || (changes[i] != 0);
+            if ((changes[i] & RTScene.MOVED) != 0) {
+                drawn.getBounds(i,moved,6*movedCount++);
+                scene.getBounds(i,moved,6*movedCount++);
+            }
+        }
+
+        if (changed) {
+            boolean[] dirty = new boolean[width*height];
+            for (int b=0;b<movedCount;b++)
+                markScreenBounds(moved,6*b,dirty,width,height,z);
+            for (int p=0;p<width*height;p++) {
+                int instance = instances[p];
+                if ((instance >= 0) && ((changes[instance] != 0)
+                        || (spawnsRays(drawn.getMaterial(instance)))))
+                    dirty[p] = true;
+            }
+            boolean checkShadows = shadows && (movedCount > 0) && (lights.count > 0);
+            int boxes = movedCount;
+
+            TileRenderer tileRenderer = (x0,y0,x1,y1) ->
+                    retraceTile(scene,framebuffer,instances,dirty,moved,boxes,checkShadows,
+                            width,height,x0,y0,x1,y1,z,listener);
+            try {
+                if (!renderPass(framebuffer,width,height,tileSize,0,tileRenderer,
+                        listener,null))
+                    return false;
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not write raytraced image!");
+            }
+        }
+        if (listener != null)
+            listener.passRendered(0,1);
+
+        if (output != null)
+            writeImage(framebuffer,width,height,settings.getFormat(),output);
+        return true;
+    }
+
+    /**
+     * Whether a primary ray that hits a surface of the given material is
+     * reflected or refracted
+     */
+    private boolean spawnsRays(Material material) {
+        return (maxDepth > 0)
+                && ((material.getReflection() >= contributionThreshold)
+                || (material.getTransparency() >= contributionThreshold));
+    }
+
+    /**
+     * Mark the pixels that a box (in view coordinates) covers on the screen,
+     * and the pixels around them. If part of the box is not in front of the
+     * eye, every pixel is marked.
+     *
+     * @param z the distance of the image plane along -z
+     */
+    private static void markScreenBounds(float[] boxes, int o, boolean[] marked,
+                                         int width, int height, float z) {
+        float minI = Float.POSITIVE_INFINITY, maxI = Float.NEGATIVE_INFINITY;
+        float minJ = Float.POSITIVE_INFINITY, maxJ = Float.NEGATIVE_INFINITY;
+        for (int c=0;c<8;c++) {
+            float x = boxes[o+(((c & 1) == 0) ? 0 : 3)];
+            float y = boxes[o+1+(((c & 2) == 0) ? 0 : 3)];
+            float cz = boxes[o+2+(((c & 4) == 0) ? 0 : 3)];
+            if (!(cz < -SURFACE_BIAS)) {
+                Arrays.fill(marked,true);
+                return;
+            }
+            //the pixel (i,j) whose ray passes through the corner
+            float i = 0.5f*width+x*z/cz;
+            float j = 0.5f*height+y*z/cz;
+            minI = Math.min(minI,i);
+            maxI = Math.max(maxI,i);
+            minJ = Math.min(minJ,j);
+            maxJ = Math.max(maxJ,j);
+        }
+        int x0 = Math.max((int)Math.floor(minI)-1,0);
+        int x1 = Math.min((int)Math.ceil(maxI)+2,width);
+        //rows are counted from the top
+        int y0 = Math.max(height-2-(int)Math.ceil(maxJ),0);
+        int y1 = Math.min(height+1-(int)Math.floor(minJ),height);
+        for (int y=y0;y<y1;y++)
+            if (x0 < x1)
+                Arrays.fill(marked,y*width+x0,y*width+x1,true);
+    }
+
+    /**
+     * Trace again the pixels in columns [x0,x1) and rows [y0,y1) of the image
+     * that are marked as dirty. If checkShadows is true, every other pixel
+     * whose primary ray hit something is traced again too if the way from its
+     * hit, found from its depth, to a light crosses one of the given boxes.
+     */
+    private void retraceTile(RTScene scene, int[] framebuffer, int[] instances,
+                             boolean[] dirty, float[] boxes, int boxCount,
+                             boolean checkShadows, int width, int height,
+                             int x0, int y0, int x1, int y1, float z,
+                             IRenderListener listener) {
+        Ray rayView = new Ray();
+        HitRecord hitR = new HitRecord();
+        ShadingContext context = new ShadingContext(scene,lightTree,maxDepth);
+        float[] depths = this.depths;
+        Vector4f point = new Vector4f();
+
+        rayView.start.set(0,0,0,1);
+        for (int y=y0;y<y1;y++)
+        {
+            if ((listener != null) && (listener.isCancelled()))
+                break;
+            int j = height-1-y;
+            for (int i=x0;i<x1;i++)
+            {
+                int p = y*width+i;
+                float dx = i-0.5f*width, dy = j-0.5f*height;
+                if (!dirty[p]) {
+                    if ((!checkShadows) || (instances[p] < 0))
+                        continue;
+                    float t = depths[p];
+                    point.set(t*dx,t*dy,t*z,1);
+                    if (!lightCrossesBoxes(point,boxes,boxCount))
+                        continue;
+                }
+                rayView.direction.set(dx,dy,z,0.0f);
+                hitR.reset();
+                raycast(rayView,scene,context.intersector,hitR);
+                depths[p] = hitR.time;
+                framebuffer[p] = getRaytracedColor(scene,rayView,hitR,context);
+                instances[p] = hitR.instance;
+            }
+        }
+        stats.add(context.rays,context.intersector.getCounters());
+    }
+
+    /**
+     * Whether the way from a point to any of the lights crosses one of the
+     * given boxes
+     */
+    private boolean lightCrossesBoxes(Vector4f point, float[] boxes, int boxCount) {
+        LightTable lights = this.lights;
+        for (int l=0;l<lights.count;l++) {
+            float dx, dy, dz, tMax;
+            if (lights.directional[l]) {
+                dx = lights.x[l];
+                dy = lights.y[l];
+                dz = lights.z[l];
+                tMax = Float.POSITIVE_INFINITY;
+            }
+            else {
+                dx = lights.x[l]-point.x;
+                dy = lights.y[l]-point.y;
+                dz = lights.z[l]-point.z;
+                tMax = 1;
+            }
+            for (int b=0;b<boxCount;b++)
+                if (crossesBox(boxes,6*b,point.x,point.y,point.z,dx,dy,dz,tMax))
+                    return true;
         }
+        return false;
+    }
+
+    /**
+     * Whether the ray from (ox,oy,oz) along (dx,dy,dz) passes through a box,
+     * widened by the distance that shadow rays start off a surface, at a
+     * parameter in [0,tMax]
+     */
+    private static boolean crossesBox(float[] boxes, int o,
+                                      float ox, float oy, float oz,
+                                      float dx, float dy, float dz, float tMax) {
+        //the three slabs are tested one after the other, as this is called
+        //for every box a changed instance may shadow, for every lit pixel
+        float tmin = 0, tmax = tMax;
+        float lo = boxes[o]-SURFACE_BIAS, hi = boxes[o+3]+SURFACE_BIAS;
+        if (dx == 0) {
+            if ((ox < lo) || (ox > hi))
+                return false;
+        } else {
+            float t1 = (lo-ox)/dx, t2 = (hi-ox)/dx;
+            tmin = Math.max(tmin,Math.min(t1,t2));
+            tmax = Math.min(tmax,Math.max(t1,t2));
+        }
+        lo = boxes[o+1]-SURFACE_BIAS;
+        hi = boxes[o+4]+SURFACE_BIAS;
+        if (dy == 0) {
+            if ((oy < lo) || (oy > hi))
+                return false;
+        } else {
+            float t1 = (lo-oy)/dy, t2 = (hi-oy)/dy;
+            tmin = Math.max(tmin,Math.min(t1,t2));
+            tmax = Math.min(tmax,Math.max(t1,t2));
+        }
+        lo = boxes[o+2]-SURFACE_BIAS;
+        hi = boxes[o+5]+SURFACE_BIAS;
+        if (dz == 0) {
+            if ((oz < lo) || (oz > hi))
+                return false;
+        } else {
+            float t1 = (lo-oz)/dz, t2 = (hi-oz)/dz;
+            tmin = Math.max(tmin,Math.min(t1,t2));
+            tmax = Math.min(tmax,Math.max(t1,t2));
+        }
+        return tmin <= tmax;
+    }
+
+    /**
+     * Draw a path traced image of a compiled scene into the framebuffer, in
+     * passes. Every pass adds samples to the pixels of the tiles that are
+     * still noisy, noisiest first, until every tile is below the noise
+     * threshold or the budget of samples runs out. A tile stops taking samples
+     * once it is quiet enough, so the rest of the budget goes to the tiles
+     * that are not. The framebuffer holds the average of the samples so far
+     * after every pass; the image is written to the output after the last.
+     *
+     * @return false if the listener cancelled the image
+     */
+    private boolean drawPathTraced(RTScene scene, IRenderListener listener,
+                                   String output) {
+        RenderSettings settings = this.settings;
+        int width = settings.getWidth();
+        int height = settings.getHeight();
+        int tileSize = settings.getTileSize();
+        float z = -0.5f*height/(float)Math.tan(Math.toRadians(0.5*settings.getFieldOfView()));
+        int samplesPerPass = settings.getSamplesPerPass();
+        float threshold = settings.getNoiseThreshold();
+        int[] framebuffer = this.framebuffer;
+        int[] instances = this.instances;
+
+        if ((this.accumulation == null) || (!this.accumulation.fits(width,height,tileSize)))
+            this.accumulation = new AccumulationBuffer(width,height,tileSize);
+        AccumulationBuffer accumulation = this.accumulation;
+        accumulation.clear();
+
+        long budget = (long)settings.getMaxPathSamples()*width*height;
+        int maxTileSamples = MAX_SAMPLE_GROWTH*settings.getMaxPathSamples();
+        int passes = (maxTileSamples+samplesPerPass-1)/samplesPerPass;
+        int tiles = accumulation.getTileCount();
+        Integer[] order = new Integer[tiles];
+        boolean[] selected = new boolean[tiles];
 
         try {
-            ImageIO.write(output,"png",outStream);
-            outStream.close();
+            for (int pass=0;pass<passes;pass++) {
+                //the tiles that are still noisy, noisiest first, as far as
+                //the budget goes
+                for (int t=0;t<tiles;t++)
+                    order[t] = t;
+                Arrays.sort(order,(a,b) -> Float.compare(accumulation.getNoise(b),
+                        accumulation.getNoise(a)));
+                Arrays.fill(selected,false);
+                boolean any = false;
+                for (int t : order) {
+                    int samples = accumulation.getSamples(t);
+                    if (((samples >= MIN_CONVERGED_SAMPLES)
+                            && (accumulation.getNoise(t) <= threshold))
+                            || (samples >= maxTileSamples))
+                        continue;
+                    long cost = (long)samplesPerPass*accumulation.getPixelCount(t);
+                    if (cost > budget)
+                        continue;
+                    budget -= cost;
+                    selected[t] = true;
+                    any = true;
+                }
+                if (!any)
+                    break;
+
+                TileRenderer tileRenderer = (x0,y0,x1,y1) -> {
+                    int tile = accumulation.tileAt(x0,y0);
+                    if (selected[tile])
+                        pathTraceTile(scene,accumulation,framebuffer,instances,
+                                width,height,x0,y0,x1,y1,z,tile,samplesPerPass);
+                };
+                if (!renderPass(framebuffer,width,height,tileSize,pass,tileRenderer,
+                        listener,null))
+                    return false;
+                if (listener != null)
+                    listener.passRendered(pass,passes);
+            }
         } catch (IOException e) {
             throw new IllegalArgumentException("Could not write raytraced image!");
         }
 
+        if (output != null)
+            writeImage(framebuffer,width,height,settings.getFormat(),output);
+        return true;
     }
 
-    private void raycast(Ray rayView,INode root,Stack<Matrix4f> modelView,HitRecord hitRecord) {
-        root.intersect(rayView,modelView,hitRecord);
-
+    /**
+     * Add samples to every pixel in columns [x0,x1) and rows [y0,y1) of a tile
+     * of a path traced image, and show the average of the samples so far in
+     * the framebuffer
+     */
+    private void pathTraceTile(RTScene scene, AccumulationBuffer accumulation,
+                               int[] framebuffer, int[] instances,
+                               int width, int height,
+                               int x0, int y0, int x1, int y1, float z,
+                               int tile, int samples) {
+        PathTracer tracer = new PathTracer(scene,lights,lightTree,lightSamples,shadows,maxDepth);
+        int first = accumulation.getSamples(tile);
+        for (int y=y0;y<y1;y++) {
+            int j = height-1-y;
+            for (int i=x0;i<x1;i++) {
+                int p = y*width+i;
+                for (int s=first;s<first+samples;s++) {
+                    tracer.trace(i-0.5f*width,j-0.5f*height,z,p,s);
+                    accumulation.add(p,tracer.r,tracer.g,tracer.b);
+                    if (s == 0)
+                        instances[p] = tracer.instance;
+                }
+            }
+        }
+        accumulation.endPass(tile,samples,x0,y0,x1,y1,MIN_NOISE_LUMINANCE,framebuffer);
+        stats.add(tracer.rays,tracer.getCounters());
     }
 
-    private Color getRaytracedColor(HitRecord hitRecord) {
-        if (hitRecord.intersected())
-            return shade(hitRecord.point,hitRecord.normal,hitRecord.material,
-                    hitRecord.textureName,hitRecord.texcoord);
+    /**
+     * Draw only the pixels in columns [x0,x1) and rows [y0,y1) of the image,
+     * with rows counted from the top, and copy them row by row into pixels.
+     * They are exactly the pixels that draw would produce, except that the
+     * image is never progressive. Nothing is written to the output.
+     *
+     * This is how a render farm worker draws the tiles it is given. The scene
+     * must have been compiled by {@link #compileScene} from the same root and
+     * modelview, so that it can be shared by all the tiles of a frame.
+     */
+    public void drawRegion(INode root, Stack<Matrix4f> modelView, RTScene scene,
+                           int x0, int y0, int x1, int y1, int[] pixels) {
+        RenderSettings settings = this.settings;
+        int width = settings.getWidth();
+        int height = settings.getHeight();
+        float FOVY = settings.getFieldOfView();
+        if ((x0 < 0) || (y0 < 0) || (x1 > width) || (y1 > height) || (x0 >= x1) || (y0 >= y1))
+            throw new IllegalArgumentException("Region is outside the image");
+        if (pixels.length < (x1-x0)*(y1-y0))
+            throw new IllegalArgumentException("Region does not fit in the pixels");
+        if (settings.isPathTracing())
+            throw new IllegalStateException("Regions cannot be path traced");
+
+        drawnScene = null;
+        beginFrame(new LightTable(root.getLightsInView(modelView)));
+        int[] framebuffer = this.framebuffer;
+        int[] instances = this.instances;
+
+        //anti-aliasing compares every pixel with its neighbours, so those
+        //just outside the region are traced too
+        int maxSamples = settings.getMaxSamples();
+        int border = (maxSamples > 1) ? 1 : 0;
+        int bx0 = Math.max(x0-border,0), by0 = Math.max(y0-border,0);
+        int bx1 = Math.min(x1+border,width), by1 = Math.min(y1+border,height);
+        int packetSize = settings.getPacketSize();
+        if (packetSize > 1)
+            renderTilePackets(scene,framebuffer,instances,width,height,
+                    bx0,by0,bx1,by1,FOVY,1,0,packetSize,null);
         else
-            return new Color(0,0,0);
+            renderTile(scene,framebuffer,instances,width,height,
+                    bx0,by0,bx1,by1,FOVY,1,0,null);
+
+        if (maxSamples > 1) {
+            if ((edges == null) || (edges.length != width*height))
+                edges = new boolean[width*height];
+            findEdges(framebuffer,instances,width,edges,bx0,by0,bx1,by1,
+                    settings.getAntialiasThreshold());
+            refineTile(scene,framebuffer,edges,width,height,
+                    x0,y0,x1,y1,FOVY,maxSamples,null);
+        }
+
+        for (int y=y0;y<y1;y++)
+            System.arraycopy(framebuffer,y*width+x0,pixels,(y-y0)*(x1-x0),x1-x0);
+    }
+
+    /**
+     * Get ready to draw a frame with the given lights: take the settings that
+     * shading uses, start counting rays and make room for the image
+     */
+    private void beginFrame(LightTable lights) {
+        int width = settings.getWidth();
+        int height = settings.getHeight();
+
+        this.lights = lights;
+        this.shadows = settings.hasShadows();
+        this.maxDepth = settings.getMaxDepth();
+        this.contributionThreshold = settings.getContributionThreshold();
+        this.lightTree = new LightTree(lights);
+        this.lightSamples = settings.getLightSamples();
+        this.stats = new RenderStats(maxDepth,width,height,settings.getTileSize());
+
+        //the image, row by row from the top, as packed RGB pixels
+        if ((framebuffer == null) || (framebuffer.length != width * height)) {
+            framebuffer = new int[width * height];
+            instances = new int[width * height];
+            depths = new float[width * height];
+        }
     }
 
-    private Color shade(Vector4f point, Vector4f normal, Material material,
-                        String textureName, Vector2f texcoord) {
-        Vector3f color = new Vector3f(0,0,0);
+    /**
+     * Renders the pixels in columns [x0,x1) and rows [y0,y1) of the image in
+     * one pass
+     */
+    private interface TileRenderer {
+        void render(int x0, int y0, int x1, int y1);
+    }
 
-        for (int i=0;i<lights.size();i++)
+    /**
+     * Render one pass over the whole image, encoding it band by band if an
+     * encoder is given. The tiles are handed out in the tile order of the
+     * settings, and the time spent on every tile is added to the statistics.
+     * Returns false if the listener cancelled it. However it ends, no tile of
+     * the pass is still running when it returns, since the next pass or frame
+     * reuses the framebuffer and statistics.
+     */
+    private boolean renderPass(int[] framebuffer, int width, int height, int tileSize,
+                               int pass, TileRenderer tileRenderer,
+                               IRenderListener listener, IImageEncoder encoder)
+            throws IOException {
+        TilePass tiles = new TilePass(width,height,tileSize,settings.getTileOrder(),
+                (x0,y0,x1,y1) -> {
+                    if ((listener != null) && (listener.isCancelled()))
+                        return;
+                    long start = System.nanoTime();
+                    tileRenderer.render(x0,y0,x1,y1);
+                    stats.addTileTime(x0,y0,System.nanoTime()-start);
+                    if (listener != null)
+                        listener.tileRendered(pass,x0,y0,x1,y1);
+                });
+
+        if (parallel) {
+            ExecutorService pool = executor;
+            if (pool == null)
+                pool = ForkJoinPool.commonPool();
+            tiles.start(pool);
+            //encode every band as soon as its tiles are done, while the
+            //rest of the image is still being rendered
+            try {
+                for (int b=0;b<tiles.getBandCount();b++) {
+                    tiles.awaitBand(b);
+                    if (tiles.getFailure() != null)
+                        break;
+                    if ((listener != null) && (listener.isCancelled())) {
+                        tiles.stop();
+                        return false;
+                    }
+                    writeBand(encoder,framebuffer,b*tileSize,tileSize,height);
+                }
+            } catch (InterruptedException e) {
+                //the tiles that have started must not draw into the next frame
+                tiles.stop();
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Ray tracing was interrupted");
+            }
+        }
+        else {
+            tiles.run();
+            if ((listener != null) && (listener.isCancelled()))
+                return false;
+            if (tiles.getFailure() == null)
+                for (int b=0;b<tiles.getBandCount();b++)
+                    writeBand(encoder,framebuffer,b*tileSize,tileSize,height);
+        }
+
+        Throwable failure = tiles.getFailure();
+        if (failure != null) {
+            tiles.stop();
+            throw new IllegalStateException("Ray tracing failed: " + failure.getMessage(), failure);
+        }
+        return true;
+    }
+
+    /**
+     * Compile the scene graph for ray tracing with the meshes and textures of
+     * this renderer, as draw does at the start of every frame. This is useful
+     * for tracing rays against the scene directly, e.g. for benchmarks.
+     *
+     * The scene is compiled from the one compiled before, so that only what
+     * has moved is compiled again. A renderer is meant to draw one scene graph;
+     * call {@link #forgetScene()} before compiling another one with it.
+     */
+    public RTScene compileScene(INode root, Stack<Matrix4f> modelView) {
+        RTScene scene = RTScene.compile(root, modelView, texturesByHandle, meshesByHandle,
+                previousScene);
+        previousScene = scene;
+        return scene;
+    }
+
+    /**
+     * Compile the next scene from scratch, instead of from the last one
+     */
+    public void forgetScene() {
+        previousScene = null;
+    }
+
+    /**
+     * Get the image drawn by the last call to draw, as packed RGB pixels row by
+     * row from the top, or null if nothing has been drawn yet. It is only valid
+     * until the next call to draw.
+     */
+    public int[] getFramebuffer() {
+        return framebuffer;
+    }
+
+    /**
+     * Get the work done by the last call to draw, or null if nothing has been
+     * drawn yet. The rays of every pass of a progressive image are counted,
+     * and the time of every tile is added up over the passes.
+     */
+    public RenderStats getRenderStats() {
+        return stats;
+    }
+
+    private static IImageEncoder newEncoder(RenderSettings.Format format, OutputStream out, int width, int height) throws IOException {
+        switch (format) {
+            case PPM:
+                return new PPMEncoder(out,width,height);
+            case PNG:
+            default:
+                return new PNGEncoder(out,width,height);
+        }
+    }
+
+    /**
+     * Write a whole image to a file in the given format
+     */
+    static void writeImage(int[] framebuffer, int width, int height,
+                           RenderSettings.Format format, String path) {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path))) {
+            IImageEncoder encoder = newEncoder(format,out,width,height);
+            encoder.writeRows(framebuffer,0,height);
+            encoder.finish();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not write raytraced image!");
+        }
+    }
+
+    private static void writeBand(IImageEncoder encoder, int[] framebuffer, int firstRow, int rows, int height) throws IOException {
+        if (encoder != null)
+            encoder.writeRows(framebuffer,firstRow,Math.min(rows,height-firstRow));
+    }
+
+
+    /**
+     * Render the pixels in columns [x0,x1) and rows [y0,y1) of the image, with
+     * rows counted from the top. Every call gets its own
+     * ray, hit record and intersector so that tiles may be rendered
+     * concurrently against the same compiled scene. These are reused for every
+     * pixel of the tile, so nothing is allocated per pixel.
+     *
+     * At a scale larger than 1, only the top-left pixel of every scale x scale
+     * block is traced, and its color fills the block. Pixels that were already
+     * traced at the previous (coarser) scale are not traced again, so every
+     * pixel is traced (and its textures filtered) for a footprint of one
+     * pixel, whatever pass traces it: the blocks are only a preview.
+     *
+     * The tile is rendered into arrays of its own, so that its pixels are
+     * written contiguously rather than a row's width apart, and copied into
+     * the image row by row at the end.
+     */
+    private void renderTile(RTScene scene, int[] framebuffer, int[] instances,
+                            int width, int height,
+                            int x0, int y0, int x1, int y1, float FOVY,
+                            int scale, int previousScale,
+                            IRenderListener listener) {
+        Ray rayView = new Ray();
+        HitRecord hitR = new HitRecord();
+        ShadingContext context = new ShadingContext(scene,lightTree,maxDepth);
+        float z = -0.5f*height/(float)Math.tan(Math.toRadians(0.5*FOVY));
+        int blockWidth = x1-x0, blockHeight = y1-y0;
+        int[] block = new int[blockWidth*blockHeight];
+        int[] blockInstances = new int[blockWidth*blockHeight];
+        int done = y0;
+        //pixels of the tile that a coarse pass does not reach keep what they had
+        if (scale > 1)
+            loadBlock(block,blockInstances,framebuffer,instances,width,x0,y0,x1,y1);
+
+        rayView.start.set(0,0,0,1);
+        for (int y=roundUp(y0,scale);y<y1;y+=scale)
         {
-            Vector3f lightVec;
-            Vector3f spotdirection = new Vector3f(
-                    lights.get(i).getSpotDirection().x,
-                    lights.get(i).getSpotDirection().y,
-                    lights.get(i).getSpotDirection().z);
+            if ((listener != null) && (listener.isCancelled()))
+                break;
+            int row = y*width;
+            int j = height-1-y;
+            boolean tracedRow = (previousScale > 0) && (y % previousScale == 0);
+            for (int i=roundUp(x0,scale);i<x1;i+=scale)
+            {
+                int color, instance;
+                if (tracedRow && (i % previousScale == 0)) {
+                    color = framebuffer[row+i];
+                    instance = instances[row+i];
+                }
+                else {
+                    /*
+                     create ray in view coordinates
+                     start point: 0,0,0 always!
+                     going through near plane pixel (i,j)
+                     So 3D location of that pixel in view coordinates is
+                     x = i-width/2
+                     y = j-height/2
+                     z = -0.5*height/tan(FOVY)
+                    */
+                    rayView.direction.set(i-0.5f*width,
+                            j-0.5f*height,
+                            z,
+                            0.0f);
+
+                    hitR.reset();
+                    raycast(rayView,scene,context.intersector,hitR);
+                    depths[row+i] = hitR.time;
+                    color = getRaytracedColor(scene,rayView,hitR,context);
+                    instance = hitR.instance;
+                }
 
+                fill(block,blockInstances,blockWidth,blockHeight,i-x0,y-y0,scale,color,instance);
+            }
+            done = Math.min(y+scale,y1);
+        }
+        storeBlock(block,blockInstances,framebuffer,instances,width,x0,y0,x1,done);
+        stats.add(context.rays,context.intersector.getCounters());
+    }
 
-            if (spotdirection.length()>0)
-                spotdirection = spotdirection.normalize();
+    /**
+     * Render a tile like {@link #renderTile}, but trace its primary rays in
+     * packets of neighbouring pixels: 2x2 pixels for packets of 4, 4x2 for 8
+     * and 4x4 for 16. Once a packet has found what each of its rays hits, every
+     * ray is shaded on its own.
+     */
+    private void renderTilePackets(RTScene scene, int[] framebuffer, int[] instances,
+                                   int width, int height,
+                                   int x0, int y0, int x1, int y1, float FOVY,
+                                   int scale, int previousScale, int packetSize,
+                                   IRenderListener listener) {
+        Ray rayView = new Ray();
+        HitRecord hitR = new HitRecord();
+        ShadingContext context = new ShadingContext(scene,lightTree,maxDepth);
+        RTScene.Intersector intersector = context.intersector;
+        RayPacket packet = new RayPacket(packetSize);
+        int packetWidth = (packetSize == 4) ? 2 : 4;
+        int packetHeight = packetSize / packetWidth;
+        float z = -0.5f*height/(float)Math.tan(Math.toRadians(0.5*FOVY));
+        int blockWidth = x1-x0, blockHeight = y1-y0;
+        int[] block = new int[blockWidth*blockHeight];
+        int[] blockInstances = new int[blockWidth*blockHeight];
+        int done = y0;
+        //pixels of the tile that a coarse pass does not reach keep what they had
+        if (scale > 1)
+            loadBlock(block,blockInstances,framebuffer,instances,width,x0,y0,x1,y1);
+
+        for (int by=roundUp(y0,scale);by<y1;by+=packetHeight*scale)
+        {
+            if ((listener != null) && (listener.isCancelled()))
+                break;
+            for (int bx=roundUp(x0,scale);bx<x1;bx+=packetWidth*scale)
+            {
+                //lanes outside the tile, or traced in the previous pass, sit out
+                boolean active = false;
+                packet.reset();
+                for (int lane=0;lane<packetSize;lane++) {
+                    int i = bx + (lane % packetWidth)*scale;
+                    int y = by + (lane / packetWidth)*scale;
+                    packet.ox[lane] = 0;
+                    packet.oy[lane] = 0;
+                    packet.oz[lane] = 0;
+                    packet.dx[lane] = i-0.5f*width;
+                    packet.dy[lane] = (height-1-y)-0.5f*height;
+                    packet.dz[lane] = z;
+                    if ((i >= x1) || (y >= y1) || traced(i,y,previousScale))
+                        packet.deactivate(lane);
+                    else
+                        active = true;
+                }
+                if (active)
+                    scene.intersect(packet,intersector);
 
-            if (lights.get(i).getPosition().w!=0) {
-                lightVec = new Vector3f(
-                        lights.get(i).getPosition().x - point.x,
-                        lights.get(i).getPosition().y - point.y,
-                        lights.get(i).getPosition().z - point.z);
+                for (int lane=0;lane<packetSize;lane++) {
+                    int i = bx + (lane % packetWidth)*scale;
+                    int y = by + (lane / packetWidth)*scale;
+                    if ((i >= x1) || (y >= y1))
+                        continue;
+                    int color, instance;
+                    if (traced(i,y,previousScale)) {
+                        color = framebuffer[y*width+i];
+                        instance = instances[y*width+i];
+                    }
+                    else {
+                        scene.completeHit(packet,lane,rayView,hitR,intersector);
+                        depths[y*width+i] = hitR.time;
+                        color = getRaytracedColor(scene,rayView,hitR,context);
+                        instance = hitR.instance;
+                    }
+                    fill(block,blockInstances,blockWidth,blockHeight,i-x0,y-y0,scale,color,instance);
+                }
             }
-            else
+            done = Math.min(by+packetHeight*scale,y1);
+        }
+        storeBlock(block,blockInstances,framebuffer,instances,width,x0,y0,x1,done);
+        stats.add(context.rays,context.intersector.getCounters());
+    }
+
+    /**
+     * Whether the pixel was traced in the previous pass
+     */
+    private static boolean traced(int i, int y, int previousScale) {
+        return (previousScale > 0) && (i % previousScale == 0) && (y % previousScale == 0);
+    }
+
+    /**
+     * Fill the scale x scale block of pixels at (i,y) with the color and the
+     * instance hit
+     */
+    private static void fill(int[] framebuffer, int[] instances, int width, int height,
+                             int i, int y, int scale, int color, int instance) {
+        if (scale == 1) {
+            framebuffer[y*width+i] = color;
+            instances[y*width+i] = instance;
+        }
+        else {
+            int bx = Math.min(i+scale,width);
+            int by = Math.min(y+scale,height);
+            for (int fy=y;fy<by;fy++)
+                for (int fx=i;fx<bx;fx++) {
+                    framebuffer[fy*width+fx] = color;
+                    instances[fy*width+fx] = instance;
+                }
+        }
+    }
+
+    /**
+     * Copy the pixels of the image in columns [x0,x1) and rows [y0,y1) into
+     * the block of a tile
+     */
+    private static void loadBlock(int[] block, int[] blockInstances,
+                                  int[] framebuffer, int[] instances, int width,
+                                  int x0, int y0, int x1, int y1) {
+        int blockWidth = x1-x0;
+        for (int y=y0;y<y1;y++) {
+            System.arraycopy(framebuffer,y*width+x0,block,(y-y0)*blockWidth,blockWidth);
+            System.arraycopy(instances,y*width+x0,blockInstances,(y-y0)*blockWidth,blockWidth);
+        }
+    }
+
+    /**
+     * Copy rows [y0,y1) of the block of a tile in columns [x0,x1), rendered
+     * into arrays of its own, into the image
+     */
+    private static void storeBlock(int[] block, int[] blockInstances,
+                                   int[] framebuffer, int[] instances, int width,
+                                   int x0, int y0, int x1, int y1) {
+        int blockWidth = x1-x0;
+        for (int y=y0;y<y1;y++) {
+            System.arraycopy(block,(y-y0)*blockWidth,framebuffer,y*width+x0,blockWidth);
+            System.arraycopy(blockInstances,(y-y0)*blockWidth,instances,y*width+x0,blockWidth);
+        }
+    }
+
+    /**
+     * Find the pixels to anti-alias in columns [x0,x1) and rows [y0,y1): those
+     * whose color differs from that of a neighbour in the same area by more
+     * than the threshold in some channel, or whose primary ray hit a different
+     * instance than that of a neighbour. The edges in the area are cleared
+     * first.
+     */
+    private static void findEdges(int[] framebuffer, int[] instances, int width,
+                                  boolean[] edges, int x0, int y0, int x1, int y1,
+                                  float threshold) {
+        for (int y=y0;y<y1;y++)
+            Arrays.fill(edges,y*width+x0,y*width+x1,false);
+        int limit = (int)(255*threshold);
+        for (int y=y0;y<y1;y++) {
+            int row = y*width;
+            for (int i=x0;i<x1;i++) {
+                int p = row+i;
+                if ((i+1 < x1) && differ(framebuffer,instances,p,p+1,limit)) {
+                    edges[p] = true;
+                    edges[p+1] = true;
+                }
+                if ((y+1 < y1) && differ(framebuffer,instances,p,p+width,limit)) {
+                    edges[p] = true;
+                    edges[p+width] = true;
+                }
+            }
+        }
+    }
+
+    private static boolean differ(int[] framebuffer, int[] instances, int p, int q, int limit) {
+        if (instances[p] != instances[q])
+            return true;
+        int a = framebuffer[p], b = framebuffer[q];
+        return (Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) > limit)
+                || (Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)) > limit)
+                || (Math.abs((a & 0xff) - (b & 0xff)) > limit);
+    }
+
+    /**
+     * Trace the pixels of the tile that are marked as edges again with
+     * maxSamples (4, 9 or 16) samples each, and replace their colors with the
+     * average of the samples. The samples are stratified: the pixel is divided
+     * into a grid of cells, and one sample is taken at a random point in every
+     * cell. The random points depend only on the pixel, so the image is the
+     * same however the tiles are scheduled.
+     */
+    private void refineTile(RTScene scene, int[] framebuffer, boolean[] edges,
+                            int width, int height,
+                            int x0, int y0, int x1, int y1, float FOVY,
+                            int maxSamples, IRenderListener listener) {
+        Ray rayView = new Ray();
+        HitRecord hitR = new HitRecord();
+        ShadingContext context = new ShadingContext(scene,lightTree,maxDepth);
+        int n = (int)Math.round(Math.sqrt(maxSamples));
+        context.footprint = 1.0f/n;
+        float z = -0.5f*height/(float)Math.tan(Math.toRadians(0.5*FOVY));
+
+        rayView.start.set(0,0,0,1);
+        for (int y=y0;y<y1;y++)
+        {
+            if ((listener != null) && (listener.isCancelled()))
+                break;
+            int j = height-1-y;
+            for (int i=x0;i<x1;i++)
             {
-                lightVec = new Vector3f(
-                        -lights.get(i).getPosition().x,
-                        -lights.get(i).getPosition().y,
-                        -lights.get(i).getPosition().z);
+                int p = y*width+i;
+                if (!edges[p])
+                    continue;
+
+                int r = 0, g = 0, b = 0;
+                for (int s=0;s<n*n;s++) {
+                    float dx = ((s % n) + jitter(p,2*s))/n - 0.5f;
+                    float dy = ((s / n) + jitter(p,2*s+1))/n - 0.5f;
+                    rayView.direction.set(i+dx-0.5f*width,
+                            j+dy-0.5f*height,
+                            z,
+                            0.0f);
+
+                    hitR.reset();
+                    raycast(rayView,scene,context.intersector,hitR);
+                    int color = getRaytracedColor(scene,rayView,hitR,context);
+                    r += (color >> 16) & 0xff;
+                    g += (color >> 8) & 0xff;
+                    b += color & 0xff;
+                }
+                int count = n*n;
+                framebuffer[p] = (((r+count/2)/count) << 16)
+                        | (((g+count/2)/count) << 8)
+                        | ((b+count/2)/count);
             }
-            lightVec = lightVec.normalize();
+        }
+        stats.add(context.rays,context.intersector.getCounters());
+    }
 
+    /**
+     * A pseudo-random number in [0,1) that depends only on the pixel and the
+     * sample
+     */
+    private static float jitter(int pixel, int sample) {
+        int h = pixel*0x9E3779B1 + sample*0x85EBCA77;
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        h ^= h >>> 12;
+        h *= 0x297A2D39;
+        h ^= h >>> 15;
+        return (h >>> 8) * (1.0f / (1 << 24));
+    }
 
-        /* if point is not in the light cone of this light, move on to next light */
-            if (new Vector3f(lightVec).negate().dot(spotdirection)<=Math.cos(Math.toRadians(lights.get(i).getSpotCutoff())))
-                continue;
+    /**
+     * The smallest multiple of scale that is at least value
+     */
+    private static int roundUp(int value, int scale) {
+        return ((value + scale - 1) / scale) * scale;
+    }
 
+    private void raycast(Ray rayView,RTScene scene,RTScene.Intersector intersector,HitRecord hitRecord) {
+        scene.intersect(rayView,hitRecord,intersector);
 
-            Vector3f normalView = new Vector3f(normal.x,normal.y,normal.z).normalize();
+    }
 
-            float nDotL = normalView.dot(lightVec);
+    /**
+     * Everything a thread needs to shade the rays of a tile: the scratch space
+     * to intersect rays with the scene, a ray and hit record for every depth of
+     * reflected and refracted rays, and the color being accumulated for the
+     * current pixel. It is reused for every pixel of the tile, so nothing is
+     * allocated per ray.
+     */
+    private static class ShadingContext {
+        final RTScene.Intersector intersector;
+        final Ray shadowRay;
+        final Ray[] secondaryRays;
+        final HitRecord[] secondaryHits;
+        /**
+         * The number of rays traced, by depth
+         */
+        final long[] rays;
+        float r, g, b;
+        /**
+         * The width, in pixels, of the part of the image that the primary ray
+         * being traced stands for
+         */
+        float footprint;
+        /**
+         * Scratch space for finding the mipmap level of textures
+         */
+        final Vector4f neighbour;
+        final Vector2f neighbourTexcoord;
+        final Vector4f texel;
+        /**
+         * The lights chosen to light a point
+         */
+        final LightTree.Choice lightChoice;
+
+        ShadingContext(RTScene scene, LightTree lightTree, int maxDepth) {
+            intersector = scene.newIntersector();
+            shadowRay = new Ray();
+            secondaryRays = new Ray[maxDepth+1];
+            secondaryHits = new HitRecord[maxDepth+1];
+            for (int d=1;d<=maxDepth;d++) {
+                secondaryRays[d] = new Ray();
+                secondaryHits[d] = new HitRecord();
+            }
+            rays = new long[maxDepth+1];
+            footprint = 1;
+            neighbour = new Vector4f();
+            neighbourTexcoord = new Vector2f();
+            texel = new Vector4f();
+            lightChoice = lightTree.newChoice();
+        }
+    }
 
-            Vector3f viewVec = new Vector3f(point.x,point.y,point.z).negate();
-            viewVec = viewVec.normalize();
+    /**
+     * Returns the color of the primary ray with this hit record, as a packed
+     * RGB value
+     */
+    private int getRaytracedColor(RTScene scene,Ray rayView,HitRecord hitRecord,
+                                  ShadingContext context) {
+        context.rays[0]++;
+        if (!hitRecord.intersected())
+            return 0;
 
-            Vector3f reflectVec = new Vector3f(lightVec).negate().reflect(normalView);
-            reflectVec = reflectVec.normalize();
+        context.r = context.g = context.b = 0;
+        trace(scene,rayView,hitRecord,0,1,context);
 
-            float rDotV = Math.max(reflectVec.dot(viewVec),0.0f);
+        float r = Math.min(context.r,1);
+        float g = Math.min(context.g,1);
+        float b = Math.min(context.b,1);
 
-            Vector3f ambient = new Vector3f(
-                    material.getAmbient().x * lights.get(i).getAmbient().x,
-                    material.getAmbient().y * lights.get(i).getAmbient().y,
-                    material.getAmbient().z * lights.get(i).getAmbient().z);
+        return ((int)(255*r) << 16) | ((int)(255*g) << 8) | (int)(255*b);
+    }
 
-            Vector3f diffuse = new Vector3f(
-                    material.getDiffuse().x * lights.get(i).getDiffuse().x * Math.max(nDotL,0),
-                    material.getDiffuse().y * lights.get(i).getDiffuse().y * Math.max(nDotL,0),
-                    material.getDiffuse().z * lights.get(i).getDiffuse().z * Math.max(nDotL,0));
-            Vector3f specular;
-            if (nDotL>0) {
-                specular = new Vector3f(
-                        material.getSpecular().x * lights.get(i).getSpecular().x * (float) Math.pow(rDotV, material.getShininess()),
-                        material.getSpecular().y * lights.get(i).getSpecular().y * (float) Math.pow(rDotV, material.getShininess()),
-                        material.getSpecular().z * lights.get(i).getSpecular().z * (float) Math.pow(rDotV, material.getShininess()));
+    /**
+     * Add the color seen along a ray to the color of the pixel, scaled by how
+     * much the ray contributes to it (its weight).
+     *
+     * The color of a surface is the mix of its own shaded color, the color
+     * reflected off it and the color refracted through it, in the proportions
+     * of the absorption, reflection and transparency of its material.
+     * Reflected and refracted rays are traced recursively, until they reach
+     * the maximum depth or their weight drops below the contribution
+     * threshold. Light that cannot leave a transparent material (total
+     * internal reflection) is reflected instead.
+     *
+     * @param ray       the ray, whose hit is in the hit record
+     * @param depth     0 for primary rays, one more for every reflection or
+     *                  refraction
+     */
+    private void trace(RTScene scene,Ray ray,HitRecord hitRecord,int depth,
+                       float weight,ShadingContext context) {
+        Material material;
+        TextureSampler texture;
+        if (hitRecord.instance >= 0) {
+            material = scene.getMaterial(hitRecord.instance);
+            texture = scene.getTexture(hitRecord.instance);
+        }
+        else {
+            material = hitRecord.material;
+            texture = (hitRecord.texture >= 0) ? texturesByHandle[hitRecord.texture] : null;
+        }
+
+        float absorption = material.getAbsorption();
+        if (absorption > 0) {
+            float level = 0;
+            if ((texture != null) && (depth == 0))
+                level = textureLevel(scene,ray,hitRecord,texture,context);
+            shade(ray,hitRecord.point,hitRecord.normal,material,texture,level,
+                    hitRecord.texcoord,weight*absorption,scene,context);
+        }
+
+        if (depth >= maxDepth)
+            return;
+        float reflectionWeight = weight*material.getReflection();
+        float transparencyWeight = weight*material.getTransparency();
+        if ((reflectionWeight < contributionThreshold)
+                && (transparencyWeight < contributionThreshold))
+            return;
+
+        Vector4f point = hitRecord.point;
+        float dLength = (float)Math.sqrt(ray.direction.x*ray.direction.x
+                +ray.direction.y*ray.direction.y
+                +ray.direction.z*ray.direction.z);
+        float dx = ray.direction.x/dLength, dy = ray.direction.y/dLength, dz = ray.direction.z/dLength;
+        Vector4f normal = hitRecord.normal;
+        float nLength = (float)Math.sqrt(normal.x*normal.x+normal.y*normal.y+normal.z*normal.z);
+        float nx = normal.x/nLength, ny = normal.y/nLength, nz = normal.z/nLength;
+
+        //turn the normal to face the ray, remembering whether the ray is
+        //entering the surface from outside
+        float cosI = -(dx*nx+dy*ny+dz*nz);
+        boolean entering = cosI > 0;
+        if (!entering) {
+            nx = -nx;
+            ny = -ny;
+            nz = -nz;
+            cosI = -cosI;
+        }
+
+        if (transparencyWeight >= contributionThreshold) {
+            float refractiveIndex = material.getRefractiveIndex();
+            if (refractiveIndex <= 0)
+                refractiveIndex = 1;
+            float eta = entering ? 1/refractiveIndex : refractiveIndex;
+            float k = 1-eta*eta*(1-cosI*cosI);
+            if (k < 0) {
+                reflectionWeight += transparencyWeight;
+            }
+            else {
+                float c = eta*cosI-(float)Math.sqrt(k);
+                traceSecondary(scene,point,-SURFACE_BIAS,nx,ny,nz,
+                        eta*dx+c*nx,eta*dy+c*ny,eta*dz+c*nz,
+                        depth+1,transparencyWeight,context);
+            }
+        }
+
+        if (reflectionWeight >= contributionThreshold) {
+            //reflect D about N: R = D + 2(-D.N)N
+            traceSecondary(scene,point,SURFACE_BIAS,nx,ny,nz,
+                    dx+2*cosI*nx,dy+2*cosI*ny,dz+2*cosI*nz,
+                    depth+1,reflectionWeight,context);
+        }
+    }
+
+    /**
+     * Find the mipmap level to sample a texture at for a primary ray, from its
+     * ray differentials. The rays through the neighbouring pixels (a footprint
+     * away to the right and up) are intersected with the plane tangent to the
+     * surface at the hit, and the texture coordinates there give how many
+     * texels of the full-size texture the footprint of the pixel covers. The
+     * level is the base-2 logarithm of that, so that a texel of the level
+     * covers about a pixel.
+     */
+    private float textureLevel(RTScene scene,Ray ray,HitRecord hitRecord,
+                               TextureSampler texture,ShadingContext context) {
+        if ((texture.getLevelCount() == 1) || (hitRecord.instance < 0))
+            return 0;
+
+        Vector4f point = hitRecord.point;
+        Vector4f normal = hitRecord.normal;
+        float planeDistance = normal.x*(point.x-ray.start.x)
+                +normal.y*(point.y-ray.start.y)
+                +normal.z*(point.z-ray.start.z);
+        float f = context.footprint;
+        float u = hitRecord.texcoord.x, v = hitRecord.texcoord.y;
+        float footprint = 0;
+
+        for (int axis=0;axis<2;axis++) {
+            float dx = ray.direction.x + ((axis == 0) ? f : 0);
+            float dy = ray.direction.y + ((axis == 1) ? f : 0);
+            float dz = ray.direction.z;
+            float dDotN = normal.x*dx+normal.y*dy+normal.z*dz;
+            float t = planeDistance/dDotN;
+            if (!(t > 0) || Float.isInfinite(t))
+                return texture.getLevelCount()-1;
+            context.neighbour.set(ray.start.x+t*dx,ray.start.y+t*dy,ray.start.z+t*dz,1);
+            scene.texcoordAt(hitRecord,context.neighbour,context.neighbourTexcoord,
+                    context.intersector);
+
+            //texture coordinates repeat, so take the shorter way around
+            float du = context.neighbourTexcoord.x-u;
+            float dv = context.neighbourTexcoord.y-v;
+            du -= Math.round(du);
+            dv -= Math.round(dv);
+            du *= texture.getWidth();
+            dv *= texture.getHeight();
+            footprint = Math.max(footprint,du*du+dv*dv);
+        }
+        if (!(footprint > 1))
+            return 0;
+        //log2 of the length, from its square
+        return (float)(0.5*Math.log(footprint)/Math.log(2));
+    }
+
+    /**
+     * Trace a reflected or refracted ray leaving a surface point, and add what
+     * it sees to the color of the pixel. The ray starts just off the surface,
+     * by the given (signed) bias along the normal, so that it does not hit the
+     * surface it leaves.
+     */
+    private void traceSecondary(RTScene scene,Vector4f point,float bias,
+                                float nx,float ny,float nz,
+                                float dx,float dy,float dz,
+                                int depth,float weight,ShadingContext context) {
+        Ray ray = context.secondaryRays[depth];
+        HitRecord hitRecord = context.secondaryHits[depth];
+        ray.start.set(point.x+bias*nx,point.y+bias*ny,point.z+bias*nz,1);
+        ray.direction.set(dx,dy,dz,0);
+        hitRecord.reset();
+        context.rays[depth]++;
+        scene.intersect(ray,hitRecord,context.intersector);
+        if (hitRecord.intersected())
+            trace(scene,ray,hitRecord,depth,weight,context);
+    }
+
+    /**
+     * Shade a point seen along a ray with the Phong model, and add its color,
+     * scaled by the given weight, to the color of the pixel. The vector
+     * arithmetic is written out on floats so that shading does not allocate.
+     * The texture, if any, is sampled at the given mipmap level.
+     *
+     * If shadows are on, a light only contributes its diffuse and specular
+     * parts if a shadow ray from the point reaches it. Shadow rays are only
+     * cast for lights that face the point and whose cone contains it.
+     *
+     * The lights are those that the light tree chooses for the point, each
+     * contributing in proportion to its weight. The random numbers that it
+     * chooses them with depend only on the point, so the image is the same
+     * however its tiles are scheduled.
+     */
+    private void shade(Ray ray, Vector4f point, Vector4f normal, Material material,
+                       TextureSampler texture, float level, Vector2f texcoord, float weight,
+                       RTScene scene, ShadingContext context) {
+        float r = 0, g = 0, b = 0;
+        Ray shadowRay = context.shadowRay;
+
+        Vector4f matAmbient = material.getAmbient();
+        Vector4f matDiffuse = material.getDiffuse();
+        Vector4f matSpecular = material.getSpecular();
+        float shininess = material.getShininess();
+
+        float nLength = (float)Math.sqrt(normal.x*normal.x+normal.y*normal.y+normal.z*normal.z);
+        float nx = normal.x/nLength, ny = normal.y/nLength, nz = normal.z/nLength;
+
+        //the direction back towards where the ray came from
+        float vx = ray.start.x-point.x, vy = ray.start.y-point.y, vz = ray.start.z-point.z;
+        float vLength = (float)Math.sqrt(vx*vx+vy*vy+vz*vz);
+        vx /= vLength;
+        vy /= vLength;
+        vz /= vLength;
+
+        LightTable lights = this.lights;
+        LightTree.Choice choice = context.lightChoice;
+        int seed = Float.floatToRawIntBits(point.x)*0x9E3779B1
+                + Float.floatToRawIntBits(point.y)*0x85EBCA77
+                + Float.floatToRawIntBits(point.z)*0xC2B2AE3D;
+        lightTree.choose(point.x,point.y,point.z,nx,ny,nz,lightSamples,seed,choice);
+        for (int k=0;k<choice.count;k++)
+        {
+            int i = choice.lights[k];
+            float w = choice.weights[k];
+            float lx, ly, lz;
+            if (lights.directional[i]) {
+                lx = lights.x[i];
+                ly = lights.y[i];
+                lz = lights.z[i];
             }
             else
             {
-                specular = new Vector3f(0,0,0);
+                lx = lights.x[i] - point.x;
+                ly = lights.y[i] - point.y;
+                lz = lights.z[i] - point.z;
             }
-            color = new Vector3f(color).add(ambient).add(diffuse).add(specular);
-        }
+            float lLength = (float)Math.sqrt(lx*lx+ly*ly+lz*lz);
+            lx /= lLength;
+            ly /= lLength;
+            lz /= lLength;
+
+        /* if point is not in the light cone of this light, move on to next light */
+            if (-(lx*lights.spotX[i]+ly*lights.spotY[i]+lz*lights.spotZ[i])<=lights.cosCutoff[i])
+                continue;
 
-        if (textures.containsKey(textureName)) {
-            Vector4f colorFromTexture = textures.get(textureName).getColor(texcoord.x, 1 - texcoord.y);
-            color = color.mul(colorFromTexture.x, colorFromTexture.y, colorFromTexture.z);
+            float nDotL = nx*lx+ny*ly+nz*lz;
+
+            if ((nDotL>0) && (shadows)) {
+                //start just off the surface, so that it does not shadow itself
+                shadowRay.start.set(point.x+SURFACE_BIAS*nx,
+                        point.y+SURFACE_BIAS*ny,
+                        point.z+SURFACE_BIAS*nz,
+                        1);
+                float tMax;
+                if (!lights.directional[i]) {
+                    shadowRay.direction.set(lights.x[i]-shadowRay.start.x,
+                            lights.y[i]-shadowRay.start.y,
+                            lights.z[i]-shadowRay.start.z,
+                            0);
+                    tMax = 1;
+                }
+                else {
+                    shadowRay.direction.set(lx,ly,lz,0);
+                    tMax = Float.POSITIVE_INFINITY;
+                }
+                if (scene.occluded(shadowRay,tMax,i,context.intersector))
+                    nDotL = 0;
+            }
+
+            //reflect -L about N: R = 2(N.L)N - L
+            float rx = 2*nDotL*nx-lx, ry = 2*nDotL*ny-ly, rz = 2*nDotL*nz-lz;
+            float rLength = (float)Math.sqrt(rx*rx+ry*ry+rz*rz);
+
+            float rDotV = Math.max((rx*vx+ry*vy+rz*vz)/rLength,0.0f);
+
+            float diffuseFactor = Math.max(nDotL,0);
+
+            r += w*(matAmbient.x * lights.ambientR[i] + matDiffuse.x * lights.diffuseR[i] * diffuseFactor);
+            g += w*(matAmbient.y * lights.ambientG[i] + matDiffuse.y * lights.diffuseG[i] * diffuseFactor);
+            b += w*(matAmbient.z * lights.ambientB[i] + matDiffuse.z * lights.diffuseB[i] * diffuseFactor);
+
+            if (nDotL>0) {
+                float specularFactor = (float) Math.pow(rDotV, shininess);
+                r += w*(matSpecular.x * lights.specularR[i] * specularFactor);
+                g += w*(matSpecular.y * lights.specularG[i] * specularFactor);
+                b += w*(matSpecular.z * lights.specularB[i] * specularFactor);
+            }
         }
 
-        color.x = Math.min(color.x,1);
-        color.y = Math.min(color.y,1);
-        color.z = Math.min(color.z,1);
+        if (texture != null) {
+            Vector4f colorFromTexture = texture.sample(texcoord.x, 1 - texcoord.y, level, context.texel);
+            r *= colorFromTexture.x;
+            g *= colorFromTexture.y;
+            b *= colorFromTexture.z;
+        }
 
-        return new Color((int)(255*color.x),(int)(255*color.y),(int)(255*color.z));
+        context.r += weight*Math.min(r,1);
+        context.g += weight*Math.min(g,1);
+        context.b += weight*Math.min(b,1);
     }
 
     @Override
-    public void drawMesh(String name, Material material, String textureName, Matrix4f transformation) {
+    public void drawMesh(int mesh, Material material, int texture, Matrix4f transformation) {
         throw new IllegalArgumentException("Not valid for this renderer");
     }
 
     @Override
     public void addTexture(String name,String path)
     {
-        TextureImage image = null;
-        String imageFormat = path.substring(path.indexOf('.')+1);
+        TextureSampler image = null;
         try {
-            image = new TextureImage(path,imageFormat,name);
+            image = TextureSampler.load(path);
         } catch (IOException e) {
             throw new IllegalArgumentException("Texture "+path+" cannot be read!");
         }
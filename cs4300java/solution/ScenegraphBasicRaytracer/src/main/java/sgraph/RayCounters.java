@@ -0,0 +1,65 @@
+package sgraph;
+
+import java.util.Arrays;
+
+/**
+ * Counts of the work that one thread does to intersect rays with a scene: the
+ * shadow rays it casts, the nodes of hierarchies it visits and the
+ * intersection tests it makes, by the kind of primitive tested. Every
+ * {@link RTScene.Intersector} has its own, so counting is a plain increment,
+ * and the counts are added to the {@link RenderStats} of the image when the
+ * tile they were made for is done.
+ *
+ * A ray of a packet that is tested against a primitive counts as a test of
+ * its own, but a packet visits a node of a hierarchy only once, for all its
+ * rays.
+ */
+public class RayCounters {
+  /**
+   * The kinds of intersection tests. An instance test takes a ray into the
+   * coordinate system of an instance, which is then tested against its
+   * primitive; a mesh is tested triangle by triangle.
+   */
+  public static final int INSTANCE = 0;
+  public static final int SPHERE = 1;
+  public static final int BOX = 2;
+  public static final int CYLINDER = 3;
+  public static final int CONE = 4;
+  public static final int TRIANGLE = 5;
+  static final String[] TEST_NAMES = {
+          "instance", "sphere", "box", "cylinder", "cone", "triangle"};
+
+  long shadowRays;
+  long nodeVisits;
+  final long[] tests;
+
+  public RayCounters() {
+    tests = new long[TEST_NAMES.length];
+  }
+
+  public long getShadowRays() {
+    return shadowRays;
+  }
+
+  public long getNodeVisits() {
+    return nodeVisits;
+  }
+
+  /**
+   * The number of intersection tests of the given kind
+   */
+  public long getTests(int kind) {
+    if ((kind < 0) || (kind >= tests.length))
+      throw new IllegalArgumentException("No tests of kind " + kind);
+    return tests[kind];
+  }
+
+  /**
+   * Start counting again from 0
+   */
+  public void clear() {
+    shadowRays = 0;
+    nodeVisits = 0;
+    Arrays.fill(tests, 0);
+  }
+}
@@ -0,0 +1,119 @@
+package sgraph;
+
+import java.util.Arrays;
+
+/**
+ * A bundle of 4, 8 or 16 rays that are traced together. The rays are stored as
+ * a structure of arrays, one array per coordinate, so that the loops over the
+ * rays in a packet are simple enough for the JIT to vectorize.
+ *
+ * Every ray (lane) keeps its own closest hit: its parameter, the primitive
+ * that was hit (and for triangles, the barycentric coordinates of the hit) and
+ * the instance that the primitive belongs to. A lane whose parameter is
+ * negative infinity takes no part in the trace, since nothing can be closer
+ * than that.
+ */
+public class RayPacket {
+  /**
+   * The number of rays in this packet
+   */
+  public final int size;
+  public final float[] ox, oy, oz;
+  public final float[] dx, dy, dz;
+  /**
+   * The reciprocals of the directions, filled in by
+   * {@link #computeInverseDirections()} for traversing hierarchies
+   */
+  public final float[] idx, idy, idz;
+  public final float[] t;
+  public final int[] primitive;
+  public final float[] u, v;
+  public final int[] instance;
+
+  /**
+   * Create a packet of the given size, which must be 4, 8 or 16
+   */
+  public RayPacket(int size) {
+    if ((size != 4) && (size != 8) && (size != 16))
+      throw new IllegalArgumentException("Packets must have 4, 8 or 16 rays");
+    this.size = size;
+    ox = new float[size];
+    oy = new float[size];
+    oz = new float[size];
+    dx = new float[size];
+    dy = new float[size];
+    dz = new float[size];
+    idx = new float[size];
+    idy = new float[size];
+    idz = new float[size];
+    t = new float[size];
+    primitive = new int[size];
+    u = new float[size];
+    v = new float[size];
+    instance = new int[size];
+    reset();
+  }
+
+  /**
+   * Create a packet with its own rays, that shares the hits of the given
+   * packet. This is used to hold the rays of a packet after they have been
+   * transformed into the coordinate system of an instance: the parameter of a
+   * hit is the same in both.
+   */
+  public RayPacket(RayPacket hits) {
+    size = hits.size;
+    ox = new float[size];
+    oy = new float[size];
+    oz = new float[size];
+    dx = new float[size];
+    dy = new float[size];
+    dz = new float[size];
+    idx = new float[size];
+    idy = new float[size];
+    idz = new float[size];
+    t = hits.t;
+    primitive = hits.primitive;
+    u = hits.u;
+    v = hits.v;
+    instance = hits.instance;
+  }
+
+  /**
+   * Whether this packet records its hits in the same arrays as the other one
+   */
+  public boolean sharesHitsWith(RayPacket other) {
+    return t == other.t;
+  }
+
+  /**
+   * Clear the hits of every lane, and make every lane active
+   */
+  public void reset() {
+    Arrays.fill(t, Float.POSITIVE_INFINITY);
+    Arrays.fill(primitive, -1);
+    Arrays.fill(instance, -1);
+  }
+
+  /**
+   * Take the given lane out of the trace
+   */
+  public void deactivate(int lane) {
+    t[lane] = Float.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Whether the given lane found a hit
+   */
+  public boolean isHit(int lane) {
+    return (t[lane] > Float.NEGATIVE_INFINITY)
+            && (t[lane] < Float.POSITIVE_INFINITY);
+  }
+
+  public void computeInverseDirections() {
+    for (int i = 0; i < size; i++) {
+      idx[i] = 1.0f / dx[i];
+      idy[i] = 1.0f / dy[i];
+      idz[i] = 1.0f / dz[i];
+    }
+  }
+}
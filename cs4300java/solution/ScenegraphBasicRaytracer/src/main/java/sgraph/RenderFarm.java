@@ -0,0 +1,470 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The coordinator of a render farm: it splits every frame into tiles and hands
+ * them over sockets to worker processes, each of which holds its own copy of
+ * the scene graph (see {@link RenderFarmWorker}). The tiles that come back are
+ * assembled into the image, which is written to the output of the settings.
+ *
+ * Workers connect to the coordinator, so they may be started on this host
+ * with {@link #launchWorkers} or anywhere else that can reach its port.
+ * Workers may join at any time. A worker that disconnects, or that takes
+ * longer than the tile timeout to return a tile, is dropped, and the tile it
+ * was drawing is handed to another worker. A frame fails only if there are
+ * no workers left to draw it.
+ *
+ * Every worker draws with the same settings and camera, so the image is
+ * exactly the one that {@link RTScenegraphRenderer} would draw in one process
+ * (progressive rendering aside, which a farm has no use for).
+ */
+public class RenderFarm implements Closeable {
+  //messages from the coordinator to a worker
+  static final int HELLO = 0x52464d32;
+  static final byte FRAME = 1;
+  static final byte TILE = 2;
+  static final byte QUIT = 3;
+  //replies from a worker to a tile
+  static final byte TILE_DONE = 0;
+  static final byte TILE_FAILED = 1;
+  //how long (in milliseconds) a client has to say it is a worker
+  static final int HELLO_TIMEOUT = 5000;
+
+  private final ServerSocket server;
+  private final List<Process> processes;
+  private final Object lock;
+  private final List<Connection> workers;
+  private Frame frame;
+  private int frameCount;
+  private int tileTimeout;
+  private volatile boolean closed;
+
+  /**
+   * Start a coordinator that workers on this host can connect to, on a port
+   * chosen by the system (see {@link #getPort()})
+   */
+  public RenderFarm() throws IOException {
+    this(0, InetAddress.getLoopbackAddress());
+  }
+
+  /**
+   * Start a coordinator that workers connect to on the given port and
+   * address. Binding to a non-loopback address lets workers on other hosts
+   * join.
+   */
+  public RenderFarm(int port, InetAddress address) throws IOException {
+    server = new ServerSocket(port, 50, address);
+    processes = new ArrayList<Process>();
+    lock = new Object();
+    workers = new ArrayList<Connection>();
+    frame = null;
+    frameCount = 0;
+    tileTimeout = 60000;
+    closed = false;
+
+    Thread acceptor = new Thread(this::acceptWorkers, "render farm coordinator");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Set how long (in milliseconds) a worker may take to draw a tile before it
+   * is considered to have failed
+   */
+  public void setTileTimeout(int milliseconds) {
+    if (milliseconds <= 0)
+      throw new IllegalArgumentException("Tile timeout must be positive");
+    this.tileTimeout = milliseconds;
+  }
+
+  /**
+   * Start worker processes on this host, with the same Java and class path
+   * as this one. Every worker loads the scene itself, from a resource or a
+   * file with the given name, and connects to this coordinator. The
+   * processes are destroyed when the farm is closed.
+   *
+   * @param mainClass the class that starts a worker, with the host, port and
+   *                  scene as its arguments, followed by any others given
+   * @param arguments more arguments for every worker
+   */
+  public void launchWorkers(int count, String mainClass, String scene,
+                            String... arguments)
+          throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin"
+            + File.separator + "java";
+    String classPath = System.getProperty("java.class.path");
+    for (int i = 0; i < count; i++) {
+      List<String> command = new ArrayList<String>();
+      Collections.addAll(command, java, "-cp", classPath, mainClass,
+              server.getInetAddress().getHostAddress(),
+              Integer.toString(getPort()), scene);
+      Collections.addAll(command, arguments);
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.redirectErrorStream(true);
+      builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+      Process process = builder.start();
+      synchronized (lock) {
+        processes.add(process);
+      }
+    }
+  }
+
+  /**
+   * Wait until at least the given number of workers have connected
+   *
+   * @return false if they had not connected when the timeout ran out
+   */
+  public boolean awaitWorkers(int count, long milliseconds)
+          throws InterruptedException {
+    long deadline = System.currentTimeMillis() + milliseconds;
+    synchronized (lock) {
+      while (workers.size() < count) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0)
+          return false;
+        lock.wait(left);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The number of workers connected now
+   */
+  public int getWorkerCount() {
+    synchronized (lock) {
+      return workers.size();
+    }
+  }
+
+  /**
+   * Draw a frame on the workers, seen with the given modelview (the
+   * transformation from world to view coordinates). The image is written to
+   * the output of the settings, if it has one.
+   *
+   * @return the image, as packed RGB pixels row by row from the top
+   * @throws IllegalStateException if every worker failed before the frame
+   *                               was done
+   * @throws IllegalArgumentException if the settings ask for path tracing,
+   *                                  which workers cannot do one tile at a
+   *                                  time
+   */
+  public int[] render(Matrix4f modelView, RenderSettings settings)
+          throws InterruptedException {
+    if (settings.isPathTracing())
+      throw new IllegalArgumentException("Path traced images cannot be rendered on a farm");
+    int width = settings.getWidth();
+    int height = settings.getHeight();
+    int tileSize = settings.getTileSize();
+    Frame frame = new Frame(frameCount++, new Matrix4f(modelView),
+            new RenderSettings(settings));
+    for (int y = 0; y < height; y += tileSize)
+      for (int x = 0; x < width; x += tileSize)
+        frame.tiles.add(new int[]{x, y, Math.min(x + tileSize, width),
+                Math.min(y + tileSize, height)});
+    frame.remaining = new CountDownLatch(frame.tiles.size());
+
+    synchronized (lock) {
+      if (closed)
+        throw new IllegalStateException("Render farm is closed");
+      this.frame = frame;
+      lock.notifyAll();
+    }
+    try {
+      while (!frame.remaining.await(100, TimeUnit.MILLISECONDS)) {
+        if (frame.failure != null)
+          throw new IllegalStateException("A worker could not draw a tile: "
+                  + frame.failure);
+        synchronized (lock) {
+          if (workers.isEmpty() && processesExited())
+            throw new IllegalStateException("No render farm workers are left");
+        }
+      }
+      if (frame.failure != null)
+        throw new IllegalStateException("A worker could not draw a tile: "
+                + frame.failure);
+    } finally {
+      synchronized (lock) {
+        this.frame = null;
+      }
+    }
+
+    if (settings.getOutput() != null)
+      RTScenegraphRenderer.writeImage(frame.framebuffer, width, height,
+              settings.getFormat(), settings.getOutput());
+    return frame.framebuffer;
+  }
+
+  /**
+   * Tell the workers to quit, and stop accepting new ones
+   */
+  @Override
+  public void close() throws IOException {
+    List<Connection> connections;
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+      connections = new ArrayList<Connection>(workers);
+    }
+    server.close();
+    for (Connection connection : connections)
+      connection.quit();
+    synchronized (lock) {
+      for (Process process : processes) {
+        try {
+          if (!process.waitFor(5, TimeUnit.SECONDS))
+            process.destroy();
+        } catch (InterruptedException e) {
+          process.destroy();
+          Thread.currentThread().interrupt();
+        }
+      }
+      processes.clear();
+    }
+  }
+
+  /**
+   * Whether there are no launched workers that could still connect
+   */
+  private boolean processesExited() {
+    for (Process process : processes)
+      if (process.isAlive())
+        return false;
+    return true;
+  }
+
+  private void acceptWorkers() {
+    while (!closed) {
+      try {
+        Socket socket = server.accept();
+        Connection connection = new Connection(socket);
+        //the connection greets the worker on its own thread, so that a client
+        //that is slow to answer holds up no other worker
+        Thread thread = new Thread(connection::serve,
+                "render farm worker " + socket.getRemoteSocketAddress());
+        thread.setDaemon(true);
+        thread.start();
+      } catch (SocketException e) {
+        //the farm was closed
+        return;
+      } catch (IOException e) {
+        //this worker could not connect, but others still may
+      }
+    }
+  }
+
+  /**
+   * Send the settings that a worker draws with
+   */
+  static void writeSettings(DataOutputStream out, RenderSettings settings)
+          throws IOException {
+    out.writeInt(settings.getWidth());
+    out.writeInt(settings.getHeight());
+    out.writeFloat(settings.getFieldOfView());
+    out.writeInt(settings.getPacketSize());
+    out.writeBoolean(settings.hasShadows());
+    out.writeInt(settings.getMaxDepth());
+    out.writeFloat(settings.getContributionThreshold());
+    out.writeInt(settings.getMaxSamples());
+    out.writeFloat(settings.getAntialiasThreshold());
+    out.writeInt(settings.getLightSamples());
+  }
+
+  static RenderSettings readSettings(DataInputStream in) throws IOException {
+    RenderSettings settings = new RenderSettings();
+    settings.setSize(in.readInt(), in.readInt());
+    settings.setFieldOfView(in.readFloat());
+    settings.setPacketSize(in.readInt());
+    settings.setShadows(in.readBoolean());
+    settings.setMaxDepth(in.readInt());
+    settings.setContributionThreshold(in.readFloat());
+    settings.setMaxSamples(in.readInt());
+    settings.setAntialiasThreshold(in.readFloat());
+    settings.setLightSamples(in.readInt());
+    settings.setOutput(null);
+    return settings;
+  }
+
+  /**
+   * A frame being drawn: the tiles that no worker has drawn yet, and the
+   * image that the drawn ones are copied into
+   */
+  private static class Frame {
+    final int number;
+    final Matrix4f modelView;
+    final RenderSettings settings;
+    final BlockingDeque<int[]> tiles;
+    final int[] framebuffer;
+    CountDownLatch remaining;
+    volatile String failure;
+
+    Frame(int number, Matrix4f modelView, RenderSettings settings) {
+      this.number = number;
+      this.modelView = modelView;
+      this.settings = settings;
+      tiles = new LinkedBlockingDeque<int[]>();
+      framebuffer = new int[settings.getWidth() * settings.getHeight()];
+      remaining = null;
+      failure = null;
+    }
+  }
+
+  /**
+   * A connected worker, served by its own thread: it takes tiles of the
+   * current frame one at a time, sends them to the worker and copies back
+   * what it draws
+   */
+  private class Connection {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private int frameSent;
+
+    Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      frameSent = -1;
+      socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * Wait for the client to say that it is a worker, and join the farm
+     *
+     * @return false if it did not, or the farm was closed meanwhile
+     */
+    private boolean join() {
+      try {
+        socket.setSoTimeout(HELLO_TIMEOUT);
+        if (in.readInt() != HELLO)
+          throw new IOException("Not a render farm worker");
+        socket.setSoTimeout(0);
+      } catch (IOException e) {
+        drop();
+        return false;
+      }
+      synchronized (lock) {
+        if (!closed) {
+          workers.add(this);
+          lock.notifyAll();
+          return true;
+        }
+      }
+      drop();
+      return false;
+    }
+
+    void serve() {
+      if (!join())
+        return;
+      int[] tile = null;
+      Frame frame = null;
+      try {
+        while (true) {
+          frame = awaitFrame();
+          if (frame == null)
+            return;
+          tile = frame.tiles.poll(100, TimeUnit.MILLISECONDS);
+          if (tile == null)
+            continue;
+
+          if (frameSent != frame.number) {
+            out.writeByte(FRAME);
+            writeSettings(out, frame.settings);
+            float[] matrix = new float[16];
+            frame.modelView.get(matrix);
+            for (float value : matrix)
+              out.writeFloat(value);
+            //what is known about the matrix decides how it is inverted, and
+            //so the last bits of every ray
+            out.writeInt(frame.modelView.properties());
+            frameSent = frame.number;
+          }
+          out.writeByte(TILE);
+          for (int value : tile)
+            out.writeInt(value);
+          out.flush();
+
+          socket.setSoTimeout(tileTimeout);
+          byte reply = in.readByte();
+          if (reply == TILE_DONE) {
+            int width = frame.settings.getWidth();
+            for (int y = tile[1]; y < tile[3]; y++)
+              for (int x = tile[0]; x < tile[2]; x++)
+                frame.framebuffer[y * width + x] = in.readInt();
+          } else {
+            frame.failure = in.readUTF();
+          }
+          socket.setSoTimeout(0);
+          tile = null;
+          frame.remaining.countDown();
+        }
+      } catch (IOException e) {
+        //the worker is gone: give its tile to another one
+        if (tile != null)
+          frame.tiles.addFirst(tile);
+      } catch (InterruptedException e) {
+        if (tile != null)
+          frame.tiles.addFirst(tile);
+      } finally {
+        drop();
+      }
+    }
+
+    /**
+     * Wait for a frame to draw, or return null once the farm is closed
+     */
+    private Frame awaitFrame() throws InterruptedException {
+      synchronized (lock) {
+        while ((frame == null) && !closed)
+          lock.wait();
+        return closed ? null : frame;
+      }
+    }
+
+    void quit() {
+      try {
+        out.writeByte(QUIT);
+        out.flush();
+      } catch (IOException e) {
+        //it is gone already
+      }
+      drop();
+    }
+
+    private void drop() {
+      synchronized (lock) {
+        workers.remove(this);
+      }
+      try {
+        socket.close();
+      } catch (IOException e) {
+        //nothing more to do with it
+      }
+    }
+  }
+}
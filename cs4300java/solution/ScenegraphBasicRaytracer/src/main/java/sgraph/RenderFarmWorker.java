@@ -0,0 +1,115 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Stack;
+
+/**
+ * A worker of a render farm: it holds a scene graph, connects to a
+ * {@link RenderFarm} and draws the tiles that it is given until it is told to
+ * quit. Every frame comes with its camera and settings; the scene is compiled
+ * once per frame and shared by all its tiles.
+ */
+public class RenderFarmWorker {
+  private final IScenegraph<?> scenegraph;
+  private final RTScenegraphRenderer renderer;
+  private int tileLimit;
+
+  /**
+   * Create a worker that draws the given scene graph. The scene graph is
+   * given a ray tracing renderer of its own.
+   */
+  public RenderFarmWorker(IScenegraph<?> scenegraph) throws Exception {
+    this.scenegraph = scenegraph;
+    renderer = new RTScenegraphRenderer();
+    renderer.setParallel(false);
+    scenegraph.setRenderer(renderer);
+    tileLimit = -1;
+  }
+
+  /**
+   * Make this worker fail once it has drawn the given number of tiles: it
+   * disconnects without returning the next tile it is given, as a worker that
+   * crashes would, so that the coordinator must hand that tile to another
+   * one. This is for trying out how a farm recovers; a negative limit (the
+   * default) means no limit.
+   */
+  public void setTileLimit(int tiles) {
+    this.tileLimit = tiles;
+  }
+
+  /**
+   * Connect to the coordinator and draw tiles until it says to quit or
+   * disconnects
+   */
+  public void serve(String host, int port) throws IOException {
+    try (Socket socket = new Socket(host, port)) {
+      socket.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(
+              new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+              new BufferedOutputStream(socket.getOutputStream()));
+      out.writeInt(RenderFarm.HELLO);
+      out.flush();
+
+      Stack<Matrix4f> modelView = new Stack<Matrix4f>();
+      RTScene scene = null;
+      int[] pixels = new int[0];
+      int tiles = 0;
+      while (true) {
+        byte message;
+        try {
+          message = in.readByte();
+        } catch (EOFException e) {
+          return;
+        }
+
+        switch (message) {
+          case RenderFarm.FRAME:
+            renderer.setRenderSettings(RenderFarm.readSettings(in));
+            float[] matrix = new float[16];
+            for (int i = 0; i < 16; i++)
+              matrix[i] = in.readFloat();
+            modelView.clear();
+            modelView.push(new Matrix4f().set(matrix).assume(in.readInt()));
+            scene = renderer.compileScene(scenegraph.getRoot(), modelView);
+            break;
+          case RenderFarm.TILE:
+            int x0 = in.readInt(), y0 = in.readInt();
+            int x1 = in.readInt(), y1 = in.readInt();
+            if (tiles++ == tileLimit)
+              return;
+            if (pixels.length < (x1 - x0) * (y1 - y0))
+              pixels = new int[(x1 - x0) * (y1 - y0)];
+            try {
+              if (scene == null)
+                throw new IllegalStateException("Tile sent before its frame");
+              renderer.drawRegion(scenegraph.getRoot(), modelView, scene,
+                      x0, y0, x1, y1, pixels);
+            } catch (RuntimeException e) {
+              out.writeByte(RenderFarm.TILE_FAILED);
+              out.writeUTF(String.valueOf(e.getMessage()));
+              out.flush();
+              break;
+            }
+            out.writeByte(RenderFarm.TILE_DONE);
+            for (int i = 0; i < (x1 - x0) * (y1 - y0); i++)
+              out.writeInt(pixels[i]);
+            out.flush();
+            break;
+          case RenderFarm.QUIT:
+            return;
+          default:
+            throw new IOException("Unknown render farm message " + message);
+        }
+      }
+    }
+  }
+}
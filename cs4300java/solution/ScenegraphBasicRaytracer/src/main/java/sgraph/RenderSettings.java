@@ -0,0 +1,423 @@
+package sgraph;
+
+/**
+ * The settings that the ray tracer renders an image with: its resolution, the
+ * vertical field of view, where and in what format the image is written, and
+ * the size of the tiles that the work is divided into.
+ *
+ * The image is by default the one the ray tracer has always written: 800x800
+ * pixels with a vertical field of view of 120 degrees, to
+ * "output/raytrace.png". No report of the work done to render it, and no
+ * heat map, is written unless a file is set for it.
+ *
+ * What is in the image has changed, however: by default points are shadowed
+ * from the lights they cannot see, and rays are reflected and refracted up to
+ * 5 times, where the ray tracer used to do neither. Turn shadows off and set
+ * the maximum depth to 0 to draw the images it drew before.
+ */
+public class RenderSettings {
+  /**
+   * The image formats that the ray tracer can write
+   */
+  public enum Format {
+    PNG, PPM
+  }
+
+  /**
+   * The orders that the tiles of an image can be rendered in: row by row, or
+   * along a Morton (Z-order) or Hilbert curve, which keeps the tiles rendered
+   * one after the other close together on the screen, and so in the scene
+   */
+  public enum TileOrder {
+    ROWS, MORTON, HILBERT
+  }
+
+  private int width;
+  private int height;
+  private float fieldOfView;
+  private String output;
+  private String report;
+  private String heatMap;
+  private Format format;
+  private int tileSize;
+  private TileOrder tileOrder;
+  private boolean progressive;
+  private boolean incremental;
+  private int packetSize;
+  private boolean shadows;
+  private int maxDepth;
+  private float contributionThreshold;
+  private int maxSamples;
+  private int lightSamples;
+  private float antialiasThreshold;
+  private boolean pathTracing;
+  private int samplesPerPass;
+  private int maxPathSamples;
+  private float noiseThreshold;
+
+  public RenderSettings() {
+    width = 800;
+    height = 800;
+    fieldOfView = 120.0f;
+    output = "output/raytrace.png";
+    report = null;
+    heatMap = null;
+    format = Format.PNG;
+    tileSize = 32;
+    tileOrder = TileOrder.HILBERT;
+    progressive = false;
+    incremental = false;
+    packetSize = 1;
+    shadows = true;
+    maxDepth = 5;
+    contributionThreshold = 0.01f;
+    maxSamples = 1;
+    lightSamples = 0;
+    antialiasThreshold = 0.1f;
+    pathTracing = false;
+    samplesPerPass = 4;
+    maxPathSamples = 256;
+    noiseThreshold = 0.02f;
+  }
+
+  public RenderSettings(RenderSettings other) {
+    width = other.width;
+    height = other.height;
+    fieldOfView = other.fieldOfView;
+    output = other.output;
+    report = other.report;
+    heatMap = other.heatMap;
+    format = other.format;
+    tileSize = other.tileSize;
+    tileOrder = other.tileOrder;
+    progressive = other.progressive;
+    incremental = other.incremental;
+    packetSize = other.packetSize;
+    shadows = other.shadows;
+    maxDepth = other.maxDepth;
+    contributionThreshold = other.contributionThreshold;
+    maxSamples = other.maxSamples;
+    lightSamples = other.lightSamples;
+    antialiasThreshold = other.antialiasThreshold;
+    pathTracing = other.pathTracing;
+    samplesPerPass = other.samplesPerPass;
+    maxPathSamples = other.maxPathSamples;
+    noiseThreshold = other.noiseThreshold;
+  }
+
+  /**
+   * Set the resolution of the image, in pixels
+   */
+  public void setSize(int width, int height) {
+    if ((width <= 0) || (height <= 0))
+      throw new IllegalArgumentException("Image size must be positive");
+    if ((long) width * height > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Image is too large");
+    this.width = width;
+    this.height = height;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Set the vertical field of view, in degrees
+   */
+  public void setFieldOfView(float degrees) {
+    if ((degrees <= 0) || (degrees >= 180))
+      throw new IllegalArgumentException("Field of view must be between 0 and 180 degrees");
+    this.fieldOfView = degrees;
+  }
+
+  public float getFieldOfView() {
+    return fieldOfView;
+  }
+
+  /**
+   * Set the file that the image is written to. If this is null, the image is
+   * rendered but not written anywhere.
+   */
+  public void setOutput(String path) {
+    this.output = path;
+  }
+
+  public String getOutput() {
+    return output;
+  }
+
+  /**
+   * Set the file that a report of the work done to render the image (see
+   * {@link RenderStats}) is written to, as JSON. If this is null (the
+   * default), no report is written.
+   */
+  public void setReport(String path) {
+    this.report = path;
+  }
+
+  public String getReport() {
+    return report;
+  }
+
+  /**
+   * Set the PNG file that a heat map of the time spent on every tile of the
+   * image is written to. If this is null (the default), no heat map is
+   * written.
+   */
+  public void setHeatMap(String path) {
+    this.heatMap = path;
+  }
+
+  public String getHeatMap() {
+    return heatMap;
+  }
+
+  /**
+   * Set the format that the image is written in
+   */
+  public void setFormat(Format format) {
+    if (format == null)
+      throw new IllegalArgumentException("Format cannot be null");
+    this.format = format;
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  /**
+   * Set the size (in pixels) of the square tiles that the image is split
+   * into. A row of tiles is also the band of rows that is encoded at once.
+   */
+  public void setTileSize(int tileSize) {
+    if (tileSize <= 0)
+      throw new IllegalArgumentException("Tile size must be positive");
+    this.tileSize = tileSize;
+  }
+
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  /**
+   * Set the order that the tiles of every pass are handed out in. Threads
+   * that run out of tiles take the largest run of tiles left to another
+   * thread, so each thread still works through tiles that are close together.
+   */
+  public void setTileOrder(TileOrder tileOrder) {
+    if (tileOrder == null)
+      throw new IllegalArgumentException("Tile order cannot be null");
+    this.tileOrder = tileOrder;
+  }
+
+  public TileOrder getTileOrder() {
+    return tileOrder;
+  }
+
+  /**
+   * Turn progressive rendering on or off. A progressive image is rendered in
+   * three passes: first tracing one pixel in every 4x4 block, then one in
+   * every 2x2 block, then every pixel. Pixels traced in one pass are not
+   * traced again in the next. Only the last pass is written to the output.
+   */
+  public void setProgressive(boolean progressive) {
+    this.progressive = progressive;
+  }
+
+  public boolean isProgressive() {
+    return progressive;
+  }
+
+  /**
+   * Turn incremental rendering on or off. When the scene graph changes
+   * between two images drawn with the same settings, camera and lights,
+   * an incremental image only traces again the pixels that the change can
+   * have affected, and keeps the rest of the previous image: the pixels
+   * that see a changed object, directly or through reflections and
+   * refractions, those that its old and new bounds cover on the screen,
+   * and those whose shadow rays pass through those bounds. Progressive and
+   * anti-aliased images are always drawn in full.
+   *
+   * Materials must then only be changed by setting them on their leaves,
+   * and transformations through the setters of their transform nodes, so
+   * that the change can be seen.
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+  }
+
+  public boolean isIncremental() {
+    return incremental;
+  }
+
+  /**
+   * Set the number of primary rays that are traced together as a packet: 4
+   * (2x2 pixels), 8 (4x2 pixels) or 16 (4x4 pixels). A size of 1 traces every
+   * ray on its own.
+   */
+  public void setPacketSize(int packetSize) {
+    if ((packetSize != 1) && (packetSize != 4) && (packetSize != 8)
+            && (packetSize != 16))
+      throw new IllegalArgumentException("Packet size must be 1, 4, 8 or 16");
+    this.packetSize = packetSize;
+  }
+
+  public int getPacketSize() {
+    return packetSize;
+  }
+
+  /**
+   * Turn shadows on or off. Without shadows, every light illuminates every
+   * point that faces it. Shadows are on by default.
+   */
+  public void setShadows(boolean shadows) {
+    this.shadows = shadows;
+  }
+
+  public boolean hasShadows() {
+    return shadows;
+  }
+
+  /**
+   * Set how many times a ray may be reflected or refracted. At 0, only
+   * primary rays are traced, and reflective and transparent materials show
+   * only their own color. The default is 5.
+   */
+  public void setMaxDepth(int maxDepth) {
+    if (maxDepth < 0)
+      throw new IllegalArgumentException("Maximum depth cannot be negative");
+    this.maxDepth = maxDepth;
+  }
+
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * Set the smallest fraction of the color of a pixel that a reflected or
+   * refracted ray must contribute to be traced. Rays that would contribute
+   * less are not traced, so that surfaces that are only slightly reflective
+   * or transparent do not pay for deep recursion.
+   */
+  public void setContributionThreshold(float threshold) {
+    if ((threshold < 0) || (threshold > 1))
+      throw new IllegalArgumentException("Contribution threshold must be between 0 and 1");
+    this.contributionThreshold = threshold;
+  }
+
+  public float getContributionThreshold() {
+    return contributionThreshold;
+  }
+
+  /**
+   * Set the largest number of samples traced for a pixel: 1, 4, 9 or 16. With
+   * more than one, the image is anti-aliased adaptively: every pixel is first
+   * traced with one sample, and then only the pixels whose color or hit object
+   * differs from that of a neighbour are traced again, with one sample in
+   * every cell of a 2x2, 3x3 or 4x4 grid over the pixel.
+   */
+  public void setMaxSamples(int maxSamples) {
+    if ((maxSamples != 1) && (maxSamples != 4) && (maxSamples != 9)
+            && (maxSamples != 16))
+      throw new IllegalArgumentException("Samples per pixel must be 1, 4, 9 or 16");
+    this.maxSamples = maxSamples;
+  }
+
+  public int getMaxSamples() {
+    return maxSamples;
+  }
+
+  /**
+   * Set the number of point lights that light every surface point, chosen at
+   * random in proportion to an estimate of how much they light it, with their
+   * contributions scaled so that the image is right on average. This bounds
+   * the cost of shading (and the shadow rays) of scenes with many lights, at
+   * the cost of noise. With 0 (the default), every light lights every point,
+   * except lights whose spot cones cannot reach it. Directional lights always
+   * light every point.
+   */
+  public void setLightSamples(int samples) {
+    if (samples < 0)
+      throw new IllegalArgumentException("Light samples cannot be negative");
+    this.lightSamples = samples;
+  }
+
+  public int getLightSamples() {
+    return lightSamples;
+  }
+
+  /**
+   * Set how much (as a fraction of the full range) a channel of two
+   * neighbouring pixels must differ for them to be anti-aliased
+   */
+  public void setAntialiasThreshold(float threshold) {
+    if ((threshold < 0) || (threshold > 1))
+      throw new IllegalArgumentException("Anti-aliasing threshold must be between 0 and 1");
+    this.antialiasThreshold = threshold;
+  }
+
+  public float getAntialiasThreshold() {
+    return antialiasThreshold;
+  }
+
+  /**
+   * Turn path tracing on or off. A path traced image is lit by global
+   * illumination instead of Phong shading: every pixel averages many random
+   * light paths, which are added up over passes until the image is no longer
+   * noisy. Progressive rendering, packets and anti-aliasing are not used.
+   */
+  public void setPathTracing(boolean pathTracing) {
+    this.pathTracing = pathTracing;
+  }
+
+  public boolean isPathTracing() {
+    return pathTracing;
+  }
+
+  /**
+   * Set how many paths every pass of a path traced image adds to each pixel
+   * of the tiles that are still noisy
+   */
+  public void setSamplesPerPass(int samples) {
+    if (samples <= 0)
+      throw new IllegalArgumentException("Samples per pass must be positive");
+    this.samplesPerPass = samples;
+  }
+
+  public int getSamplesPerPass() {
+    return samplesPerPass;
+  }
+
+  /**
+   * Set the budget of a path traced image, as the average number of paths
+   * per pixel. Tiles that are no longer noisy stop taking samples, which
+   * leaves more of the budget for those that are.
+   */
+  public void setMaxPathSamples(int samples) {
+    if (samples <= 0)
+      throw new IllegalArgumentException("Path samples must be positive");
+    this.maxPathSamples = samples;
+  }
+
+  public int getMaxPathSamples() {
+    return maxPathSamples;
+  }
+
+  /**
+   * Set the noise that a tile of a path traced image is rendered down to: the
+   * standard error of its pixels, relative to its brightness
+   */
+  public void setNoiseThreshold(float threshold) {
+    if (!(threshold > 0) || (threshold > 1))
+      throw new IllegalArgumentException("Noise threshold must be greater than 0 and at most 1");
+    this.noiseThreshold = threshold;
+  }
+
+  public float getNoiseThreshold() {
+    return noiseThreshold;
+  }
+}
@@ -0,0 +1,284 @@
+package sgraph;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Counts of the work done to render an image. Every tile counts its own work
+ * and adds it here when it is done, so counting needs no synchronization per
+ * ray.
+ *
+ * Rays are counted by their depth: primary rays have depth 0, and the rays
+ * reflected or refracted at a surface hit by a ray of depth d have depth d+1
+ * (for path traced images, the rays that continue a path). Shadow rays, the
+ * nodes of hierarchies visited and the intersection tests made are counted
+ * as in {@link RayCounters}.
+ *
+ * The time spent on every tile is kept as well, added up over all the passes
+ * of the image, which shows where in the image the time goes. It can be
+ * written out with the rest as a JSON report, and as a heat map.
+ */
+public class RenderStats {
+  private final long[] rays;
+  private long shadowRays;
+  private long nodeVisits;
+  private final long[] tests;
+  private final int width;
+  private final int height;
+  private final int tileSize;
+  private final int tilesX;
+  private final int tilesY;
+  private final long[] tileTimes;
+  private long renderTime;
+
+  /**
+   * Create empty statistics for rays of depth 0 up to maxDepth, without
+   * tiles
+   */
+  public RenderStats(int maxDepth) {
+    this(maxDepth, 0, 0, 1);
+  }
+
+  /**
+   * Create empty statistics for rays of depth 0 up to maxDepth, for an image
+   * of the given size rendered in square tiles of the given size
+   */
+  public RenderStats(int maxDepth, int width, int height, int tileSize) {
+    if (maxDepth < 0)
+      throw new IllegalArgumentException("Maximum depth cannot be negative");
+    if ((width < 0) || (height < 0) || (tileSize <= 0))
+      throw new IllegalArgumentException("Invalid image or tile size");
+    rays = new long[maxDepth + 1];
+    tests = new long[RayCounters.TEST_NAMES.length];
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    tilesX = (width + tileSize - 1) / tileSize;
+    tilesY = (height + tileSize - 1) / tileSize;
+    tileTimes = new long[tilesX * tilesY];
+  }
+
+  /**
+   * Add the rays counted by a tile, indexed by their depth
+   */
+  public synchronized void addRays(long[] raysByDepth) {
+    for (int i = 0; i < Math.min(rays.length, raysByDepth.length); i++)
+      rays[i] += raysByDepth[i];
+  }
+
+  /**
+   * Add the rays counted by a tile, indexed by their depth, and the rest of
+   * its work as counted by the intersector that it traced them with
+   */
+  public synchronized void add(long[] raysByDepth, RayCounters counters) {
+    addRays(raysByDepth);
+    shadowRays += counters.shadowRays;
+    nodeVisits += counters.nodeVisits;
+    for (int i = 0; i < tests.length; i++)
+      tests[i] += counters.tests[i];
+  }
+
+  /**
+   * Add time spent on the tile whose top-left pixel is (x0,y0)
+   */
+  public synchronized void addTileTime(int x0, int y0, long nanoseconds) {
+    int tx = x0 / tileSize;
+    int ty = y0 / tileSize;
+    if ((tx < tilesX) && (ty < tilesY))
+      tileTimes[ty * tilesX + tx] += nanoseconds;
+  }
+
+  /**
+   * Set the time that the whole image took, from start to finish
+   */
+  public synchronized void setRenderTime(long nanoseconds) {
+    renderTime = nanoseconds;
+  }
+
+  /**
+   * The largest depth that rays are counted for
+   */
+  public int getMaxDepth() {
+    return rays.length - 1;
+  }
+
+  /**
+   * The number of rays of the given depth
+   */
+  public synchronized long getRays(int depth) {
+    if ((depth < 0) || (depth >= rays.length))
+      throw new IllegalArgumentException("No rays are counted at depth " + depth);
+    return rays[depth];
+  }
+
+  /**
+   * The number of rays of all depths
+   */
+  public synchronized long getTotalRays() {
+    long total = 0;
+    for (long r : rays)
+      total += r;
+    return total;
+  }
+
+  public synchronized long getPrimaryRays() {
+    return rays[0];
+  }
+
+  /**
+   * The number of rays of depth 1 or more
+   */
+  public synchronized long getSecondaryRays() {
+    return getTotalRays() - rays[0];
+  }
+
+  public synchronized long getShadowRays() {
+    return shadowRays;
+  }
+
+  public synchronized long getNodeVisits() {
+    return nodeVisits;
+  }
+
+  /**
+   * The number of intersection tests of the given kind, one of those of
+   * {@link RayCounters}
+   */
+  public synchronized long getTests(int kind) {
+    if ((kind < 0) || (kind >= tests.length))
+      throw new IllegalArgumentException("No tests of kind " + kind);
+    return tests[kind];
+  }
+
+  public int getTileColumns() {
+    return tilesX;
+  }
+
+  public int getTileRows() {
+    return tilesY;
+  }
+
+  /**
+   * The time spent on the tile in the given column and row of tiles, in
+   * nanoseconds
+   */
+  public synchronized long getTileTime(int column, int row) {
+    if ((column < 0) || (column >= tilesX) || (row < 0) || (row >= tilesY))
+      throw new IllegalArgumentException("No tile at " + column + "," + row);
+    return tileTimes[row * tilesX + column];
+  }
+
+  /**
+   * The time that the whole image took, in nanoseconds
+   */
+  public synchronized long getRenderTime() {
+    return renderTime;
+  }
+
+  /**
+   * Write these statistics as a JSON object. Times are in milliseconds, and
+   * the times of the tiles are given row by row from the top.
+   */
+  public synchronized String toJSON() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"width\": ").append(width).append(",\n");
+    json.append("  \"height\": ").append(height).append(",\n");
+    json.append("  \"tileSize\": ").append(tileSize).append(",\n");
+    json.append("  \"renderTimeMs\": ").append(milliseconds(renderTime)).append(",\n");
+    json.append("  \"rays\": {\n");
+    json.append("    \"primary\": ").append(getPrimaryRays()).append(",\n");
+    json.append("    \"secondary\": ").append(getSecondaryRays()).append(",\n");
+    json.append("    \"shadow\": ").append(shadowRays).append(",\n");
+    json.append("    \"byDepth\": [");
+    for (int i = 0; i < rays.length; i++)
+      json.append((i > 0) ? ", " : "").append(rays[i]);
+    json.append("]\n");
+    json.append("  },\n");
+    json.append("  \"nodeVisits\": ").append(nodeVisits).append(",\n");
+    json.append("  \"tests\": {\n");
+    for (int i = 0; i < tests.length; i++) {
+      json.append("    \"").append(RayCounters.TEST_NAMES[i]).append("\": ")
+              .append(tests[i]).append((i + 1 < tests.length) ? ",\n" : "\n");
+    }
+    json.append("  },\n");
+    json.append("  \"tiles\": {\n");
+    json.append("    \"columns\": ").append(tilesX).append(",\n");
+    json.append("    \"rows\": ").append(tilesY).append(",\n");
+    json.append("    \"timeMs\": [");
+    for (int ty = 0; ty < tilesY; ty++) {
+      json.append((ty > 0) ? ",\n      [" : "\n      [");
+      for (int tx = 0; tx < tilesX; tx++)
+        json.append((tx > 0) ? ", " : "")
+                .append(milliseconds(tileTimes[ty * tilesX + tx]));
+      json.append("]");
+    }
+    json.append((tilesY > 0) ? "\n    ]\n" : "]\n");
+    json.append("  }\n");
+    json.append("}\n");
+    return json.toString();
+  }
+
+  private static String milliseconds(long nanoseconds) {
+    return String.format(Locale.ROOT, "%.3f", nanoseconds / 1e6);
+  }
+
+  /**
+   * Write these statistics to a file as JSON
+   */
+  public void writeReport(String path) {
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(path),
+            StandardCharsets.UTF_8)) {
+      out.write(toJSON());
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not write render report!");
+    }
+  }
+
+  /**
+   * Write a heat map of the time spent on every tile, the size of the image,
+   * as a PNG file. Every tile is colored by its time relative to that of the
+   * slowest tile, from black through red and yellow to white.
+   */
+  public synchronized void writeHeatMap(String path) {
+    if ((width == 0) || (height == 0))
+      throw new IllegalStateException("No tiles were timed");
+    long slowest = 1;
+    for (long t : tileTimes)
+      slowest = Math.max(slowest, t);
+
+    int[] pixels = new int[width * height];
+    for (int y = 0; y < height; y++) {
+      int ty = y / tileSize;
+      for (int x = 0; x < width; x++) {
+        float heat = (float) tileTimes[ty * tilesX + x / tileSize] / slowest;
+        pixels[y * width + x] = heatColor(heat);
+      }
+    }
+    RTScenegraphRenderer.writeImage(pixels, width, height,
+            RenderSettings.Format.PNG, path);
+  }
+
+  /**
+   * The color of a heat in [0,1]: red rises over the first third, then green,
+   * then blue
+   */
+  private static int heatColor(float heat) {
+    float h = 3 * heat;
+    int r = (int) (255 * Math.min(Math.max(h, 0), 1));
+    int g = (int) (255 * Math.min(Math.max(h - 1, 0), 1));
+    int b = (int) (255 * Math.min(Math.max(h - 2, 0), 1));
+    return (r << 16) | (g << 8) | b;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "rays by depth: " + Arrays.toString(rays) + ", total: " + getTotalRays()
+            + ", shadow rays: " + shadowRays + ", node visits: " + nodeVisits;
+  }
+}
@@ -0,0 +1,150 @@
+package sgraph;
+
+/**
+ * Packet tests written as plain loops over the lanes of a packet. The arrays
+ * of a packet are small and the loop bodies have no calls, so the JIT is free
+ * to vectorize them.
+ */
+class ScalarPacketKernel implements PacketKernel {
+  /**
+   * Triangles with a determinant smaller than this are parallel to the ray
+   */
+  private static final float EPSILON = 1e-9f;
+
+  static final PacketKernel SELECTED = select();
+
+  private static PacketKernel select() {
+    if (Boolean.getBoolean(VECTOR_PROPERTY)) {
+      try {
+        return (PacketKernel) Class.forName("sgraph.VectorPacketKernel")
+                .newInstance();
+      } catch (Throwable e) {
+        //not compiled, or this JDK cannot run it (jdk.incubator.vector must
+        //be added with --add-modules)
+        System.err.println("Vector packet kernel is not available ("
+                + e + "), using the scalar one");
+      }
+    }
+    return new ScalarPacketKernel();
+  }
+
+  @Override
+  public float enterBox(float[] bounds, int o, RayPacket packet) {
+    float minx = bounds[o], miny = bounds[o + 1], minz = bounds[o + 2];
+    float maxx = bounds[o + 3], maxy = bounds[o + 4], maxz = bounds[o + 5];
+    float enter = Float.POSITIVE_INFINITY;
+    for (int i = 0; i < packet.size; i++) {
+      float t1 = (minx - packet.ox[i]) * packet.idx[i];
+      float t2 = (maxx - packet.ox[i]) * packet.idx[i];
+      float tmin = Math.min(t1, t2);
+      float tmax = Math.max(t1, t2);
+
+      t1 = (miny - packet.oy[i]) * packet.idy[i];
+      t2 = (maxy - packet.oy[i]) * packet.idy[i];
+      tmin = Math.max(tmin, Math.min(t1, t2));
+      tmax = Math.min(tmax, Math.max(t1, t2));
+
+      t1 = (minz - packet.oz[i]) * packet.idz[i];
+      t2 = (maxz - packet.oz[i]) * packet.idz[i];
+      tmin = Math.max(Math.max(tmin, Math.min(t1, t2)), 0);
+      tmax = Math.min(tmax, Math.max(t1, t2));
+
+      if ((tmin <= tmax) && (tmin < packet.t[i]))
+        enter = Math.min(enter, tmin);
+    }
+    return enter;
+  }
+
+  @Override
+  public void intersectSphere(RayPacket packet) {
+    for (int i = 0; i < packet.size; i++) {
+      float ox = packet.ox[i], oy = packet.oy[i], oz = packet.oz[i];
+      float dx = packet.dx[i], dy = packet.dy[i], dz = packet.dz[i];
+      float a = dx * dx + dy * dy + dz * dz;
+      float b = 2 * (ox * dx + oy * dy + oz * dz);
+      float c = ox * ox + oy * oy + oz * oz - 1;
+      float disc = b * b - 4 * a * c;
+      if (disc < 0)
+        continue;
+      float root = (float) Math.sqrt(disc);
+      float t1 = (-b + root) / (2 * a);
+      float t2 = (-b - root) / (2 * a);
+      float t = (t2 >= 0) ? t2 : t1;
+      if ((t >= 0) && (t < packet.t[i])) {
+        packet.t[i] = t;
+        packet.primitive[i] = -1;
+      }
+    }
+  }
+
+  @Override
+  public void intersectBox(RayPacket packet) {
+    for (int i = 0; i < packet.size; i++) {
+      float tmin = Float.NEGATIVE_INFINITY;
+      float tmax = Float.POSITIVE_INFINITY;
+      boolean miss = false;
+
+      for (int k = 0; k < 3; k++) {
+        float o = (k == 0) ? packet.ox[i] : (k == 1) ? packet.oy[i] : packet.oz[i];
+        float d = (k == 0) ? packet.dx[i] : (k == 1) ? packet.dy[i] : packet.dz[i];
+        if (Math.abs(d) < 0.0001f) {
+          if ((o > 0.5f) || (o < -0.5f))
+            miss = true;
+        } else {
+          float t1 = (-0.5f - o) / d;
+          float t2 = (0.5f - o) / d;
+          tmin = Math.max(tmin, Math.min(t1, t2));
+          tmax = Math.min(tmax, Math.max(t1, t2));
+        }
+      }
+
+      if (miss || (tmin >= tmax) || (tmax <= 0))
+        continue;
+      float t = (tmin > 0) ? tmin : tmax;
+      if (t < packet.t[i]) {
+        packet.t[i] = t;
+        packet.primitive[i] = -1;
+      }
+    }
+  }
+
+  @Override
+  public void intersectTriangle(float[] positions, int a, int b, int c,
+                                int triangle, RayPacket packet) {
+    float ax = positions[a], ay = positions[a + 1], az = positions[a + 2];
+    float e1x = positions[b] - ax;
+    float e1y = positions[b + 1] - ay;
+    float e1z = positions[b + 2] - az;
+    float e2x = positions[c] - ax;
+    float e2y = positions[c + 1] - ay;
+    float e2z = positions[c + 2] - az;
+
+    for (int i = 0; i < packet.size; i++) {
+      float dx = packet.dx[i], dy = packet.dy[i], dz = packet.dz[i];
+      float px = dy * e2z - dz * e2y;
+      float py = dz * e2x - dx * e2z;
+      float pz = dx * e2y - dy * e2x;
+      float det = e1x * px + e1y * py + e1z * pz;
+      float invDet = 1.0f / det;
+
+      float sx = packet.ox[i] - ax;
+      float sy = packet.oy[i] - ay;
+      float sz = packet.oz[i] - az;
+      float u = (sx * px + sy * py + sz * pz) * invDet;
+
+      float qx = sy * e1z - sz * e1y;
+      float qy = sz * e1x - sx * e1z;
+      float qz = sx * e1y - sy * e1x;
+      float v = (dx * qx + dy * qy + dz * qz) * invDet;
+      float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+
+      if ((Math.abs(det) >= EPSILON) && (u >= 0) && (u <= 1) && (v >= 0)
+              && (u + v <= 1) && (t > 0) && (t < packet.t[i])) {
+        packet.t[i] = t;
+        packet.primitive[i] = triangle;
+        packet.u[i] = u;
+        packet.v[i] = v;
+      }
+    }
+  }
+}
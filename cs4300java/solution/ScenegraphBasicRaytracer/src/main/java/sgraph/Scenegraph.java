@@ -34,6 +34,15 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
 
   protected Map<String, String> textures;
 
+  /**
+   * The names of the meshes and textures, by handle, and their handles by
+   * name
+   */
+  protected List<String> meshNames;
+  protected List<String> textureNames;
+  protected Map<String, Integer> meshHandles;
+  protected Map<String, Integer> textureHandles;
+
   /**
    * The associated renderer for this scene graph. This must be set before
    * attempting to render the scene graph
@@ -46,6 +55,10 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
     meshes = new HashMap<String, util.PolygonMesh<VertexType>>();
     nodes = new HashMap<String, INode>();
     textures = new HashMap<String, String>();
+    meshNames = new ArrayList<String>();
+    textureNames = new ArrayList<String>();
+    meshHandles = new HashMap<String, Integer>();
+    textureHandles = new HashMap<String, Integer>();
   }
 
   public void dispose() {
@@ -74,6 +87,8 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
       renderer.addTexture(entry.getKey(), entry.getValue());
     }
 
+    renderer.setHandles(new ArrayList<String>(meshNames),
+            new ArrayList<String>(textureNames));
   }
 
 
@@ -104,6 +119,10 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
   @Override
   public void addPolygonMesh(String name, util.PolygonMesh<VertexType> mesh) {
     meshes.put(name, mesh);
+    if (!meshHandles.containsKey(name)) {
+      meshHandles.put(name, meshNames.size());
+      meshNames.add(name);
+    }
   }
 
 
@@ -139,6 +158,22 @@ public class Scenegraph<VertexType extends IVertexData> implements IScenegraph<V
   @Override
   public void addTexture(String name, String path) {
     textures.put(name, path);
+    if (!textureHandles.containsKey(name)) {
+      textureHandles.put(name, textureNames.size());
+      textureNames.add(name);
+    }
+  }
+
+  @Override
+  public int getMeshHandle(String name) {
+    Integer handle = meshHandles.get(name);
+    return (handle != null) ? handle : -1;
+  }
+
+  @Override
+  public int getTextureHandle(String name) {
+    Integer handle = textureHandles.get(name);
+    return (handle != null) ? handle : -1;
   }
 
 
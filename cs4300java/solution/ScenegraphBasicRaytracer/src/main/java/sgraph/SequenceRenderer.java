@@ -0,0 +1,233 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+
+import java.util.Stack;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Ray traces an animation: a sequence of frames over a range of time, each
+ * written to its own numbered image.
+ *
+ * The work of a frame is split into three stages that run at the same time on
+ * different frames. While frame N is traced (on the threads of the renderer),
+ * the scene graph is animated to the time of frame N+1 and compiled on one
+ * thread, and frame N-1 is encoded and written on another. The stages hand
+ * frames to each other through queues that hold only a few frames, so a stage
+ * that runs ahead waits instead of filling the memory.
+ *
+ * What changes from frame to frame is up to the caller, which passes an
+ * {@link Animation} that updates the scene graph to the time of a frame, for
+ * example by setting the animation transforms of its nodes. Without one,
+ * frames are animated by {@link IScenegraph#animate(float)}, which does
+ * nothing in {@link Scenegraph}: every frame is then the same still, unless
+ * the scene graph overrides it.
+ *
+ * Animating must only change what is read when the scene graph is compiled:
+ * transformations and lights. The materials of leaves are shared by the frames
+ * being traced, so they must not change during a sequence.
+ */
+public class SequenceRenderer {
+  private final IScenegraph<?> scenegraph;
+  private final RTScenegraphRenderer renderer;
+  private int queueCapacity;
+
+  /**
+   * Updates the scene graph to how it is at a time of the animation. It is
+   * called on the thread that compiles the frames, one frame after the other.
+   */
+  public interface Animation {
+    void animate(float time);
+  }
+
+  /**
+   * Create a sequence renderer for a scene graph whose renderer is the given
+   * ray tracer. Its settings decide the size and format of the images.
+   */
+  public SequenceRenderer(IScenegraph<?> scenegraph,
+                          RTScenegraphRenderer renderer) {
+    this.scenegraph = scenegraph;
+    this.renderer = renderer;
+    queueCapacity = 2;
+  }
+
+  /**
+   * Set how many frames may wait between two stages
+   */
+  public void setQueueCapacity(int frames) {
+    if (frames <= 0)
+      throw new IllegalArgumentException("Queue capacity must be positive");
+    this.queueCapacity = frames;
+  }
+
+  /**
+   * Render frames of the animation of the scene graph itself over
+   * [startTime,endTime), as animated by {@link IScenegraph#animate(float)}
+   *
+   * @see #render(float, float, int, Animation, Stack, String)
+   */
+  public void render(float startTime, float endTime, int frames,
+                     Stack<Matrix4f> modelView, String output)
+          throws InterruptedException {
+    render(startTime, endTime, frames, scenegraph::animate, modelView, output);
+  }
+
+  /**
+   * Render frames of an animation over [startTime,endTime). Frame k is the
+   * scene graph animated to startTime + k * (endTime - startTime) / frames.
+   *
+   * @param animation updates the scene graph before every frame is compiled
+   * @param modelView a stack whose top is the world-to-view transformation,
+   *                  used for every frame
+   * @param output    the path of every image, as a format string for the
+   *                  frame number, e.g. "output/frame%04d.png"
+   * @throws IllegalStateException if a stage fails; no more frames are
+   *                               rendered after that
+   */
+  public void render(float startTime, float endTime, int frames,
+                     Animation animation, Stack<Matrix4f> modelView,
+                     String output)
+          throws InterruptedException {
+    if (frames <= 0)
+      throw new IllegalArgumentException("There must be at least one frame");
+    RenderSettings settings = renderer.getRenderSettings();
+    int width = settings.getWidth();
+    int height = settings.getHeight();
+    RenderSettings.Format format = settings.getFormat();
+
+    BlockingQueue<Frame> compiled = new ArrayBlockingQueue<Frame>(queueCapacity);
+    BlockingQueue<Frame> traced = new ArrayBlockingQueue<Frame>(queueCapacity);
+    //the images waiting to be encoded, or being encoded, are recycled
+    BlockingQueue<int[]> images = new ArrayBlockingQueue<int[]>(queueCapacity + 1);
+    for (int i = 0; i <= queueCapacity; i++)
+      images.add(new int[width * height]);
+    Failure failure = new Failure();
+
+    Stack<Matrix4f> camera = new Stack<Matrix4f>();
+    camera.push(new Matrix4f(modelView.peek()));
+
+    Thread animator = new Thread(() -> {
+      try {
+        for (int k = 0; k < frames; k++) {
+          animation.animate(startTime + k * (endTime - startTime) / frames);
+          INode root = scenegraph.getRoot();
+          Frame frame = new Frame(k);
+          frame.lights = new LightTable(root.getLightsInView(camera));
+          frame.scene = renderer.compileScene(root, camera);
+          compiled.put(frame);
+        }
+        compiled.put(Frame.END);
+      } catch (InterruptedException e) {
+        //another stage failed
+      } catch (RuntimeException e) {
+        failure.set(e);
+      }
+    }, "sequence animator");
+
+    Thread encoder = new Thread(() -> {
+      try {
+        while (true) {
+          Frame frame = traced.take();
+          if (frame == Frame.END)
+            return;
+          RTScenegraphRenderer.writeImage(frame.image, width, height, format,
+                  String.format(output, frame.number));
+          images.put(frame.image);
+        }
+      } catch (InterruptedException e) {
+        //another stage failed
+      } catch (RuntimeException e) {
+        failure.set(e);
+      }
+    }, "sequence encoder");
+
+    failure.stages = new Thread[]{animator, encoder};
+    failure.caller = Thread.currentThread();
+    animator.start();
+    encoder.start();
+    try {
+      while (true) {
+        Frame frame = compiled.take();
+        if (frame == Frame.END) {
+          traced.put(frame);
+          break;
+        }
+        renderer.drawCompiled(frame.scene, frame.lights, null, null);
+        frame.scene = null;
+        frame.lights = null;
+        frame.image = images.take();
+        System.arraycopy(renderer.getFramebuffer(), 0, frame.image, 0,
+                width * height);
+        traced.put(frame);
+      }
+      encoder.join();
+    } catch (InterruptedException e) {
+      if (failure.cause == null)
+        throw e;
+    } catch (RuntimeException e) {
+      failure.set(e);
+    } finally {
+      //from here a failure must not interrupt the joins
+      failure.release();
+      animator.interrupt();
+      encoder.interrupt();
+      animator.join();
+      encoder.join();
+    }
+    if (failure.cause != null)
+      throw new IllegalStateException("Rendering the sequence failed: "
+              + failure.cause.getMessage(), failure.cause);
+  }
+
+  /**
+   * A frame on its way through the stages
+   */
+  private static class Frame {
+    /**
+     * Follows the last frame
+     */
+    static final Frame END = new Frame(-1);
+
+    final int number;
+    RTScene scene;
+    LightTable lights;
+    int[] image;
+
+    Frame(int number) {
+      this.number = number;
+    }
+  }
+
+  /**
+   * The first failure of any stage, which stops the others. The calling
+   * thread is interrupted only to wake it from waiting on a queue, until it
+   * has stopped tracing and is released.
+   */
+  private static class Failure {
+    Thread[] stages;
+    Thread caller;
+    volatile RuntimeException cause;
+    private boolean released;
+
+    synchronized void set(RuntimeException e) {
+      if (cause == null) {
+        cause = e;
+        for (Thread stage : stages)
+          stage.interrupt();
+        if (!released && (caller != Thread.currentThread()))
+          caller.interrupt();
+      }
+    }
+
+    /**
+     * Stop interrupting the calling thread, and clear the interrupt a failure
+     * may have left it. Must be called by the calling thread.
+     */
+    synchronized void release() {
+      released = true;
+      if (cause != null)
+        Thread.interrupted();
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package sgraph;
+
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+/**
+ * The sphere of radius 1 at the origin
+ */
+class Sphere extends AnalyticPrimitive {
+  private final PacketKernel kernel = PacketKernel.get();
+
+  Sphere() {
+    super(RayCounters.SPHERE);
+  }
+
+  @Override
+  public boolean getBounds(Vector4f minBounds, Vector4f maxBounds) {
+    minBounds.set(-1, -1, -1, 1);
+    maxBounds.set(1, 1, 1, 1);
+    return true;
+  }
+
+  @Override
+  float hitTime(float ox, float oy, float oz, float dx, float dy, float dz,
+                float tMax, HitRecord hitRecord) {
+    float a = dx * dx + dy * dy + dz * dz;
+    float b = 2 * (ox * dx + oy * dy + oz * dz);
+    float c = ox * ox + oy * oy + oz * oz - 1;
+    float disc = b * b - 4 * a * c;
+    if (disc < 0)
+      return Float.POSITIVE_INFINITY;
+
+    float root = (float) Math.sqrt(disc);
+    float t1 = (-b + root) / (2 * a);
+    float t2 = (-b - root) / (2 * a);
+    float t = (t2 >= 0) ? Math.min(t1, t2) : t1;
+    if ((t >= 0) && (t < tMax)) {
+      if (hitRecord != null)
+        hitRecord.primitive = -1;
+      return t;
+    }
+    return Float.POSITIVE_INFINITY;
+  }
+
+  @Override
+  void normal(int part, float x, float y, float z, Vector4f normal) {
+    normal.set(x, y, z, 0);
+  }
+
+  /**
+   * Projects the point onto the sphere first
+   */
+  @Override
+  void texcoord(int part, float x, float y, float z, Vector2f texcoord) {
+    float length = (float) Math.sqrt(x * x + y * y + z * z);
+    texcoord.set(around(x / length, z / length),
+            (float) ((Math.PI / 2 + (float) Math.asin(y / length)) / Math.PI));
+  }
+
+  @Override
+  void hitTimes(RayPacket packet) {
+    kernel.intersectSphere(packet);
+  }
+}
@@ -0,0 +1,197 @@
+package sgraph;
+
+import org.joml.Vector4f;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * A texture prepared for sampling by the ray tracer. The image is converted
+ * once into packed RGBA texels (0xAARRGGBB, one int each, rows from the top)
+ * and a chain of mipmaps, each half the size of the one before, down to a
+ * single texel. Lookups read these arrays directly, so sampling allocates
+ * nothing.
+ *
+ * Texture coordinates repeat outside [0,1], and (0,0) is the top-left corner
+ * of the image.
+ */
+public class TextureSampler {
+  private final int[][] levels;
+  private final int[] widths;
+  private final int[] heights;
+
+  /**
+   * Prepare the given image for sampling, building its mipmaps
+   */
+  public TextureSampler(BufferedImage image) {
+    int count = 1;
+    for (int w = image.getWidth(), h = image.getHeight(); (w > 1) || (h > 1);
+         w = Math.max(w / 2, 1), h = Math.max(h / 2, 1))
+      count++;
+
+    levels = new int[count][];
+    widths = new int[count];
+    heights = new int[count];
+
+    widths[0] = image.getWidth();
+    heights[0] = image.getHeight();
+    levels[0] = image.getRGB(0, 0, widths[0], heights[0], null, 0, widths[0]);
+    for (int l = 1; l < count; l++) {
+      widths[l] = Math.max(widths[l - 1] / 2, 1);
+      heights[l] = Math.max(heights[l - 1] / 2, 1);
+      levels[l] = downsample(levels[l - 1], widths[l - 1], heights[l - 1],
+              widths[l], heights[l]);
+    }
+  }
+
+  /**
+   * Read an image from the class path and prepare it for sampling
+   *
+   * @throws IOException if the image cannot be found or read
+   */
+  public static TextureSampler load(String path) throws IOException {
+    InputStream in = TextureSampler.class.getClassLoader().getResourceAsStream(path);
+    if (in == null)
+      throw new IOException("Texture " + path + " not found");
+    try {
+      BufferedImage image = ImageIO.read(in);
+      if (image == null)
+        throw new IOException("Texture " + path + " is not a readable image");
+      return new TextureSampler(image);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The width of the full-size image, in texels
+   */
+  public int getWidth() {
+    return widths[0];
+  }
+
+  /**
+   * The height of the full-size image, in texels
+   */
+  public int getHeight() {
+    return heights[0];
+  }
+
+  /**
+   * The number of mipmap levels, including the full-size image
+   */
+  public int getLevelCount() {
+    return levels.length;
+  }
+
+  /**
+   * Sample the texture with trilinear filtering: the two mipmap levels around
+   * the given (fractional) level are sampled bilinearly, and the results are
+   * blended. Level 0 is the full-size image, and levels outside the chain are
+   * clamped to it.
+   *
+   * @param s     the horizontal texture coordinate
+   * @param t     the vertical texture coordinate, from the top of the image
+   * @param level the mipmap level
+   * @param dest  set to the color, with components in [0,1]
+   * @return dest
+   */
+  public Vector4f sample(float s, float t, float level, Vector4f dest) {
+    if (!(level > 0))
+      return sampleLevel(s, t, 0, dest);
+    int last = levels.length - 1;
+    if (level >= last)
+      return sampleLevel(s, t, last, dest);
+
+    int l = (int) level;
+    float f = level - l;
+    sampleLevel(s, t, l, dest);
+    if (f == 0)
+      return dest;
+    float r = dest.x, g = dest.y, b = dest.z, a = dest.w;
+    sampleLevel(s, t, l + 1, dest);
+    return dest.set(r + f * (dest.x - r), g + f * (dest.y - g),
+            b + f * (dest.z - b), a + f * (dest.w - a));
+  }
+
+  /**
+   * Sample one mipmap level with bilinear filtering between the four texels
+   * around the given point
+   *
+   * @return dest
+   */
+  public Vector4f sampleLevel(float s, float t, int level, Vector4f dest) {
+    if ((level < 0) || (level >= levels.length))
+      throw new IllegalArgumentException("No mipmap level " + level);
+    int[] texels = levels[level];
+    int w = widths[level];
+    int h = heights[level];
+
+    //texel centers are at half-integer coordinates
+    float x = (s - (float) Math.floor(s)) * w - 0.5f;
+    float y = (t - (float) Math.floor(t)) * h - 0.5f;
+    int x0 = (int) Math.floor(x);
+    int y0 = (int) Math.floor(y);
+    float fx = x - x0;
+    float fy = y - y0;
+    int x1 = wrap(x0 + 1, w);
+    int y1 = wrap(y0 + 1, h);
+    x0 = wrap(x0, w);
+    y0 = wrap(y0, h);
+
+    int c00 = texels[y0 * w + x0];
+    int c10 = texels[y0 * w + x1];
+    int c01 = texels[y1 * w + x0];
+    int c11 = texels[y1 * w + x1];
+    float w00 = (1 - fx) * (1 - fy);
+    float w10 = fx * (1 - fy);
+    float w01 = (1 - fx) * fy;
+    float w11 = fx * fy;
+
+    return dest.set(blend(c00, c10, c01, c11, w00, w10, w01, w11, 16),
+            blend(c00, c10, c01, c11, w00, w10, w01, w11, 8),
+            blend(c00, c10, c01, c11, w00, w10, w01, w11, 0),
+            blend(c00, c10, c01, c11, w00, w10, w01, w11, 24));
+  }
+
+  private static float blend(int c00, int c10, int c01, int c11,
+                             float w00, float w10, float w01, float w11,
+                             int shift) {
+    return (w00 * ((c00 >> shift) & 0xff) + w10 * ((c10 >> shift) & 0xff)
+            + w01 * ((c01 >> shift) & 0xff) + w11 * ((c11 >> shift) & 0xff))
+            * (1.0f / 255);
+  }
+
+  private static int wrap(int i, int n) {
+    i %= n;
+    return (i < 0) ? i + n : i;
+  }
+
+  /**
+   * Halve an image by averaging every 2x2 block of texels. In a dimension of
+   * odd size, the last texel is averaged with itself.
+   */
+  private static int[] downsample(int[] texels, int w, int h, int nw, int nh) {
+    int[] result = new int[nw * nh];
+    for (int y = 0; y < nh; y++) {
+      int ya = Math.min(2 * y, h - 1) * w;
+      int yb = Math.min(2 * y + 1, h - 1) * w;
+      for (int x = 0; x < nw; x++) {
+        int xa = Math.min(2 * x, w - 1);
+        int xb = Math.min(2 * x + 1, w - 1);
+        int c00 = texels[ya + xa], c10 = texels[ya + xb];
+        int c01 = texels[yb + xa], c11 = texels[yb + xb];
+        int texel = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+          int sum = ((c00 >>> shift) & 0xff) + ((c10 >>> shift) & 0xff)
+                  + ((c01 >>> shift) & 0xff) + ((c11 >>> shift) & 0xff);
+          texel |= ((sum + 2) >> 2) << shift;
+        }
+        result[y * nw + x] = texel;
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,244 @@
+package sgraph;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One pass over the square tiles of an image. The tiles are handed out along
+ * a space-filling curve, so that tiles rendered one after the other are
+ * close together on the screen and touch much the same part of the scene.
+ *
+ * On a fork-join pool the curve is split in halves, recursively, down to
+ * single tiles: every thread works through a run of neighbouring tiles, and a
+ * thread that runs out steals the largest run left to another one, which
+ * balances the load when some tiles are much more expensive than others. On
+ * any other executor, every tile is submitted on its own, in curve order.
+ *
+ * The tiles of each band of rows are counted as they finish, so that the
+ * band can be encoded as soon as its last tile is done, wherever that tile
+ * is on the curve. A tile that fails does not stop the others from being
+ * counted; its failure is kept, and the tiles that have not started yet are
+ * skipped. The skipped tiles are still counted, which is how stopping a pass
+ * waits for the tiles that had started.
+ */
+class TilePass {
+  /**
+   * Renders the pixels in columns [x0,x1) and rows [y0,y1) of the image
+   */
+  interface Renderer {
+    void render(int x0, int y0, int x1, int y1) throws Exception;
+  }
+
+  private final int width;
+  private final int height;
+  private final int tileSize;
+  private final int tilesX;
+  private final int[] order;
+  private final Renderer renderer;
+  private final CountDownLatch[] bands;
+  private final AtomicReference<Throwable> failure;
+  private volatile boolean stopped;
+
+  TilePass(int width, int height, int tileSize,
+           RenderSettings.TileOrder tileOrder, Renderer renderer) {
+    this.width = width;
+    this.height = height;
+    this.tileSize = tileSize;
+    this.renderer = renderer;
+    tilesX = (width + tileSize - 1) / tileSize;
+    int tilesY = (height + tileSize - 1) / tileSize;
+    order = order(tilesX, tilesY, tileOrder);
+    bands = new CountDownLatch[tilesY];
+    for (int b = 0; b < tilesY; b++)
+      bands[b] = new CountDownLatch(tilesX);
+    failure = new AtomicReference<Throwable>();
+    stopped = false;
+  }
+
+  int getBandCount() {
+    return bands.length;
+  }
+
+  /**
+   * Render every tile on the calling thread, in order
+   */
+  void run() {
+    for (int tile : order)
+      render(tile);
+  }
+
+  /**
+   * Hand the tiles out to the threads of an executor, and return without
+   * waiting for them
+   */
+  void start(ExecutorService executor) {
+    if (executor instanceof ForkJoinPool)
+      ((ForkJoinPool) executor).execute(new Run(0, order.length));
+    else {
+      for (int tile : order)
+        executor.execute(() -> render(tile));
+    }
+  }
+
+  /**
+   * Wait until every tile of a band of rows is done (or skipped)
+   */
+  void awaitBand(int band) throws InterruptedException {
+    bands[band].await();
+  }
+
+  /**
+   * Whether every tile of a band of rows is done (or skipped)
+   */
+  boolean isBandDone(int band) {
+    return bands[band].getCount() == 0;
+  }
+
+  /**
+   * Skip the tiles that have not started yet, and wait for the ones that
+   * have to finish, so that none of them draws into the image after this
+   * returns. An interrupt does not cut the wait short, but is kept for the
+   * caller.
+   */
+  void stop() {
+    stopped = true;
+    boolean interrupted = false;
+    for (CountDownLatch band : bands) {
+      while (true) {
+        try {
+          band.await();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /**
+   * The first failure of a tile, or null if none has failed
+   */
+  Throwable getFailure() {
+    return failure.get();
+  }
+
+  private void render(int tile) {
+    int x0 = (tile % tilesX) * tileSize;
+    int y0 = (tile / tilesX) * tileSize;
+    try {
+      if ((!stopped) && (failure.get() == null))
+        renderer.render(x0, y0, Math.min(x0 + tileSize, width),
+                Math.min(y0 + tileSize, height));
+    } catch (Throwable e) {
+      failure.compareAndSet(null, e);
+    } finally {
+      bands[tile / tilesX].countDown();
+    }
+  }
+
+  /**
+   * Renders the tiles in [from,to) of the curve, splitting them in halves
+   * for other threads to steal
+   */
+  private class Run extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int from;
+    private final int to;
+
+    Run(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1)
+        render(order[from]);
+      else if (to > from) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new Run(from, middle), new Run(middle, to));
+      }
+    }
+  }
+
+  /**
+   * The tiles of a grid, as indices row by row, in the given order
+   */
+  static int[] order(int tilesX, int tilesY, RenderSettings.TileOrder tileOrder) {
+    int count = tilesX * tilesY;
+    //the position of every tile on the curve, with the tile in the low bits
+    long[] keys = new long[count];
+    int side = Integer.highestOneBit(Math.max(Math.max(tilesX, tilesY), 1));
+    if (side < Math.max(tilesX, tilesY))
+      side <<= 1;
+    for (int tile = 0; tile < count; tile++) {
+      int x = tile % tilesX;
+      int y = tile / tilesX;
+      long position;
+      switch (tileOrder) {
+        case MORTON:
+          position = morton(x, y);
+          break;
+        case HILBERT:
+          position = hilbert(side, x, y);
+          break;
+        default:
+          position = tile;
+      }
+      keys[tile] = (position << 32) | tile;
+    }
+    Arrays.sort(keys);
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++)
+      order[i] = (int) keys[i];
+    return order;
+  }
+
+  /**
+   * The position of (x,y) on the Morton curve: the bits of x and y
+   * interleaved
+   */
+  private static long morton(int x, int y) {
+    return spread(x) | (spread(y) << 1);
+  }
+
+  private static long spread(int v) {
+    long x = v & 0xffffffffL;
+    x = (x | (x << 16)) & 0x0000ffff0000ffffL;
+    x = (x | (x << 8)) & 0x00ff00ff00ff00ffL;
+    x = (x | (x << 4)) & 0x0f0f0f0f0f0f0f0fL;
+    x = (x | (x << 2)) & 0x3333333333333333L;
+    x = (x | (x << 1)) & 0x5555555555555555L;
+    return x;
+  }
+
+  /**
+   * The position of (x,y) on the Hilbert curve that fills a square of the
+   * given side, which is a power of 2
+   */
+  private static long hilbert(int side, int x, int y) {
+    long position = 0;
+    for (int s = side / 2; s > 0; s /= 2) {
+      int rx = ((x & s) > 0) ? 1 : 0;
+      int ry = ((y & s) > 0) ? 1 : 0;
+      position += (long) s * s * ((3 * rx) ^ ry);
+      //rotate the quadrant so that the curve inside it joins up
+      if (ry == 0) {
+        if (rx == 1) {
+          x = side - 1 - x;
+          y = side - 1 - y;
+        }
+        int swap = x;
+        x = y;
+        y = swap;
+      }
+    }
+    return position;
+  }
+}
@@ -9,6 +9,7 @@ import util.Light;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This node represents a transformation in the scene graph. It has only one
@@ -16,6 +17,12 @@ import java.util.Stack;
  * coordinate system to its parent's coordinate system This also stores an
  * animation transform that can be tweaked at runtime
  *
+ * Every change to either transformation marks this node as dirty, by stamping
+ * it with a number from a counter shared by all transform nodes. A compiled
+ * copy of the scene that remembers the counter when it was made can tell
+ * which leaves have moved since, without the flags ever being cleared. The
+ * transformations must therefore only be changed through the setters.
+ *
  * @author Amit Shesh
  */
 public class TransformNode extends AbstractNode {
@@ -25,6 +32,16 @@ public class TransformNode extends AbstractNode {
    */
   protected Matrix4f transform, animation_transform;
 
+  /**
+   * The counter that dirty stamps are taken from
+   */
+  private static final AtomicLong CHANGES = new AtomicLong();
+
+  /**
+   * The stamp of the last change to the transformations of this node
+   */
+  private long changed;
+
   /**
    * A reference to its only child
    */
@@ -35,6 +52,15 @@ public class TransformNode extends AbstractNode {
     this.transform = new Matrix4f();
     animation_transform = new Matrix4f();
     child = null;
+    changed = CHANGES.incrementAndGet();
+  }
+
+  /**
+   * The stamp of the latest change to any transform node. Every change after
+   * this call gets a larger stamp.
+   */
+  public static long lastChange() {
+    return CHANGES.get();
   }
 
   /**
@@ -138,6 +164,7 @@ public class TransformNode extends AbstractNode {
    */
   public void setAnimationTransform(Matrix4f mat) {
     animation_transform = new Matrix4f(mat);
+    changed = CHANGES.incrementAndGet();
   }
 
   /**
@@ -153,6 +180,7 @@ public class TransformNode extends AbstractNode {
   @Override
   public void setTransform(Matrix4f t) throws IllegalArgumentException {
     this.transform = new Matrix4f(t);
+    changed = CHANGES.incrementAndGet();
   }
 
   /**
@@ -200,4 +228,28 @@ public class TransformNode extends AbstractNode {
     lights.addAll(super.getLightsInView(modelview));
     return lights;
   }
+
+  /**
+   * Overridden version from @link{AbstractNode}. This version modifies the
+   * modelview matrix to include its transformation and animation
+   * transformation, and then collects all the leaves from its child. The
+   * leaves are stamped with the last change to this node, if that is later
+   * than the last change to the nodes between them and this one.
+   */
+  @Override
+  public List<LeafInstance> getLeavesInView(Stack<Matrix4f> modelview) {
+    List<LeafInstance> leaves;
+
+    modelview.push(new Matrix4f(modelview.peek()));
+    modelview.peek().mul(animation_transform)
+            .mul(transform);
+    if (child != null)
+      leaves = child.getLeavesInView(modelview);
+    else
+      leaves = new ArrayList<LeafInstance>();
+    modelview.pop();
+    for (LeafInstance leaf : leaves)
+      leaf.changed = Math.max(leaf.changed, changed);
+    return leaves;
+  }
 }
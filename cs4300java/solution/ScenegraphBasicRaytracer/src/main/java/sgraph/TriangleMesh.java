@@ -0,0 +1,356 @@
+package sgraph;
+
+import org.joml.Matrix4f;
+import org.joml.Vector2f;
+import org.joml.Vector4f;
+
+import java.util.List;
+
+import util.IVertexData;
+import util.PolygonMesh;
+
+/**
+ * A triangle mesh prepared for ray tracing. The positions, normals and
+ * texture coordinates of a {@link util.PolygonMesh} are copied into flat
+ * arrays, and a {@link BVH} is built over its triangles. This is done once,
+ * when the mesh is added to the ray tracer, and the result is shared by every
+ * leaf that refers to the mesh.
+ *
+ * Rays are intersected with the triangles in the coordinate system of the
+ * mesh. The part of a mesh that a hit records is the triangle that was hit.
+ */
+public class TriangleMesh implements IPrimitive {
+  /**
+   * Triangles with a determinant smaller than this are parallel to the ray
+   */
+  private static final float EPSILON = 1e-9f;
+
+  private float[] positions;
+  private float[] normals;
+  private float[] texcoords;
+  private int[] triangles;
+  private float[] bounds;
+  private BVH bvh;
+  private final BVH.Visitor triangleIntersector;
+  private final BVH.AnyHitVisitor triangleOccluder;
+  private final PacketKernel kernel;
+  private final BVH.PacketVisitor trianglePacketIntersector;
+
+  /**
+   * Prepare the given mesh for ray tracing. The mesh must have "position" data,
+   * and may have "normal" and "texcoord" data. Polygons with more than 3
+   * vertices are broken into triangle fans.
+   */
+  public <K extends IVertexData> TriangleMesh(PolygonMesh<K> mesh) {
+    List<K> vertexData = mesh.getVertexAttributes();
+    List<Integer> primitives = mesh.getPrimitives();
+    int n = vertexData.size();
+
+    positions = new float[3 * n];
+    boolean hasNormals = (n > 0) && vertexData.get(0).hasData("normal");
+    boolean hasTexcoords = (n > 0) && vertexData.get(0).hasData("texcoord");
+    normals = hasNormals ? new float[3 * n] : null;
+    texcoords = hasTexcoords ? new float[2 * n] : null;
+
+    for (int i = 0; i < n; i++) {
+      float[] data = vertexData.get(i).getData("position");
+      for (int k = 0; k < 3; k++)
+        positions[3 * i + k] = (k < data.length) ? data[k] : 0;
+      if (hasNormals) {
+        data = vertexData.get(i).getData("normal");
+        for (int k = 0; k < 3; k++)
+          normals[3 * i + k] = (k < data.length) ? data[k] : 0;
+      }
+      if (hasTexcoords) {
+        data = vertexData.get(i).getData("texcoord");
+        for (int k = 0; k < 2; k++)
+          texcoords[2 * i + k] = (k < data.length) ? data[k] : 0;
+      }
+    }
+
+    int size = mesh.getPrimitiveSize();
+    if (size < 3)
+      size = 3;
+    int polygons = primitives.size() / size;
+    triangles = new int[3 * polygons * (size - 2)];
+    int t = 0;
+    for (int p = 0; p < polygons; p++) {
+      for (int k = 2; k < size; k++) {
+        triangles[t++] = primitives.get(p * size);
+        triangles[t++] = primitives.get(p * size + k - 1);
+        triangles[t++] = primitives.get(p * size + k);
+      }
+    }
+
+    int count = triangles.length / 3;
+    float[] triangleBounds = new float[6 * count];
+    for (int i = 0; i < count; i++) {
+      int o = 6 * i;
+      for (int k = 0; k < 3; k++) {
+        float a = positions[3 * triangles[3 * i] + k];
+        float b = positions[3 * triangles[3 * i + 1] + k];
+        float c = positions[3 * triangles[3 * i + 2] + k];
+        triangleBounds[o + k] = Math.min(a, Math.min(b, c));
+        triangleBounds[o + 3 + k] = Math.max(a, Math.max(b, c));
+      }
+    }
+    bvh = new BVH(triangleBounds, count);
+    bounds = new float[6];
+    if (!bvh.getBounds(bounds))
+      bounds = null;
+
+    triangleIntersector = (tri, ray, hitRecord) ->
+            intersectTriangle(tri, ray, hitRecord.time, hitRecord);
+    triangleOccluder = (tri, ray, tMax) ->
+            intersectTriangle(tri, ray, tMax, null);
+    kernel = PacketKernel.get();
+    trianglePacketIntersector = (tri, packet) -> kernel.intersectTriangle(
+            positions, 3 * triangles[3 * tri], 3 * triangles[3 * tri + 1],
+            3 * triangles[3 * tri + 2], tri, packet);
+  }
+
+  /**
+   * The number of triangles in this mesh
+   */
+  public int getTriangleCount() {
+    return triangles.length / 3;
+  }
+
+  /**
+   * Get the bounding box of this mesh in its own coordinate system. Returns
+   * false if the mesh has no triangles.
+   */
+  @Override
+  public boolean getBounds(Vector4f minBounds, Vector4f maxBounds) {
+    if (bounds == null)
+      return false;
+    minBounds.set(bounds[0], bounds[1], bounds[2], 1);
+    maxBounds.set(bounds[3], bounds[4], bounds[5], 1);
+    return true;
+  }
+
+  /**
+   * Intersect a ray with this mesh, when the ray has already been transformed
+   * into the coordinate system of the mesh. This follows the same contract
+   * as {@link IPrimitive#intersect(Ray, Ray, Matrix4f, HitRecord, int[],
+   * RayCounters)}.
+   *
+   * @param stack    a traversal stack from {@link BVH#newStack()} owned by the
+   *                 calling thread
+   * @param counters the counters of the calling thread, which count every
+   *                 triangle tested
+   * @return true if the hit record was updated, false otherwise
+   */
+  @Override
+  public boolean intersect(Ray rayView, Ray rayObject, Matrix4f normalMatrix,
+                           HitRecord hitRecord, int[] stack,
+                           RayCounters counters) {
+    float closest = hitRecord.time;
+    bvh.intersect(rayObject, hitRecord, triangleIntersector, stack, counters,
+            RayCounters.TRIANGLE);
+    if (hitRecord.time >= closest)
+      return false;
+
+    //fill in the rest of the hit record only for the closest triangle
+    completeHit(rayView, normalMatrix, hitRecord);
+    return true;
+  }
+
+  /**
+   * Find whether a ray, already transformed into the coordinate system of
+   * this mesh, hits any of its triangles at a parameter in (0,tMax)
+   *
+   * @param stack    a traversal stack from {@link BVH#newStack()} owned by the
+   *                 calling thread
+   * @param counters the counters of the calling thread
+   */
+  @Override
+  public boolean intersectsAny(Ray rayObject, float tMax, int[] stack,
+                               RayCounters counters) {
+    return bvh.intersectAny(rayObject, tMax, triangleOccluder, stack, counters,
+            RayCounters.TRIANGLE);
+  }
+
+  /**
+   * Intersect every ray of a packet with this mesh, when the rays have already
+   * been transformed into the coordinate system of the mesh. This only finds
+   * the closest triangle of every ray and the barycentric coordinates of its
+   * hit; {@link #completeHit(Ray, Matrix4f, HitRecord)} fills in the rest
+   * later, for the rays that end up hitting this mesh.
+   *
+   * @param stack    a traversal stack from {@link BVH#newStack()} owned by the
+   *                 calling thread
+   * @param counters the counters of the calling thread
+   */
+  @Override
+  public void intersect(RayPacket packet, int[] stack, RayCounters counters) {
+    bvh.intersect(packet, trianglePacketIntersector, kernel, stack, counters,
+            RayCounters.TRIANGLE);
+  }
+
+  /**
+   * Fill in the point, normal and texture coordinates of a hit record, from
+   * the parameter, triangle and barycentric coordinates already in it
+   *
+   * @param rayView      the ray in the view coordinate system
+   * @param normalMatrix the transformation of normals from this mesh to the
+   *                     view coordinate system
+   */
+  public void completeHit(Ray rayView, Matrix4f normalMatrix,
+                          HitRecord hitRecord) {
+    float t = hitRecord.time;
+    int tri = hitRecord.primitive;
+    float u = hitRecord.u;
+    float v = hitRecord.v;
+    float w = 1 - u - v;
+    int a = triangles[3 * tri];
+    int b = triangles[3 * tri + 1];
+    int c = triangles[3 * tri + 2];
+
+    hitRecord.point.set(rayView.start.x + t * rayView.direction.x,
+            rayView.start.y + t * rayView.direction.y,
+            rayView.start.z + t * rayView.direction.z,
+            1);
+
+    Vector4f normal = hitRecord.normal;
+    normal.set(0, 0, 0, 0);
+    if (normals != null) {
+      normal.x = w * normals[3 * a] + u * normals[3 * b] + v * normals[3 * c];
+      normal.y = w * normals[3 * a + 1] + u * normals[3 * b + 1] + v * normals[3 * c + 1];
+      normal.z = w * normals[3 * a + 2] + u * normals[3 * b + 2] + v * normals[3 * c + 2];
+    }
+    if (!(normal.lengthSquared() >= EPSILON)) {
+      //no usable vertex normals (missing, zero, or NaN because a zero normal
+      //in the file was normalized): use the normal of the triangle itself
+      float e1x = positions[3 * b] - positions[3 * a];
+      float e1y = positions[3 * b + 1] - positions[3 * a + 1];
+      float e1z = positions[3 * b + 2] - positions[3 * a + 2];
+      float e2x = positions[3 * c] - positions[3 * a];
+      float e2y = positions[3 * c + 1] - positions[3 * a + 1];
+      float e2z = positions[3 * c + 2] - positions[3 * a + 2];
+      normal.set(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z,
+              e1x * e2y - e1y * e2x, 0);
+    }
+    normalMatrix.transform(normal);
+    normal.w = 0;
+    normal.normalize();
+
+    if (texcoords != null) {
+      hitRecord.texcoord.set(
+              w * texcoords[2 * a] + u * texcoords[2 * b] + v * texcoords[2 * c],
+              w * texcoords[2 * a + 1] + u * texcoords[2 * b + 1] + v * texcoords[2 * c + 1]);
+    } else {
+      hitRecord.texcoord.set(0, 0);
+    }
+  }
+
+  /**
+   * The texture coordinates near a hit on a triangle do not depend on where
+   * on the triangle the hit is
+   */
+  @Override
+  public void texcoordAt(int tri, Vector4f hitObject, Vector4f pointObject,
+                         Vector2f texcoord) {
+    texcoordAt(tri, pointObject, texcoord);
+  }
+
+  /**
+   * Find the texture coordinates of a point near a hit on a triangle, by
+   * projecting the point onto the plane of the triangle and interpolating the
+   * texture coordinates of its vertices there. The point is in the coordinate
+   * system of this mesh.
+   *
+   * @param texcoord set to the texture coordinates of the point
+   */
+  public void texcoordAt(int tri, Vector4f pointObject, Vector2f texcoord) {
+    if (texcoords == null) {
+      texcoord.set(0, 0);
+      return;
+    }
+    int a = triangles[3 * tri];
+    int b = triangles[3 * tri + 1];
+    int c = triangles[3 * tri + 2];
+
+    float e1x = positions[3 * b] - positions[3 * a];
+    float e1y = positions[3 * b + 1] - positions[3 * a + 1];
+    float e1z = positions[3 * b + 2] - positions[3 * a + 2];
+    float e2x = positions[3 * c] - positions[3 * a];
+    float e2y = positions[3 * c + 1] - positions[3 * a + 1];
+    float e2z = positions[3 * c + 2] - positions[3 * a + 2];
+    float px = pointObject.x - positions[3 * a];
+    float py = pointObject.y - positions[3 * a + 1];
+    float pz = pointObject.z - positions[3 * a + 2];
+
+    float d11 = e1x * e1x + e1y * e1y + e1z * e1z;
+    float d12 = e1x * e2x + e1y * e2y + e1z * e2z;
+    float d22 = e2x * e2x + e2y * e2y + e2z * e2z;
+    float dp1 = px * e1x + py * e1y + pz * e1z;
+    float dp2 = px * e2x + py * e2y + pz * e2z;
+    float det = d11 * d22 - d12 * d12;
+    if (Math.abs(det) < EPSILON) {
+      texcoord.set(texcoords[2 * a], texcoords[2 * a + 1]);
+      return;
+    }
+    float u = (d22 * dp1 - d12 * dp2) / det;
+    float v = (d11 * dp2 - d12 * dp1) / det;
+    float w = 1 - u - v;
+    texcoord.set(
+            w * texcoords[2 * a] + u * texcoords[2 * b] + v * texcoords[2 * c],
+            w * texcoords[2 * a + 1] + u * texcoords[2 * b + 1] + v * texcoords[2 * c + 1]);
+  }
+
+  /**
+   * The Moller-Trumbore ray-triangle test, for hits at a parameter in
+   * (0,tMax). Only records the parameter, the triangle and its barycentric
+   * coordinates in the hit record, if one is given.
+   *
+   * @return true if the ray hits the triangle
+   */
+  private boolean intersectTriangle(int tri, Ray ray, float tMax,
+                                    HitRecord hitRecord) {
+    int a = 3 * triangles[3 * tri];
+    int b = 3 * triangles[3 * tri + 1];
+    int c = 3 * triangles[3 * tri + 2];
+
+    float e1x = positions[b] - positions[a];
+    float e1y = positions[b + 1] - positions[a + 1];
+    float e1z = positions[b + 2] - positions[a + 2];
+    float e2x = positions[c] - positions[a];
+    float e2y = positions[c + 1] - positions[a + 1];
+    float e2z = positions[c + 2] - positions[a + 2];
+
+    float dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+    float px = dy * e2z - dz * e2y;
+    float py = dz * e2x - dx * e2z;
+    float pz = dx * e2y - dy * e2x;
+    float det = e1x * px + e1y * py + e1z * pz;
+    if (Math.abs(det) < EPSILON)
+      return false;
+    float invDet = 1.0f / det;
+
+    float sx = ray.start.x - positions[a];
+    float sy = ray.start.y - positions[a + 1];
+    float sz = ray.start.z - positions[a + 2];
+    float u = (sx * px + sy * py + sz * pz) * invDet;
+    if ((u < 0) || (u > 1))
+      return false;
+
+    float qx = sy * e1z - sz * e1y;
+    float qy = sz * e1x - sx * e1z;
+    float qz = sx * e1y - sy * e1x;
+    float v = (dx * qx + dy * qy + dz * qz) * invDet;
+    if ((v < 0) || (u + v > 1))
+      return false;
+
+    float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+    if ((t <= 0) || (t >= tMax))
+      return false;
+    if (hitRecord != null) {
+      hitRecord.time = t;
+      hitRecord.primitive = tri;
+      hitRecord.u = u;
+      hitRecord.v = v;
+    }
+    return true;
+  }
+}